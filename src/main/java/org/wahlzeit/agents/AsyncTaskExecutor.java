@@ -5,6 +5,7 @@ import com.google.appengine.api.taskqueue.QueueFactory;
 import com.google.appengine.api.taskqueue.RetryOptions;
 import com.google.appengine.api.taskqueue.TaskOptions;
 import org.wahlzeit.model.Photo;
+import org.wahlzeit.model.PhotoManager;
 
 import java.util.logging.Logger;
 
@@ -19,15 +20,40 @@ public class AsyncTaskExecutor {
 
 	private static final Logger log = Logger.getLogger(AsyncTaskExecutor.class.getName());
 
+	/**
+	 * How often processing an upload is retried before the photo remains failed
+	 */
+	public static final int PROCESS_PHOTO_RETRY_LIMIT = 3;
+
 	/**
 	 * @methodtype command
 	 *
-	 * Starts a task in the default queue to save the photo with the specified ID.
+	 * Saves the photo with the specified ID through the write-behind queue, so that repeated changes are coalesced.
+	 * Falls back to a task in the default queue if the photo is not in memory.
 	 */
 	public static void savePhotoAsync(String photoId) {
+		PhotoManager photoManager = PhotoManager.getInstance();
+		Photo photo = photoManager.getPhoto(photoId);
+		if (photo != null) {
+			photoManager.savePhotoLater(photo);
+			return;
+		}
+
 		log.info("Calling async push task to persist PhotoId " + photoId);
 		Queue queue = QueueFactory.getDefaultQueue();
 		RetryOptions retryOptions = withTaskRetryLimit(3);
 		queue.add(TaskOptions.Builder.withUrl("/persistPhoto").param(Photo.ID, photoId).retryOptions(retryOptions));
 	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Starts a task in the default queue that creates the renditions of the uploaded photo and stores them.
+	 */
+	public static void processPhotoAsync(String photoId) {
+		log.info("Calling async push task to process PhotoId " + photoId);
+		Queue queue = QueueFactory.getDefaultQueue();
+		RetryOptions retryOptions = withTaskRetryLimit(PROCESS_PHOTO_RETRY_LIMIT);
+		queue.add(TaskOptions.Builder.withUrl("/processPhoto").param(Photo.ID, photoId).retryOptions(retryOptions));
+	}
 }
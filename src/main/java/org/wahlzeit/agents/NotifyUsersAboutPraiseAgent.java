@@ -4,7 +4,6 @@ import com.google.apphosting.api.ApiProxy;
 import org.wahlzeit.model.LanguageConfigs;
 import org.wahlzeit.model.ModelConfig;
 import org.wahlzeit.model.Photo;
-import org.wahlzeit.model.PhotoId;
 import org.wahlzeit.model.PhotoManager;
 import org.wahlzeit.model.User;
 import org.wahlzeit.model.UserManager;
@@ -16,7 +15,6 @@ import org.wahlzeit.services.mailing.EmailServiceManager;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.Map;
 import java.util.logging.Logger;
 
 /**
@@ -38,8 +36,7 @@ public class NotifyUsersAboutPraiseAgent extends Agent {
 	 * Notifies all users that want to get informed if their photos have been praised.
 	 */
 	protected void doRun() {
-		Map<PhotoId, Photo> photoCache = PhotoManager.getInstance().getPhotoCache();
-		Collection<Photo> photos = photoCache.values();
+		Collection<Photo> photos = PhotoManager.getInstance().getPhotosWithNewPraise();
 
 		ArrayList<Photo> arrayListOfPhotos;
 		HashMap<String, ArrayList<Photo>> ownerIdPhotosMap = new HashMap<String, ArrayList<Photo>>();
@@ -0,0 +1,73 @@
+package org.wahlzeit.agents;
+
+import org.wahlzeit.model.Photo;
+import org.wahlzeit.model.PhotoManager;
+import org.wahlzeit.services.LogBuilder;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+/**
+ * Servlet to create the renditions of an uploaded Photo in the background.
+ * Like <code>PersistPhotoAgent</code>, it is called by a push task and
+ * is not implemented as a Handler or a child of <code>AbstractServlet</code>.
+ * A failed photo is answered with an error, so that the task is retried;
+ * after the last retry, its original is deleted.
+ */
+public class ProcessPhotoAgent extends HttpServlet {
+
+	private static final Logger log = Logger.getLogger(ProcessPhotoAgent.class.getName());
+	private static final long serialVersionUID = 42L; // any does; class never serialized
+
+	/**
+	 * Set by App Engine on push task requests; 0 for the first attempt
+	 */
+	public static final String TASK_RETRY_COUNT_HEADER = "X-AppEngine-TaskRetryCount";
+
+	/**
+	 * @methodtype command
+	 */
+	protected void doPost(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException {
+
+		String id = request.getParameter(Photo.ID);
+		log.config(LogBuilder.createSystemMessage().addParameter("Try to process PhotoId", id).toString());
+		if (id != null && !"".equals(id)) {
+			Photo photo = PhotoManager.getInstance().getPhoto(id);
+			if (photo == null) {
+				response.setStatus(299);
+				throw new IllegalArgumentException("Could not find Photo with ID " + id);
+			}
+
+			try {
+				PhotoManager.getInstance().processPhoto(photo);
+			} catch (Exception e) {
+				log.warning(LogBuilder.createSystemMessage().
+						addParameter("photo ID", id).
+						addException("Processing photo failed", e).toString());
+				if (isLastAttempt(request)) {
+					PhotoManager.getInstance().discardOriginal(photo);
+				}
+				response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+				return;
+			}
+		}
+		response.setStatus(200);
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	protected boolean isLastAttempt(HttpServletRequest request) {
+		String retryCount = request.getHeader(TASK_RETRY_COUNT_HEADER);
+		try {
+			return retryCount != null && Integer.parseInt(retryCount) >= AsyncTaskExecutor.PROCESS_PHOTO_RETRY_LIMIT;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+}
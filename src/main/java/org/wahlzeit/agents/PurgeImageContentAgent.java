@@ -0,0 +1,25 @@
+package org.wahlzeit.agents;
+
+import org.wahlzeit.model.ImageContentManager;
+
+/**
+ * An agent class to purge shared image content that has lost its last reference.
+ */
+public class PurgeImageContentAgent extends Agent {
+
+	public static final String NAME = "purgeImageContent";
+
+	public PurgeImageContentAgent() {
+		initialize(NAME);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Deletes the content, and its renditions, that has been without references for longer than the grace period.
+	 */
+	protected void doRun() {
+		ImageContentManager.getInstance().purgeUnreferencedContents();
+	}
+
+}
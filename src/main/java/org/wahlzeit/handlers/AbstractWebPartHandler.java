@@ -32,9 +32,12 @@ import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.services.SysConfig;
 import org.wahlzeit.utils.HtmlUtil;
 import org.wahlzeit.utils.StringUtil;
+import org.wahlzeit.webparts.Fragment;
+import org.wahlzeit.webparts.FragmentCache;
 import org.wahlzeit.webparts.WebPart;
 import org.wahlzeit.webparts.WebPartTemplate;
 import org.wahlzeit.webparts.WebPartTemplateService;
+import org.wahlzeit.webparts.Writable;
 
 import java.io.File;
 import java.util.Map;
@@ -79,6 +82,23 @@ public abstract class AbstractWebPartHandler implements WebPartHandler {
 		return new WebPart(tmpl);
 	}
 
+	/**
+	 * @methodtype factory
+	 *
+	 * Returns the web part of the template as a cached fragment. Only for templates that render the same for all
+	 * users of a language, apart from the varying inputs.
+	 */
+	protected final Writable createCachedWebPart(UserSession us, String name, String... varyingInputs) {
+		String languageCode = us.getClient().getLanguageConfiguration().getLanguageCode();
+		FragmentCache fragmentCache = FragmentCache.getInstance();
+		FragmentCache.FragmentKey key = new FragmentCache.FragmentKey(languageCode, name, varyingInputs);
+		Fragment result = fragmentCache.get(key);
+		if (result == null) {
+			result = fragmentCache.put(key, createWebPart(us, name));
+		}
+		return result;
+	}
+
 	/**
 	 *
 	 */
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.handlers;
+
+import org.wahlzeit.services.DataObject;
+
+import java.util.Map;
+
+/**
+ * A web page handler whose pages may be served from the PageCache to anonymous guests, i.e. guests whose pages look
+ * like those of a new guest. Such a page may only depend on the language, the site, and what the handler declares in
+ * the key and dependency.
+ */
+public interface CacheableWebPageHandler extends WebPageHandler {
+
+	/**
+	 * Returns the key of the page for the link and request arguments, or null if the page must not be cached.
+	 */
+	String getPageCacheKey(String link, Map<String, String[]> args);
+
+	/**
+	 * Returns the object the page for the link is rendered from, or null if there is none; the cached page is dropped
+	 * when the object is modified.
+	 */
+	DataObject getPageCacheDependency(String link);
+
+	/**
+	 * Returns how long a cached page may be served.
+	 */
+	long getPageCacheTtlMillis();
+
+}
@@ -20,11 +20,13 @@
 
 package org.wahlzeit.handlers;
 
+import org.wahlzeit.agents.AsyncTaskExecutor;
 import org.wahlzeit.model.AccessRights;
 import org.wahlzeit.model.Photo;
 import org.wahlzeit.model.PhotoCase;
 import org.wahlzeit.model.PhotoCaseManager;
 import org.wahlzeit.model.PhotoId;
+import org.wahlzeit.model.PhotoManager;
 import org.wahlzeit.model.PhotoStatus;
 import org.wahlzeit.model.UserSession;
 import org.wahlzeit.services.LogBuilder;
@@ -87,7 +89,8 @@ public class EditPhotoCaseFormHandler extends AbstractWebFormHandler {
 		PhotoCaseManager pcm = PhotoCaseManager.getInstance();
 
 		PhotoCase photoCase = pcm.getPhotoCase(PhotoId.getIdFromString(id));
-		Photo photo = photoCase.getPhoto();
+		// the case may hold a stored copy of the photo, so the status is changed on the one the manager holds
+		Photo photo = PhotoManager.getInstance().getPhoto(photoCase.getPhoto().getId());
 		PhotoStatus status = photo.getStatus();
 		if (us.isFormType(args, "unflag")) {
 			status = status.asFlagged(false);
@@ -98,6 +101,7 @@ public class EditPhotoCaseFormHandler extends AbstractWebFormHandler {
 		}
 
 		photo.setStatus(status);
+		AsyncTaskExecutor.savePhotoAsync(photo.getId().asString());
 
 		log.info(LogBuilder.createUserMessage().
 				addAction("EditPhotoCase").
@@ -84,6 +84,7 @@ public class PraisePhotoFormHandler extends AbstractWebFormHandler {
 				photo.addToPraise(value);
 				client.addPraisedPhotoId(photo.getId());
 				us.addProcessedPhoto(photo);
+				PhotoManager.getInstance().savePhotoLater(photo);
 				wasPraised = true;
 			}
 		}
@@ -22,13 +22,21 @@ package org.wahlzeit.handlers;
 
 import org.wahlzeit.model.AccessRights;
 import org.wahlzeit.model.UserSession;
+import org.wahlzeit.services.DataObject;
 import org.wahlzeit.webparts.WebPart;
 
+import java.util.Map;
+
 
 /**
  * A handler class for a specific web page.
  */
-public class ShowInfoPageHandler extends AbstractWebPageHandler {
+public class ShowInfoPageHandler extends AbstractWebPageHandler implements CacheableWebPageHandler {
+
+	/**
+	 * Info pages only change with the templates, which invalidate the page cache themselves
+	 */
+	protected static final long PAGE_CACHE_TTL_MILLIS = 10 * 60 * 1000;
 
 	/**
 	 *
@@ -47,7 +55,28 @@ public class ShowInfoPageHandler extends AbstractWebPageHandler {
 	 *
 	 */
 	protected void makeWebPageBody(UserSession us, WebPart page) {
-		page.addWritable("info", createWebPart(us, infoTmplName));
+		page.addWritable("info", createCachedWebPart(us, infoTmplName));
+	}
+
+	/**
+	 *
+	 */
+	public String getPageCacheKey(String link, Map<String, String[]> args) {
+		return infoTmplName;
+	}
+
+	/**
+	 *
+	 */
+	public DataObject getPageCacheDependency(String link) {
+		return null;
+	}
+
+	/**
+	 *
+	 */
+	public long getPageCacheTtlMillis() {
+		return PAGE_CACHE_TTL_MILLIS;
 	}
 
 }
@@ -22,6 +22,7 @@ package org.wahlzeit.handlers;
 
 import org.wahlzeit.model.AccessRights;
 import org.wahlzeit.model.Client;
+import org.wahlzeit.model.ImagePrefetcher;
 import org.wahlzeit.model.Photo;
 import org.wahlzeit.model.PhotoFilter;
 import org.wahlzeit.model.PhotoId;
@@ -29,6 +30,7 @@ import org.wahlzeit.model.PhotoManager;
 import org.wahlzeit.model.PhotoSize;
 import org.wahlzeit.model.Tags;
 import org.wahlzeit.model.UserSession;
+import org.wahlzeit.services.DataObject;
 import org.wahlzeit.utils.HtmlUtil;
 import org.wahlzeit.webparts.WebPart;
 import org.wahlzeit.webparts.Writable;
@@ -39,7 +41,12 @@ import java.util.Map;
 /**
  * A handler class for a specific web page.
  */
-public class ShowPhotoPageHandler extends AbstractWebPageHandler implements WebFormHandler {
+public class ShowPhotoPageHandler extends AbstractWebPageHandler implements WebFormHandler, CacheableWebPageHandler {
+
+	/**
+	 * Changes of the photo drop its cached page right away; the rest, e.g. the praise of other photos, may lag behind
+	 */
+	protected static final long PAGE_CACHE_TTL_MILLIS = 60 * 1000;
 
 	/**
 	 *
@@ -83,6 +90,33 @@ public class ShowPhotoPageHandler extends AbstractWebPageHandler implements WebF
 		return link;
 	}
 
+	/**
+	 * Only the page of a specific photo is cached; the index shows a random one, and arguments like "prior" change
+	 * the session.
+	 */
+	public String getPageCacheKey(String link, Map<String, String[]> args) {
+		if (link.equals(PartUtil.SHOW_PHOTO_PAGE_NAME) || !args.isEmpty()) {
+			return null;
+		}
+
+		Photo photo = PhotoManager.getInstance().getPhoto(link);
+		return (photo != null) ? "photo/" + photo.getIdAsString() : null;
+	}
+
+	/**
+	 *
+	 */
+	public DataObject getPageCacheDependency(String link) {
+		return PhotoManager.getInstance().getPhoto(link);
+	}
+
+	/**
+	 *
+	 */
+	public long getPageCacheTtlMillis() {
+		return PAGE_CACHE_TTL_MILLIS;
+	}
+
 	/**
 	 *
 	 */
@@ -128,14 +162,14 @@ public class ShowPhotoPageHandler extends AbstractWebPageHandler implements WebF
 		if (lastPraisedPhoto != null) {
 			parts.append(makePriorPhotoInfo(us, lastPraisedPhoto));
 		} else {
-			parts.append(createWebPart(us, PartUtil.BLURP_INFO_FILE));
+			parts.append(createCachedWebPart(us, PartUtil.BLURP_INFO_FILE));
 		}
 
 		WebFormHandler handler = getFormHandler(PartUtil.FILTER_PHOTOS_FORM_NAME);
 		Writable filterPhotos = handler.makeWebPart(us);
 		parts.append(filterPhotos);
 
-		parts.append(createWebPart(us, PartUtil.LINKS_INFO_FILE));
+		parts.append(createCachedWebPart(us, PartUtil.LINKS_INFO_FILE));
 
 		page.addWritable("sidebar", parts);
 	}
@@ -166,6 +200,7 @@ public class ShowPhotoPageHandler extends AbstractWebPageHandler implements WebF
 
 		PhotoSize maxPhotoSize = photo.getMaxPhotoSize();
 		PhotoSize photoSize = (maxPhotoSize.isSmaller(pagePhotoSize)) ? maxPhotoSize : pagePhotoSize;
+		ImagePrefetcher.prefetchIfEnabled(photoId, photoSize);
 		String imageLink = getPhotoAsRelativeResourcePathString(photo, photoSize);
 		page.addString(Photo.IMAGE, HtmlUtil.asImg(HtmlUtil.asPath(imageLink)));
 	}
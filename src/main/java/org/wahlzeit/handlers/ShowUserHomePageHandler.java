@@ -21,6 +21,7 @@
 package org.wahlzeit.handlers;
 
 import org.wahlzeit.model.AccessRights;
+import org.wahlzeit.model.ModelConfig;
 import org.wahlzeit.model.Photo;
 import org.wahlzeit.model.PhotoManager;
 import org.wahlzeit.model.User;
@@ -29,6 +30,7 @@ import org.wahlzeit.utils.HtmlUtil;
 import org.wahlzeit.webparts.WebPart;
 import org.wahlzeit.webparts.Writable;
 import org.wahlzeit.webparts.WritableList;
+import org.wahlzeit.webparts.WritableString;
 
 /**
  * A handler class for a specific web page.
@@ -58,7 +60,7 @@ public class ShowUserHomePageHandler extends AbstractWebPageHandler {
 				// load it from the PhotoManager to make sure the same copy is used
 				photo = PhotoManager.getInstance().getPhotoFromId(photo.getId());
 				if (!photo.getStatus().isDeleted()) {
-					part = makeUserPhotoForm(us, photo);
+					part = photo.isReady() ? makeUserPhotoForm(us, photo) : makeProcessingPlaceholder(us, photo);
 					list.append(part);
 					wasEmpty = false;
 				}
@@ -80,6 +82,16 @@ public class ShowUserHomePageHandler extends AbstractWebPageHandler {
 	}
 
 
+	/**
+	 * Stands in for the form of a photo whose renditions are still being created.
+	 */
+	protected Writable makeProcessingPlaceholder(UserSession us, Photo photo) {
+		ModelConfig config = us.getClient().getLanguageConfiguration();
+		String message = photo.getProcessingState().isFailed() ?
+				config.getPhotoProcessingFailed() : config.getPhotoIsBeingProcessed();
+		return new WritableString(HtmlUtil.asP(message));
+	}
+
 	/**
 	 *
 	 */
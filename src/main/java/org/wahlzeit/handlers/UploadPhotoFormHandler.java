@@ -21,6 +21,7 @@
 package org.wahlzeit.handlers;
 
 import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
 import org.wahlzeit.agents.AsyncTaskExecutor;
 import org.wahlzeit.model.AccessRights;
 import org.wahlzeit.model.ModelConfig;
@@ -30,6 +31,7 @@ import org.wahlzeit.model.Tags;
 import org.wahlzeit.model.User;
 import org.wahlzeit.model.UserSession;
 import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.SpooledUpload;
 import org.wahlzeit.utils.StringUtil;
 import org.wahlzeit.webparts.WebPart;
 
@@ -72,12 +74,14 @@ public class UploadPhotoFormHandler extends AbstractWebFormHandler {
 			return PartUtil.UPLOAD_PHOTO_PAGE_NAME;
 		}
 
+		User user = (User) us.getClient();
 		try {
 			PhotoManager pm = PhotoManager.getInstance();
 			String fileName = us.getAsString(args, "fileName");
-			User user = (User) us.getClient();
-			Image uploadedImage = user.getUploadedImage();
-			Photo photo = pm.createPhoto(fileName, uploadedImage);
+			SpooledUpload upload = user.getUpload();
+			Image uploadedImage = (upload != null) ? ImagesServiceFactory.makeImage(upload.readData()) : null;
+			String contentHash = (upload != null) ? upload.getContentHash() : null;
+			Photo photo = pm.createPendingPhoto(fileName, uploadedImage, contentHash);
 
 			user.addPhoto(photo);
 
@@ -89,14 +93,21 @@ public class UploadPhotoFormHandler extends AbstractWebFormHandler {
 					addParameter("tags", photo.getTags().asString()).toString());
 
 			us.setTwoLineMessage(config.getPhotoUploadSucceeded(), config.getKeepGoing());
-			log.config(LogBuilder.createSystemMessage().
-					addAction("Calling async task to save Photo").
-					addParameter("ID", photo.getId().asString()).toString());
-
-			AsyncTaskExecutor.savePhotoAsync(photo.getId().asString());
+			// a new photo is stored right away rather than written behind, so that it survives this instance; a
+			// pending photo must also be stored before the task may load it on another instance
+			pm.savePhoto(photo);
+			if (!photo.isReady()) {
+				log.config(LogBuilder.createSystemMessage().
+						addAction("Calling async task to process Photo").
+						addParameter("ID", photo.getId().asString()).toString());
+
+				AsyncTaskExecutor.processPhotoAsync(photo.getId().asString());
+			}
 		} catch (Exception ex) {
 			log.warning(LogBuilder.createSystemMessage().addException("uploading photo failed", ex).toString());
 			us.setMessage(config.getPhotoUploadFailed());
+		} finally {
+			user.setUpload(null);
 		}
 
 		return PartUtil.UPLOAD_PHOTO_PAGE_NAME;
@@ -39,6 +39,6 @@ public interface WebPartHandler {
 	/**
 	 *
 	 */
-	String handleGet(UserSession us, String link, Map args);
+	String handleGet(UserSession us, String link, Map<String, String[]> args);
 
 }
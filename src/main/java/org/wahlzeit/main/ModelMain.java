@@ -22,8 +22,10 @@ package org.wahlzeit.main;
 
 import org.wahlzeit.model.*;
 import org.wahlzeit.model.persistence.DatastoreAdapter;
+import org.wahlzeit.model.persistence.FileSystemAdapter;
 import org.wahlzeit.model.persistence.ImageStorage;
 import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.WriteBehindQueue;
 
 import java.io.File;
 import java.io.FileFilter;
@@ -37,6 +39,12 @@ public abstract class ModelMain extends AbstractMain {
 
 	private static final Logger log = Logger.getLogger(ModelMain.class.getName());
 
+	/**
+	 * Selects the ImageStorage, "datastore" (default) or "filesystem"
+	 */
+	public static final String IMAGE_STORAGE_PROPERTY = "org.wahlzeit.imageStorage";
+	public static final String FILE_SYSTEM_IMAGE_STORAGE = "filesystem";
+
 	/**
 	 *
 	 */
@@ -46,7 +54,11 @@ public abstract class ModelMain extends AbstractMain {
 
 		log.config(LogBuilder.createSystemMessage().addAction("load image storage").toString());
 		//GcsAdapter.Builder gcsAdapterBuilder = new GcsAdapter.Builder();
-		ImageStorage.setInstance(new DatastoreAdapter());
+		if (FILE_SYSTEM_IMAGE_STORAGE.equals(System.getProperty(IMAGE_STORAGE_PROPERTY))) {
+			ImageStorage.setInstance(new FileSystemAdapter());
+		} else {
+			ImageStorage.setInstance(new DatastoreAdapter());
+		}
 
 		log.config(LogBuilder.createSystemMessage().addAction("load globals").toString());
 		GlobalsManager.getInstance().loadGlobals();
@@ -66,6 +78,9 @@ public abstract class ModelMain extends AbstractMain {
 	 *
 	 */
 	protected void shutDown() throws Exception {
+		ImagePrefetcher.shutDown();
+		RenditionExecutor.shutDown();
+		WriteBehindQueue.getInstance().flush();
 		saveAll();
 
 		super.shutDown();
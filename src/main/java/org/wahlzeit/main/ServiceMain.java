@@ -31,6 +31,7 @@ import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.services.SysConfig;
 import org.wahlzeit.webparts.WebPartTemplateService;
 
+import java.io.IOException;
 import java.util.logging.Logger;
 
 /**
@@ -109,9 +110,13 @@ public class ServiceMain extends ModelMain {
 	/**
 	 *
 	 */
-	public void configureWebPartTemplateService() {
+	public void configureWebPartTemplateService() throws IOException {
 		ConfigDir templatesDir = SysConfig.getTemplatesDir();
-		WebPartTemplateService.getInstance().setTemplatesDir(templatesDir);
+		WebPartTemplateService templateService = WebPartTemplateService.getInstance();
+		templateService.setTemplatesDir(templatesDir);
+		if (Boolean.getBoolean(WebPartTemplateService.HOT_RELOAD_PROPERTY)) {
+			templateService.startHotReload();
+		}
 	}
 
 	/**
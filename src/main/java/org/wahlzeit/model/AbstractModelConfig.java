@@ -520,6 +520,20 @@ public abstract class AbstractModelConfig extends AbstractConfig implements Mode
 		return doGetValue("NoPhotoUploaded");
 	}
 
+	/**
+	 *
+	 */
+	public String getPhotoIsBeingProcessed() {
+		return doGetValue("PhotoIsBeingProcessed");
+	}
+
+	/**
+	 *
+	 */
+	public String getPhotoProcessingFailed() {
+		return doGetValue("PhotoProcessingFailed");
+	}
+
 	/**
 	 *
 	 */
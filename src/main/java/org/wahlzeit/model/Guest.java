@@ -50,4 +50,13 @@ public class Guest extends Client {
 		String userId = GUEST_PREFIX + UserManager.getInstance().getNextClientId();
 		initialize(userId, userId, EmailAddress.EMPTY, AccessRights.GUEST, previousClient);
 	}
+
+	/**
+	 * Returns whether pages look for this guest as for a new one, apart from the language.
+	 *
+	 * @methodtype boolean-query
+	 */
+	public boolean hasDefaultSettings() {
+		return photoSize == PhotoSize.MEDIUM && praisedPhotoIds.isEmpty();
+	}
 }
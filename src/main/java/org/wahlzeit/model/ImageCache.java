@@ -0,0 +1,381 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import org.wahlzeit.services.LogBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * An ImageCache holds the encoded bytes of photo renditions, keyed by photo id, photo size, and encoding. It is
+ * separate from the PhotoCache, so that photo metadata can be cached aggressively while the much larger image data
+ * gets its own memory budget. The least recently used renditions are evicted first.
+ *
+ * Optionally, the bytes are kept off-heap in direct ByteBuffers. The budget can be configured through the system
+ * properties "org.wahlzeit.imageCache.maxBytes" and "org.wahlzeit.imageCache.offHeap".
+ */
+public class ImageCache {
+
+	private static final Logger log = Logger.getLogger(ImageCache.class.getName());
+
+	/**
+	 *
+	 */
+	public static final String MAX_BYTES_PROPERTY = "org.wahlzeit.imageCache.maxBytes";
+	public static final String OFF_HEAP_PROPERTY = "org.wahlzeit.imageCache.offHeap";
+
+	/**
+	 *
+	 */
+	public static final long DEFAULT_MAX_BYTES = 128L * 1024 * 1024; // = 128 MB
+
+	/**
+	 *
+	 */
+	protected static ImageCache instance = new ImageCache();
+
+	/**
+	 *
+	 */
+	protected final ConcurrentMap<ImageKey, ByteBuffer> images = new ConcurrentHashMap<ImageKey, ByteBuffer>();
+
+	/**
+	 * Access-ordered, so iteration starts with the least recently used rendition; guarded by itself
+	 */
+	protected final LinkedHashMap<ImageKey, Boolean> order = new LinkedHashMap<ImageKey, Boolean>(64, 0.75f, true);
+
+	/**
+	 *
+	 */
+	protected final long maxBytes;
+	protected final boolean isOffHeap;
+
+	/**
+	 *
+	 */
+	protected final AtomicLong weightedSize = new AtomicLong();
+	protected final AtomicLong hitCount = new AtomicLong();
+	protected final AtomicLong missCount = new AtomicLong();
+	protected final AtomicLong evictionCount = new AtomicLong();
+
+	/**
+	 * Creates a cache configured from the system properties, falling back to the defaults.
+	 */
+	public ImageCache() {
+		this(Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES), Boolean.getBoolean(OFF_HEAP_PROPERTY));
+	}
+
+	/**
+	 *
+	 */
+	public ImageCache(long myMaxBytes, boolean myIsOffHeap) {
+		if (myMaxBytes <= 0) {
+			throw new IllegalArgumentException("maxBytes should be positive");
+		}
+
+		maxBytes = myMaxBytes;
+		isOffHeap = myIsOffHeap;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public static ImageCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public static void setInstance(ImageCache newInstance) {
+		instance = newInstance;
+	}
+
+	/**
+	 * Returns a read-only view of the image data or null if the rendition is not cached. Each caller gets its own
+	 * buffer position, so the result can be consumed without affecting other readers.
+	 *
+	 * @methodtype get
+	 */
+	public ByteBuffer get(PhotoId id, PhotoSize size) {
+		return get(id, size, ImageEncoding.ORIGINAL);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public ByteBuffer get(PhotoId id, PhotoSize size, ImageEncoding encoding) {
+		ImageKey key = new ImageKey(id, size, encoding);
+		ByteBuffer result = images.get(key);
+		if (result == null) {
+			missCount.incrementAndGet();
+			return null;
+		}
+
+		hitCount.incrementAndGet();
+		synchronized (order) {
+			order.get(key);
+		}
+		return result.asReadOnlyBuffer();
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean contains(PhotoId id, PhotoSize size) {
+		return contains(id, size, ImageEncoding.ORIGINAL);
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean contains(PhotoId id, PhotoSize size, ImageEncoding encoding) {
+		return images.containsKey(new ImageKey(id, size, encoding));
+	}
+
+	/**
+	 * Caches the image data; renditions larger than the whole budget are not cached at all.
+	 *
+	 * @methodtype command
+	 */
+	public void put(PhotoId id, PhotoSize size, byte[] imageData) {
+		put(id, size, ImageEncoding.ORIGINAL, imageData);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void put(PhotoId id, PhotoSize size, ImageEncoding encoding, byte[] imageData) {
+		if (imageData != null) {
+			put(id, size, encoding, ByteBuffer.wrap(imageData));
+		}
+	}
+
+	/**
+	 * Caches the remaining bytes of the buffer without copying them, unless a heap buffer has to be moved off-heap.
+	 * The buffer, e.g. a memory-mapped file, must not be modified afterwards.
+	 *
+	 * @methodtype command
+	 */
+	public void put(PhotoId id, PhotoSize size, ByteBuffer imageData) {
+		put(id, size, ImageEncoding.ORIGINAL, imageData);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void put(PhotoId id, PhotoSize size, ImageEncoding encoding, ByteBuffer imageData) {
+		if (imageData == null || imageData.remaining() > maxBytes) {
+			return;
+		}
+
+		ImageKey key = new ImageKey(id, size, encoding);
+		ByteBuffer buffer = (isOffHeap && !imageData.isDirect()) ? copyToDirectBuffer(imageData) : imageData.slice();
+
+		synchronized (order) {
+			ByteBuffer oldBuffer = images.put(key, buffer);
+			weightedSize.addAndGet(buffer.capacity() - ((oldBuffer != null) ? oldBuffer.capacity() : 0));
+			order.put(key, Boolean.TRUE);
+
+			evictIfNecessary();
+		}
+	}
+
+	/**
+	 * Removes all renditions of the photo, in all encodings.
+	 *
+	 * @methodtype command
+	 */
+	public void remove(PhotoId id) {
+		synchronized (order) {
+			for (PhotoSize size : PhotoSize.values()) {
+				for (ImageEncoding encoding : ImageEncoding.values()) {
+					doRemove(new ImageKey(id, size, encoding));
+				}
+			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void clear() {
+		synchronized (order) {
+			images.clear();
+			order.clear();
+			weightedSize.set(0);
+		}
+	}
+
+	/**
+	 * Must be called while holding the order lock.
+	 *
+	 * @methodtype command
+	 */
+	protected void evictIfNecessary() {
+		Iterator<ImageKey> victims = order.keySet().iterator();
+		while (weightedSize.get() > maxBytes && victims.hasNext()) {
+			ImageKey victim = victims.next();
+			victims.remove();
+			ByteBuffer buffer = images.remove(victim);
+			if (buffer != null) {
+				weightedSize.addAndGet(-buffer.capacity());
+				evictionCount.incrementAndGet();
+				log.config(LogBuilder.createSystemMessage().
+						addAction("evict image from cache").
+						addParameter("photo ID", victim.photoId.asString()).
+						addParameter("size", victim.photoSize.asString()).toString());
+			}
+		}
+	}
+
+	/**
+	 * Must be called while holding the order lock.
+	 *
+	 * @methodtype command
+	 */
+	protected void doRemove(ImageKey key) {
+		order.remove(key);
+		ByteBuffer buffer = images.remove(key);
+		if (buffer != null) {
+			weightedSize.addAndGet(-buffer.capacity());
+		}
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	protected static ByteBuffer copyToDirectBuffer(ByteBuffer imageData) {
+		ByteBuffer result = ByteBuffer.allocateDirect(imageData.remaining());
+		result.put(imageData.duplicate());
+		result.flip();
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int size() {
+		return images.size();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getWeightedSize() {
+		return weightedSize.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isOffHeap() {
+		return isOffHeap;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	/**
+	 *
+	 */
+	@Override
+	public String toString() {
+		return "ImageCache[entries=" + size() + ", bytes=" + getWeightedSize() + "/" + maxBytes + ", offHeap=" +
+				isOffHeap + ", hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions=" +
+				getEvictionCount() + "]";
+	}
+
+	/**
+	 * The key of a cached rendition.
+	 */
+	protected static class ImageKey {
+
+		/**
+		 *
+		 */
+		protected final PhotoId photoId;
+		protected final PhotoSize photoSize;
+		protected final ImageEncoding encoding;
+
+		/**
+		 *
+		 */
+		protected ImageKey(PhotoId myPhotoId, PhotoSize myPhotoSize, ImageEncoding myEncoding) {
+			photoId = myPhotoId;
+			photoSize = myPhotoSize;
+			encoding = myEncoding;
+		}
+
+		/**
+		 *
+		 */
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof ImageKey)) {
+				return false;
+			}
+
+			ImageKey other = (ImageKey) o;
+			return photoId.equals(other.photoId) && photoSize == other.photoSize && encoding == other.encoding;
+		}
+
+		/**
+		 *
+		 */
+		@Override
+		public int hashCode() {
+			return (photoId.hashCode() * 8 + photoSize.asInt()) * 4 + encoding.asInt();
+		}
+	}
+
+}
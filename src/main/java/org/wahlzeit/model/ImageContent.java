@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+import org.wahlzeit.services.DataObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The stored renditions of one uploaded image, shared by all photos whose original has the same content hash. The
+ * renditions are kept in the ImageStorage under the content hash instead of a photo id; the reference count is the
+ * number of photos, other than deleted ones, that use them. Once the renditions are complete, their manifest is
+ * recorded here, so that a later upload of the same image only needs to copy it. Content that has lost its last
+ * reference is purged with its renditions after a grace period.
+ */
+@Entity
+public class ImageContent extends DataObject {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The content hash, as computed by PhotoUtil.computeImageHash
+	 */
+	@Id
+	private String id;
+
+	/**
+	 *
+	 */
+	@Index
+	protected int referenceCount = 0;
+
+	/**
+	 * When the last reference was removed; 0 while referenced
+	 */
+	protected long unreferencedSince = 0;
+
+	/**
+	 * Manifest of the renditions, as in Photo; only valid if complete
+	 */
+	protected boolean isComplete = false;
+	protected int storedSizes = 0;
+	protected int storedEncodings = 0;
+	protected List<String> imageHashes = new ArrayList<String>();
+
+	/**
+	 *
+	 */
+	protected ImageContent() {
+		// do nothing; for Objectify
+	}
+
+	/**
+	 * @methodtype constructor
+	 */
+	public ImageContent(String myId) {
+		id = myId;
+		incWriteCount();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getReferenceCount() {
+		return referenceCount;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void addReference() {
+		referenceCount++;
+		unreferencedSince = 0;
+		incWriteCount();
+	}
+
+	/**
+	 * Removes a reference; the time is recorded if it was the last one.
+	 *
+	 * @methodtype command
+	 */
+	public void removeReference(long now) {
+		if (referenceCount > 0) {
+			referenceCount--;
+			if (referenceCount == 0) {
+				unreferencedSince = now;
+			}
+			incWriteCount();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getUnreferencedSince() {
+		return unreferencedSince;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isReferenced() {
+		return referenceCount > 0;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isComplete() {
+		return isComplete;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean hasStoredImage(PhotoSize size, ImageEncoding encoding) {
+		if (encoding.isOriginal()) {
+			return (storedSizes & (1 << size.asInt())) != 0;
+		}
+		return (storedEncodings & Photo.getStoredEncodingBit(size, encoding)) != 0;
+	}
+
+	/**
+	 * Records the manifest of the stored renditions of the photo, which must be ready.
+	 *
+	 * @methodtype set
+	 */
+	public void setManifest(Photo photo) {
+		storedSizes = photo.storedSizes;
+		storedEncodings = photo.storedEncodings;
+		imageHashes = (photo.imageHashes == null) ? new ArrayList<String>() : new ArrayList<String>(photo.imageHashes);
+		isComplete = true;
+		incWriteCount();
+	}
+
+	/**
+	 * Copies the recorded manifest to the photo, which then refers to the stored renditions without images of its own.
+	 *
+	 * @methodtype command
+	 */
+	public void copyManifestTo(Photo photo) {
+		photo.storedSizes = storedSizes;
+		photo.storedEncodings = storedEncodings;
+		photo.imageHashes = new ArrayList<String>(imageHashes);
+		photo.incWriteCount();
+	}
+
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+import org.wahlzeit.model.persistence.ImageStorage;
+import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.ObjectManager;
+import org.wahlzeit.services.OfyService;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * The image content manager keeps the reference counts and manifests of the shared renditions of identical uploads.
+ * Each change is made in a transaction on the single ImageContent, so concurrent uploads of the same image neither
+ * lose references nor contend with other images. Content without references is kept for a grace period, so that a
+ * restored photo or a repeated upload can still use it, and purged with its renditions afterwards.
+ */
+public class ImageContentManager extends ObjectManager {
+
+	private static final Logger log = Logger.getLogger(ImageContentManager.class.getName());
+
+	/**
+	 * How long content without references is kept
+	 */
+	public static final long PURGE_GRACE_PERIOD_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+
+	/**
+	 *
+	 */
+	protected static final ImageContentManager instance = new ImageContentManager();
+
+	/**
+	 * @methodtype get
+	 */
+	public static ImageContentManager getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the content with the hash or null if no photo ever used it.
+	 */
+	public ImageContent getContent(String contentId) {
+		return readObject(ImageContent.class, contentId);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Adds a reference to the content with the hash, creating it for the first photo, and returns the content.
+	 */
+	public ImageContent addReference(final String contentId) {
+		assertIsNonNullArgument(contentId, "content id");
+		return OfyService.ofy().transact(new Work<ImageContent>() {
+			@Override
+			public ImageContent run() {
+				ImageContent content = getContent(contentId);
+				if (content == null) {
+					content = new ImageContent(contentId);
+				}
+				content.addReference();
+				OfyService.ofy().save().entity(content).now();
+				return content;
+			}
+		});
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Removes a reference from the content with the hash. Content without references is kept until it is purged.
+	 */
+	public void removeReference(final String contentId) {
+		assertIsNonNullArgument(contentId, "content id");
+		ImageContent content = OfyService.ofy().transact(new Work<ImageContent>() {
+			@Override
+			public ImageContent run() {
+				ImageContent content = getContent(contentId);
+				if (content != null) {
+					content.removeReference(getCurrentTimeMillis());
+					OfyService.ofy().save().entity(content).now();
+				}
+				return content;
+			}
+		});
+
+		if (content != null && !content.isReferenced()) {
+			log.config(LogBuilder.createSystemMessage().
+					addParameter("Unreferenced image content", contentId).toString());
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Adds the reference of the photo to its content, or removes it if the photo is deleted, and saves the photo in
+	 * the same transaction, so that the stored photo and the reference count agree.
+	 */
+	public void updateReference(final Photo photo) {
+		assertIsNonNullArgument(photo.getContentId(), "content id");
+		final boolean isReferenced = !photo.getStatus().isDeleted();
+		try {
+			OfyService.ofy().transact(new Work<Void>() {
+				@Override
+				public Void run() {
+					if (isReferenced) {
+						addReference(photo.getContentId());
+					} else {
+						removeReference(photo.getContentId());
+					}
+					photo.setContentReferenced(isReferenced);
+					OfyService.ofy().save().entity(photo).now();
+					return null;
+				}
+			});
+		} catch (RuntimeException e) {
+			photo.setContentReferenced(!isReferenced);
+			throw e;
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 *
+	 * Returns true if the original stored for the content of the photo may be deleted on its behalf: once the
+	 * renditions are complete, or if no other photo uses the content. Other photos that are still pending need the
+	 * shared original; it is purged with the content once they are gone.
+	 */
+	public boolean isOriginalDisposable(Photo photo) {
+		assertIsNonNullArgument(photo.getContentId(), "content id");
+		ImageContent content = getContent(photo.getContentId());
+		int ownReferences = photo.isContentReferenced() ? 1 : 0;
+		return content == null || content.isComplete() || content.getReferenceCount() <= ownReferences;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Records the manifest of the ready photo for its content, unless another photo already did.
+	 */
+	public void completeContent(final Photo photo) {
+		assertIsNonNullArgument(photo.getContentId(), "content id");
+		OfyService.ofy().transact(new Work<Void>() {
+			@Override
+			public Void run() {
+				ImageContent content = getContent(photo.getContentId());
+				if (content != null && !content.isComplete()) {
+					content.setManifest(photo);
+					OfyService.ofy().save().entity(content).now();
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Deletes all content that has been without references for longer than the grace period, together with its
+	 * renditions and any original left in the storage. Returns the number of purged contents.
+	 */
+	public int purgeUnreferencedContents() {
+		List<Key<ImageContent>> keys = OfyService.ofy().load().type(ImageContent.class).
+				filter("referenceCount", 0).keys().list();
+
+		int result = 0;
+		for (Key<ImageContent> key : keys) {
+			ImageContent content = deleteIfExpired(key.getName());
+			if (content != null) {
+				deleteRenditions(content);
+				result++;
+			}
+		}
+
+		log.info(LogBuilder.createSystemMessage().addParameter("Purged image contents", result).toString());
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Deletes the content if it is still without references after the grace period and returns it, else null.
+	 */
+	protected ImageContent deleteIfExpired(final String contentId) {
+		return OfyService.ofy().transact(new Work<ImageContent>() {
+			@Override
+			public ImageContent run() {
+				ImageContent content = getContent(contentId);
+				if (content == null || content.isReferenced() ||
+						getCurrentTimeMillis() - content.getUnreferencedSince() < PURGE_GRACE_PERIOD_MILLIS) {
+					return null;
+				}
+				OfyService.ofy().delete().entity(content).now();
+				return content;
+			}
+		});
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Deletes the stored renditions of the purged content. A failure to delete is only logged, as it merely leaves
+	 * the image in the storage.
+	 */
+	protected void deleteRenditions(ImageContent content) {
+		ImageStorage imageStorage = ImageStorage.getInstance();
+		try {
+			imageStorage.deleteImage(PhotoManager.getStorageId(content.getId(), ImageEncoding.ORIGINAL),
+					ImageStorage.ORIGINAL_SIZE);
+			for (PhotoSize size : PhotoSize.values()) {
+				for (ImageEncoding encoding : ImageEncoding.values()) {
+					if (content.hasStoredImage(size, encoding)) {
+						imageStorage.deleteImage(PhotoManager.getStorageId(content.getId(), encoding), size.asInt());
+					}
+				}
+			}
+		} catch (IOException e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("content id", content.getId()).
+					addException("Could not delete renditions", e).toString());
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected long getCurrentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+}
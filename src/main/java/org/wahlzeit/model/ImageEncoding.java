@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.model;
+
+import org.wahlzeit.utils.EnumValue;
+
+/**
+ * An ImageEncoding is an encoding a rendition can be stored and served in. ORIGINAL is the encoding of the upload;
+ * the others are compact encodings the RenditionPipeline may add, and that are served to clients that accept them.
+ */
+public enum ImageEncoding implements EnumValue {
+
+	/**
+	 *
+	 */
+	ORIGINAL(0, null, null), WEBP(1, "webp", "image/webp");
+
+	/**
+	 * All possible states of ImageEncoding
+	 */
+	private static ImageEncoding[] allValues = {
+			ORIGINAL, WEBP
+	};
+
+	/**
+	 *
+	 */
+	public static ImageEncoding getFromInt(int myValue) throws IllegalArgumentException {
+		if ((myValue >= 0) && (myValue < allValues.length)) {
+			return allValues[myValue];
+		}
+
+		throw new IllegalArgumentException("invalid ImageEncoding int: " + myValue);
+	}
+
+	/**
+	 *
+	 */
+	private static String[] valueNames = {
+			"original", "webp"
+	};
+
+	/**
+	 *
+	 */
+	public static ImageEncoding getFromString(String myEncoding) throws IllegalArgumentException {
+		for (ImageEncoding encoding : ImageEncoding.values()) {
+			if (valueNames[encoding.asInt()].equals(myEncoding)) {
+				return encoding;
+			}
+		}
+
+		throw new IllegalArgumentException("invalid ImageEncoding string: " + myEncoding);
+	}
+
+	/**
+	 *
+	 */
+	private int value = 0;
+	private String ending;
+	private String contentType;
+
+	/**
+	 *
+	 */
+	ImageEncoding(int myValue, String myEnding, String myContentType) {
+		value = myValue;
+		ending = myEnding;
+		contentType = myContentType;
+	}
+
+	/**
+	 *
+	 */
+	public int asInt() {
+		return value;
+	}
+
+	/**
+	 *
+	 */
+	public String asString() {
+		return valueNames[value];
+	}
+
+	/**
+	 *
+	 */
+	public ImageEncoding[] getAllValues() {
+		return allValues;
+	}
+
+	/**
+	 *
+	 */
+	public String getTypeName() {
+		return "ImageEncoding";
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isOriginal() {
+		return this == ORIGINAL;
+	}
+
+	/**
+	 * Returns the file ending, e.g. "webp"; null for ORIGINAL, whose ending is the one of the photo.
+	 *
+	 * @methodtype get
+	 */
+	public String getEnding() {
+		return ending;
+	}
+
+	/**
+	 * Returns the MIME type, e.g. "image/webp"; null for ORIGINAL, whose type is the one of the photo.
+	 *
+	 * @methodtype get
+	 */
+	public String getContentType() {
+		return contentType;
+	}
+
+}
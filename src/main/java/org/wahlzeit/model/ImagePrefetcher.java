@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import com.google.apphosting.api.ApiProxy;
+import org.wahlzeit.services.LogBuilder;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * An ImagePrefetcher loads renditions into the ImageCache in the background, before the browser asks for them.
+ * Prefetching is a best effort: requests are dropped if the queue is full, and a rendition that is requested before
+ * it has been prefetched is simply loaded on demand. The App Engine API environment of the requesting thread is passed
+ * on to the prefetch threads, as loading a rendition calls the datastore or the images service.
+ *
+ * Prefetching is off by default, as it needs an environment that permits background threads. It can be configured
+ * through the system properties "org.wahlzeit.imagePrefetcher.enabled", "org.wahlzeit.imagePrefetcher.threads", and
+ * "org.wahlzeit.imagePrefetcher.queueSize".
+ */
+public class ImagePrefetcher {
+
+	private static final Logger log = Logger.getLogger(ImagePrefetcher.class.getName());
+
+	/**
+	 *
+	 */
+	public static final String ENABLED_PROPERTY = "org.wahlzeit.imagePrefetcher.enabled";
+	public static final String THREADS_PROPERTY = "org.wahlzeit.imagePrefetcher.threads";
+	public static final String QUEUE_SIZE_PROPERTY = "org.wahlzeit.imagePrefetcher.queueSize";
+
+	/**
+	 *
+	 */
+	public static final int DEFAULT_THREADS = 2;
+	public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+	/**
+	 *
+	 */
+	protected static ImagePrefetcher instance = null;
+
+	/**
+	 *
+	 */
+	protected final ThreadPoolExecutor executor;
+
+	/**
+	 * Renditions that are queued or being loaded, to avoid loading the same rendition twice
+	 */
+	protected final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 *
+	 */
+	protected ImagePrefetcher(int threads, int queueSize) {
+		executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new PrefetchThreadFactory(), new DiscardPrefetchPolicy());
+	}
+
+	/**
+	 * Returns the prefetcher or null if prefetching is disabled.
+	 *
+	 * @methodtype get
+	 */
+	public static synchronized ImagePrefetcher getInstance() {
+		if (instance == null && Boolean.getBoolean(ENABLED_PROPERTY)) {
+			int threads = Integer.getInteger(THREADS_PROPERTY, DEFAULT_THREADS);
+			int queueSize = Integer.getInteger(QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE);
+			log.config(LogBuilder.createSystemMessage().
+					addAction("create ImagePrefetcher").
+					addParameter("threads", threads).
+					addParameter("queue size", queueSize).toString());
+			instance = new ImagePrefetcher(threads, queueSize);
+		}
+		return instance;
+	}
+
+	/**
+	 * Convenience method that does nothing if prefetching is disabled.
+	 *
+	 * @methodtype command
+	 */
+	public static void prefetchIfEnabled(PhotoId id, PhotoSize size) {
+		ImagePrefetcher prefetcher = getInstance();
+		if (prefetcher != null) {
+			prefetcher.prefetch(id, size);
+		}
+	}
+
+	/**
+	 * Stops the background threads; pending prefetches are dropped.
+	 *
+	 * @methodtype command
+	 */
+	public static synchronized void shutDown() {
+		if (instance != null) {
+			instance.executor.shutdownNow();
+			instance = null;
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void prefetch(PhotoId id, PhotoSize size) {
+		if (ImageCache.getInstance().contains(id, size)) {
+			return;
+		}
+
+		PrefetchTask task = new PrefetchTask(id, size);
+		if (pending.add(task.key)) {
+			executor.execute(task);
+		}
+	}
+
+	/**
+	 * Loads the rendition through the PhotoManager, which puts it into the ImageCache.
+	 *
+	 * @methodtype command
+	 */
+	protected void loadImage(PhotoId photoId, PhotoSize photoSize) {
+		PhotoManager.getInstance().getImageData(photoId, photoSize);
+	}
+
+	/**
+	 * Loads one rendition with the API environment of the thread that requested it.
+	 */
+	protected class PrefetchTask implements Runnable {
+
+		/**
+		 *
+		 */
+		protected final PhotoId photoId;
+		protected final PhotoSize photoSize;
+		protected final String key;
+		protected final ApiProxy.Environment environment;
+
+		/**
+		 *
+		 */
+		protected PrefetchTask(PhotoId myPhotoId, PhotoSize myPhotoSize) {
+			photoId = myPhotoId;
+			photoSize = myPhotoSize;
+			key = photoId.asString() + "-" + photoSize.asInt();
+			environment = ApiProxy.getCurrentEnvironment();
+		}
+
+		/**
+		 *
+		 */
+		public void run() {
+			ApiProxy.Environment previous = ApiProxy.getCurrentEnvironment();
+			if (environment != null) {
+				ApiProxy.setEnvironmentForCurrentThread(environment);
+			}
+			try {
+				loadImage(photoId, photoSize);
+			} catch (Exception e) {
+				log.warning(LogBuilder.createSystemMessage().
+						addParameter("photo ID", photoId.asString()).
+						addParameter("size", photoSize.asString()).
+						addException("Problem when prefetching image", e).toString());
+			} finally {
+				pending.remove(key);
+				if (previous != null) {
+					ApiProxy.setEnvironmentForCurrentThread(previous);
+				} else {
+					ApiProxy.clearEnvironmentForCurrentThread();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops prefetches that do not fit into the queue, so that a later request may try again.
+	 */
+	protected class DiscardPrefetchPolicy implements RejectedExecutionHandler {
+
+		/**
+		 *
+		 */
+		public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+			if (runnable instanceof PrefetchTask) {
+				pending.remove(((PrefetchTask) runnable).key);
+			}
+		}
+	}
+
+	/**
+	 * Creates daemon threads, so that prefetching never keeps the application from shutting down.
+	 */
+	protected static class PrefetchThreadFactory implements ThreadFactory {
+
+		/**
+		 *
+		 */
+		protected final AtomicInteger threadCount = new AtomicInteger();
+
+		/**
+		 *
+		 */
+		public Thread newThread(Runnable runnable) {
+			Thread result = new Thread(runnable, "image-prefetcher-" + threadCount.incrementAndGet());
+			result.setDaemon(true);
+			return result;
+		}
+	}
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.model;
+
+import com.google.appengine.api.images.Image;
+
+import java.io.IOException;
+
+/**
+ * An ImageScaler resizes an image to a given size. Implementations must not change the source image, as it may be
+ * the source of further renditions, and must be safe to use from several threads.
+ */
+public interface ImageScaler {
+
+	/**
+	 * @methodtype factory
+	 */
+	Image scale(Image source, int targetWidth, int targetHeight) throws IOException;
+
+	/**
+	 * Returns the rendition in the encoding, or null if the scaler does not support the encoding.
+	 *
+	 * @methodtype conversion
+	 */
+	Image encode(Image rendition, ImageEncoding encoding) throws IOException;
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.model;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesService;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import com.google.appengine.api.images.OutputSettings;
+import com.google.appengine.api.images.Transform;
+
+/**
+ * An ImageScaler that uses the App Engine images service.
+ */
+public class ImagesServiceScaler implements ImageScaler {
+
+	/**
+	 * The images service replaces the data of the image it transforms, so the source data is wrapped in an image of
+	 * its own; the data is not copied.
+	 *
+	 * @methodtype factory
+	 */
+	public Image scale(Image source, int targetWidth, int targetHeight) {
+		ImagesService imagesService = ImagesServiceFactory.getImagesService();
+		Transform resize = ImagesServiceFactory.makeResize(targetWidth, targetHeight);
+		return imagesService.applyTransform(resize, ImagesServiceFactory.makeImage(source.getImageData()));
+	}
+
+	/**
+	 * The images service needs a transform, so the rendition is resized to its own size.
+	 *
+	 * @methodtype conversion
+	 */
+	public Image encode(Image rendition, ImageEncoding encoding) {
+		if (encoding != ImageEncoding.WEBP) {
+			return null;
+		}
+
+		ImagesService imagesService = ImagesServiceFactory.getImagesService();
+		Transform resize = ImagesServiceFactory.makeResize(rendition.getWidth(), rendition.getHeight());
+		OutputSettings settings = new OutputSettings(ImagesService.OutputEncoding.WEBP);
+		return imagesService.applyTransform(resize, ImagesServiceFactory.makeImage(rendition.getImageData()), settings);
+	}
+
+}
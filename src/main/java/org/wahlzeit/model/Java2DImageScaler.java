@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.model;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * An ImageScaler that scales with Java 2D and needs no App Engine service, so that renditions can be created and
+ * benchmarked locally. Like the images service, it encodes its results as PNG.
+ *
+ * For SPEED, the image is scaled in one bilinear step. For QUALITY, it is halved with bicubic interpolation until
+ * it is less than twice the target size, and then scaled to the target, which avoids the aliasing of a single large
+ * step.
+ */
+public class Java2DImageScaler implements ImageScaler {
+
+	/**
+	 *
+	 */
+	public static final String OUTPUT_FORMAT = "png";
+
+	/**
+	 *
+	 */
+	protected final RenditionPipeline.Quality quality;
+
+	/**
+	 *
+	 */
+	public Java2DImageScaler(RenditionPipeline.Quality myQuality) {
+		quality = myQuality;
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	public Image scale(Image source, int targetWidth, int targetHeight) throws IOException {
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(source.getImageData()));
+		if (image == null) {
+			throw new IOException("Unsupported image format");
+		}
+
+		BufferedImage result;
+		if (quality == RenditionPipeline.Quality.QUALITY) {
+			result = image;
+			while (result.getWidth() >= 2 * targetWidth && result.getHeight() >= 2 * targetHeight) {
+				result = resize(result, result.getWidth() / 2, result.getHeight() / 2,
+						RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+			}
+			result = resize(result, targetWidth, targetHeight, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+		} else {
+			result = resize(image, targetWidth, targetHeight, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(result, OUTPUT_FORMAT, out);
+		return ImagesServiceFactory.makeImage(out.toByteArray());
+	}
+
+	/**
+	 * Java 2D only encodes what an installed ImageIO plugin can write; without a WebP plugin, null is returned.
+	 *
+	 * @methodtype conversion
+	 */
+	public Image encode(Image rendition, ImageEncoding encoding) throws IOException {
+		if (encoding.isOriginal() || !ImageIO.getImageWritersByFormatName(encoding.getEnding()).hasNext()) {
+			return null;
+		}
+
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(rendition.getImageData()));
+		if (image == null) {
+			throw new IOException("Unsupported image format");
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, encoding.getEnding(), out);
+		return ImagesServiceFactory.makeImage(out.toByteArray());
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	protected BufferedImage resize(BufferedImage image, int width, int height, Object interpolation) {
+		int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+		BufferedImage result = new BufferedImage(width, height, type);
+		Graphics2D graphics = result.createGraphics();
+		try {
+			graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+			graphics.drawImage(image, 0, 0, width, height, null);
+		} finally {
+			graphics.dispose();
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import org.wahlzeit.utils.DesignPattern;
+
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+/**
+ * Evicts the least recently used photo first and admits every new photo.
+ */
+@DesignPattern(
+		name = "Strategy",
+		participants = {"ConcreteStrategy"}
+)
+public class LruPhotoCacheEvictionPolicy implements PhotoCacheEvictionPolicy {
+
+	/**
+	 * Access-ordered, so iteration starts with the least recently used id
+	 */
+	protected final LinkedHashMap<PhotoId, Boolean> order = new LinkedHashMap<PhotoId, Boolean>(64, 0.75f, true);
+
+	/**
+	 *
+	 */
+	public synchronized void recordAccess(PhotoId id) {
+		order.get(id);
+	}
+
+	/**
+	 *
+	 */
+	public synchronized void recordInsertion(PhotoId id) {
+		order.put(id, Boolean.TRUE);
+	}
+
+	/**
+	 *
+	 */
+	public synchronized void recordRemoval(PhotoId id) {
+		order.remove(id);
+	}
+
+	/**
+	 * Walks the ids from the least recently used one and stops at the first that is not excluded, so only the
+	 * excluded ids are skipped.
+	 */
+	public synchronized PhotoId getEvictionCandidate(Set<PhotoId> excluded) {
+		for (PhotoId id : order.keySet()) {
+			if (!excluded.contains(id)) {
+				return id;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 *
+	 */
+	public boolean admit(PhotoId candidate, PhotoId victim) {
+		return true;
+	}
+
+	/**
+	 *
+	 */
+	public synchronized void clear() {
+		order.clear();
+	}
+
+}
@@ -163,6 +163,10 @@ public interface ModelConfig extends Configuration, Serializable {
 	// SHOW_USER_PROFILE_FORM
 	String getNoPhotoUploaded();
 
+	String getPhotoIsBeingProcessed();
+
+	String getPhotoProcessingFailed();
+
 	// SHOW_USER_PHOTO_FORM
 	String getNoCharacterName();
 
@@ -26,13 +26,17 @@ import com.google.appengine.api.images.Image;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
 import com.googlecode.objectify.annotation.Ignore;
+import com.googlecode.objectify.annotation.Index;
 import com.googlecode.objectify.annotation.Parent;
+import com.googlecode.objectify.condition.IfTrue;
 import org.wahlzeit.services.DataObject;
 import org.wahlzeit.services.EmailAddress;
 import org.wahlzeit.services.Language;
 import org.wahlzeit.services.ObjectManager;
 import org.wahlzeit.utils.DesignPattern;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -52,6 +56,7 @@ public class Photo extends DataObject {
 	public static final String THUMB = "thumb";
 	public static final String LINK = "link";
 	public static final String PRAISE = "praise";
+	public static final String HAS_UNREPORTED_PRAISE = "hasUnreportedPraise";
 	public static final String NO_VOTES = "noVotes";
 	public static final String CAPTION = "caption";
 	public static final String DESCRIPTION = "description";
@@ -77,6 +82,10 @@ public class Photo extends DataObject {
 	 */
 	public Location location = null;
 
+	/**
+	 * Indexed, so that a single photo can be loaded from the datastore when it is not cached
+	 */
+	@Index
 	protected PhotoId id = null;
 	
 	/**
@@ -86,10 +95,24 @@ public class Photo extends DataObject {
 	
 	/**
 	 * Each photo can be viewed in different sizes (XS, S, M, L, XL)
-	 * Images are pre-computed in these sizes to optimize bandwidth when requested.
+	 * Images are pre-computed in these sizes to optimize bandwidth when requested. A photo only holds the images that
+	 * have not been written to the ImageStorage yet; persisted images are served from the ImageCache.
 	 */
 	@Ignore
 	transient protected Map<PhotoSize, Image> images = new ArrayMap<PhotoSize, Image>();
+
+	/**
+	 * Images in additional encodings, e.g. WebP, that have not been written to the ImageStorage yet
+	 */
+	@Ignore
+	transient protected Map<ImageEncoding, Map<PhotoSize, Image>> encodedImages =
+			new ArrayMap<ImageEncoding, Map<PhotoSize, Image>>();
+
+	/**
+	 * When the PhotoManager last checked the datastore for a newer processing state of this photo
+	 */
+	@Ignore
+	transient protected volatile long lastRefreshTimeMillis = 0;
 	
 	/**
 	 *
@@ -104,6 +127,34 @@ public class Photo extends DataObject {
 	protected int width;
 	protected int height;
 	protected PhotoSize maxPhotoSize = PhotoSize.MEDIUM; // derived
+
+	/**
+	 * Manifest of the sizes whose images are in the ImageStorage, one bit per PhotoSize. 0 means unknown, as for
+	 * photos stored before the manifest existed.
+	 */
+	protected int storedSizes = 0;
+
+	/**
+	 * Manifest of the additional encodings in the ImageStorage, one bit per PhotoSize and encoding other than ORIGINAL
+	 */
+	protected int storedEncodings = 0;
+
+	/**
+	 * Content hashes of the images, indexed by PhotoSize; computed when the images are set, i.e. at upload time, and
+	 * used as ETags. Empty for sizes without image and for photos uploaded before hashes existed.
+	 */
+	protected List<String> imageHashes = new ArrayList<String>();
+
+	/**
+	 * Content hash of the uploaded original, under which the renditions are stored and shared with identical uploads;
+	 * null for photos stored before, whose renditions are stored under their id.
+	 */
+	protected String contentId = null;
+
+	/**
+	 * Whether the reference count of the content includes this photo; updated when the photo is written
+	 */
+	protected boolean isContentReferenced = false;
 	
 	/**
 	 *
@@ -114,6 +165,11 @@ public class Photo extends DataObject {
 	 *
 	 */
 	protected PhotoStatus status = PhotoStatus.VISIBLE;
+
+	/**
+	 * Photos stored before uploads were processed in the background have no state and are ready
+	 */
+	protected PhotoProcessingState processingState = PhotoProcessingState.READY;
 	
 	/**
 	 *
@@ -121,6 +177,12 @@ public class Photo extends DataObject {
 	protected int praiseSum = 10;
 	protected int noVotes = 1;
 	protected int noVotesAtLastNotification = 1;
+
+	/**
+	 * Mirrors hasNewPraise(), so that praised photos can be queried; only indexed while true
+	 */
+	@Index(IfTrue.class)
+	protected boolean hasUnreportedPraise = false;
 	
 	/**
 	 *
@@ -170,6 +232,92 @@ public class Photo extends DataObject {
 	 */
 	public void setImage(PhotoSize photoSize, Image image) {
 		this.images.put(photoSize, image);
+		setImageHash(photoSize, PhotoUtil.computeImageHash(image.getImageData()));
+	}
+
+	/**
+	 * Returns the content hash of the image in the size, or null if it is unknown.
+	 *
+	 * @methodtype get
+	 */
+	public String getImageHash(PhotoSize photoSize) {
+		int index = photoSize.asInt();
+		if (imageHashes == null || index >= imageHashes.size() || "".equals(imageHashes.get(index))) {
+			return null;
+		}
+		return imageHashes.get(index);
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	protected void setImageHash(PhotoSize photoSize, String hash) {
+		if (imageHashes == null) {
+			imageHashes = new ArrayList<String>();
+		}
+		int index = photoSize.asInt();
+		while (imageHashes.size() <= index) {
+			imageHashes.add("");
+		}
+		imageHashes.set(index, hash);
+		incWriteCount();
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void removeImage(PhotoSize photoSize) {
+		this.images.remove(photoSize);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public Image getImage(PhotoSize photoSize, ImageEncoding encoding) {
+		if (encoding.isOriginal()) {
+			return getImage(photoSize);
+		}
+		Map<PhotoSize, Image> sizes = getEncodedImages().get(encoding);
+		return (sizes != null) ? sizes.get(photoSize) : null;
+	}
+
+	/**
+	 * Sets the image of the size in an additional encoding. Its ETag is derived from the hash of the original, so it
+	 * is not hashed itself.
+	 *
+	 * @methodtype set
+	 */
+	public void setEncodedImage(PhotoSize photoSize, ImageEncoding encoding, Image image) {
+		Map<PhotoSize, Image> sizes = getEncodedImages().get(encoding);
+		if (sizes == null) {
+			sizes = new ArrayMap<PhotoSize, Image>();
+			getEncodedImages().put(encoding, sizes);
+		}
+		sizes.put(photoSize, image);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void removeImage(PhotoSize photoSize, ImageEncoding encoding) {
+		if (encoding.isOriginal()) {
+			removeImage(photoSize);
+			return;
+		}
+		Map<PhotoSize, Image> sizes = getEncodedImages().get(encoding);
+		if (sizes != null) {
+			sizes.remove(photoSize);
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected Map<ImageEncoding, Map<PhotoSize, Image>> getEncodedImages() {
+		if (encodedImages == null) {
+			encodedImages = new ArrayMap<ImageEncoding, Map<PhotoSize, Image>>();
+		}
+		return encodedImages;
 	}
 
 	/**
@@ -324,6 +472,68 @@ public class Photo extends DataObject {
 		return maxPhotoSize.asInt() >= size.asInt();
 	}
 
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean hasStoredSizes() {
+		return storedSizes != 0;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean hasStoredImage(PhotoSize size) {
+		return (storedSizes & (1 << size.asInt())) != 0;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void addStoredImage(PhotoSize size) {
+		if (!hasStoredImage(size)) {
+			storedSizes |= 1 << size.asInt();
+			incWriteCount();
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean hasStoredImage(PhotoSize size, ImageEncoding encoding) {
+		if (encoding.isOriginal()) {
+			return hasStoredImage(size);
+		}
+		return (storedEncodings & getStoredEncodingBit(size, encoding)) != 0;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void addStoredImage(PhotoSize size, ImageEncoding encoding) {
+		if (encoding.isOriginal()) {
+			addStoredImage(size);
+		} else if (!hasStoredImage(size, encoding)) {
+			storedEncodings |= getStoredEncodingBit(size, encoding);
+			incWriteCount();
+		}
+	}
+
+	/**
+	 * Returns true if the image of the size is available in the encoding, either stored or not yet written.
+	 *
+	 * @methodtype boolean-query
+	 */
+	public boolean hasEncoding(PhotoSize size, ImageEncoding encoding) {
+		return hasStoredImage(size, encoding) || getImage(size, encoding) != null;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected static int getStoredEncodingBit(PhotoSize size, ImageEncoding encoding) {
+		return 1 << ((encoding.asInt() - 1) * PhotoSize.values().length + size.asInt());
+	}
+
 	/**
 	 * @methodtype get
 	 */
@@ -351,6 +561,7 @@ public class Photo extends DataObject {
 	public void addToPraise(int value) {
 		praiseSum += value;
 		noVotes += 1;
+		hasUnreportedPraise = true;
 		incWriteCount();
 	}
 
@@ -358,7 +569,7 @@ public class Photo extends DataObject {
 	 * @methodtype boolean-query
 	 */
 	public boolean isVisible() {
-		return status.isDisplayable();
+		return status.isDisplayable() && isReady();
 	}
 
 	/**
@@ -376,6 +587,79 @@ public class Photo extends DataObject {
 		incWriteCount();
 	}
 
+	/**
+	 * @methodtype get
+	 */
+	public String getContentId() {
+		return contentId;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setContentId(String newContentId) {
+		contentId = newContentId;
+		incWriteCount();
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean hasContentId() {
+		return contentId != null;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isContentReferenced() {
+		return isContentReferenced;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setContentReferenced(boolean newContentReferenced) {
+		isContentReferenced = newContentReferenced;
+		incWriteCount();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public PhotoProcessingState getProcessingState() {
+		return (processingState == null) ? PhotoProcessingState.READY : processingState;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getLastRefreshTimeMillis() {
+		return lastRefreshTimeMillis;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setLastRefreshTimeMillis(long newLastRefreshTimeMillis) {
+		lastRefreshTimeMillis = newLastRefreshTimeMillis;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setProcessingState(PhotoProcessingState newProcessingState) {
+		processingState = newProcessingState;
+		incWriteCount();
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isReady() {
+		return getProcessingState().isReady();
+	}
+
 	/**
 	 * @methodtype boolean-query
 	 */
@@ -410,6 +694,13 @@ public class Photo extends DataObject {
 		return ending;
 	}
 
+	/**
+	 * @methodtype get
+	 */
+	public String getContentType() {
+		return PhotoUtil.getContentType(ending);
+	}
+
 	public void setEnding(String ending) {
 		this.ending = ending;
 	}
@@ -426,6 +717,7 @@ public class Photo extends DataObject {
 	 */
 	public void setNoNewPraise() {
 		noVotesAtLastNotification = noVotes;
+		hasUnreportedPraise = false;
 		incWriteCount();
 	}
 }
@@ -0,0 +1,405 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import com.google.appengine.api.images.Image;
+import org.wahlzeit.services.LogBuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A thread-safe, bounded in-memory cache for photos. The cache is bounded both by the number of entries and by the
+ * estimated number of bytes the cached photos occupy; which photo has to go is decided by a pluggable
+ * PhotoCacheEvictionPolicy. Dirty photos are never evicted, as they would lose changes that have not been persisted.
+ *
+ * The budget can be configured through the system properties "org.wahlzeit.photoCache.maxEntries",
+ * "org.wahlzeit.photoCache.maxBytes", and "org.wahlzeit.photoCache.evictionPolicy" (lru or tinylfu).
+ */
+public class PhotoCache {
+
+	private static final Logger log = Logger.getLogger(PhotoCache.class.getName());
+
+	/**
+	 *
+	 */
+	public static final String MAX_ENTRIES_PROPERTY = "org.wahlzeit.photoCache.maxEntries";
+	public static final String MAX_BYTES_PROPERTY = "org.wahlzeit.photoCache.maxBytes";
+	public static final String EVICTION_POLICY_PROPERTY = "org.wahlzeit.photoCache.evictionPolicy";
+
+	/**
+	 *
+	 */
+	public static final String LRU_POLICY = "lru";
+	public static final String TINY_LFU_POLICY = "tinylfu";
+
+	/**
+	 *
+	 */
+	public static final long DEFAULT_MAX_ENTRIES = 10000;
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024; // = 64 MB
+
+	/**
+	 * Rough estimate of the heap taken by a photo without its images
+	 */
+	public static final long PHOTO_BASE_WEIGHT = 1024;
+
+	/**
+	 *
+	 */
+	protected final ConcurrentMap<PhotoId, Photo> photos = new ConcurrentHashMap<PhotoId, Photo>();
+	protected final ConcurrentMap<PhotoId, Long> weights = new ConcurrentHashMap<PhotoId, Long>();
+
+	/**
+	 *
+	 */
+	protected final long maxEntries;
+	protected final long maxBytes;
+	protected final PhotoCacheEvictionPolicy evictionPolicy;
+
+	/**
+	 *
+	 */
+	protected final AtomicLong weightedSize = new AtomicLong();
+	protected final AtomicLong hitCount = new AtomicLong();
+	protected final AtomicLong missCount = new AtomicLong();
+	protected final AtomicLong evictionCount = new AtomicLong();
+
+	/**
+	 * Guards all modifications; reads do not need it
+	 */
+	protected final Object evictionLock = new Object();
+
+	/**
+	 * Creates a cache configured from the system properties, falling back to the defaults.
+	 */
+	public PhotoCache() {
+		this(Long.getLong(MAX_ENTRIES_PROPERTY, DEFAULT_MAX_ENTRIES),
+				Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES),
+				System.getProperty(EVICTION_POLICY_PROPERTY, LRU_POLICY));
+	}
+
+	/**
+	 *
+	 */
+	public PhotoCache(long myMaxEntries, long myMaxBytes, String policyName) {
+		this(myMaxEntries, myMaxBytes, createEvictionPolicy(policyName, myMaxEntries));
+	}
+
+	/**
+	 *
+	 */
+	public PhotoCache(long myMaxEntries, long myMaxBytes, PhotoCacheEvictionPolicy myEvictionPolicy) {
+		assertIsPositive(myMaxEntries, "maxEntries");
+		assertIsPositive(myMaxBytes, "maxBytes");
+		if (myEvictionPolicy == null) {
+			throw new IllegalArgumentException("eviction policy should not be null");
+		}
+
+		maxEntries = myMaxEntries;
+		maxBytes = myMaxBytes;
+		evictionPolicy = myEvictionPolicy;
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	public static PhotoCacheEvictionPolicy createEvictionPolicy(String policyName, long expectedEntries) {
+		if (TINY_LFU_POLICY.equalsIgnoreCase(policyName)) {
+			return new TinyLfuPhotoCacheEvictionPolicy(expectedEntries);
+		} else if (LRU_POLICY.equalsIgnoreCase(policyName)) {
+			return new LruPhotoCacheEvictionPolicy();
+		}
+
+		throw new IllegalArgumentException("unknown photo cache eviction policy: " + policyName);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public Photo get(PhotoId id) {
+		Photo result = photos.get(id);
+		if (result != null) {
+			hitCount.incrementAndGet();
+			evictionPolicy.recordAccess(id);
+		} else {
+			missCount.incrementAndGet();
+		}
+		return result;
+	}
+
+	/**
+	 * Adds the photo to the cache and evicts other photos if the cache is over budget afterwards. A clean photo may
+	 * not be kept if the eviction policy considers it less valuable than the photos already cached.
+	 *
+	 * @methodtype command
+	 */
+	public void put(Photo photo) {
+		PhotoId id = photo.getId();
+		long weight = weigh(photo);
+
+		synchronized (evictionLock) {
+			Long oldWeight = weights.put(id, weight);
+			photos.put(id, photo);
+			weightedSize.addAndGet(weight - ((oldWeight != null) ? oldWeight : 0));
+			evictionPolicy.recordInsertion(id);
+
+			evictIfNecessary(id);
+		}
+	}
+
+	/**
+	 * Recomputes the weight of the photo if it is cached, e.g. after its images have been handed over to the
+	 * ImageCache.
+	 *
+	 * @methodtype command
+	 */
+	public void updateWeight(Photo photo) {
+		PhotoId id = photo.getId();
+		long weight = weigh(photo);
+
+		synchronized (evictionLock) {
+			if (photos.get(id) == photo) {
+				Long oldWeight = weights.put(id, weight);
+				weightedSize.addAndGet(weight - ((oldWeight != null) ? oldWeight : 0));
+			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public Photo remove(PhotoId id) {
+		synchronized (evictionLock) {
+			Photo result = photos.remove(id);
+			if (result != null) {
+				Long weight = weights.remove(id);
+				if (weight != null) {
+					weightedSize.addAndGet(-weight);
+				}
+				evictionPolicy.recordRemoval(id);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Returns true if this very instance of the photo is cached, rather than another one with the same id.
+	 *
+	 * @methodtype boolean-query
+	 */
+	public boolean contains(Photo photo) {
+		return photos.get(photo.getId()) == photo;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean containsKey(PhotoId id) {
+		return photos.containsKey(id);
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isFull() {
+		return photos.size() >= maxEntries || weightedSize.get() >= maxBytes;
+	}
+
+	/**
+	 * Returns a snapshot of the cached photos.
+	 *
+	 * @methodtype get
+	 */
+	public Collection<Photo> values() {
+		return new ArrayList<Photo>(photos.values());
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void clear() {
+		synchronized (evictionLock) {
+			photos.clear();
+			weights.clear();
+			weightedSize.set(0);
+			evictionPolicy.clear();
+		}
+	}
+
+	/**
+	 * Must be called while holding the evictionLock.
+	 *
+	 * @methodtype command
+	 */
+	protected void evictIfNecessary(PhotoId candidate) {
+		Set<PhotoId> skipped = new HashSet<PhotoId>();
+		skipped.add(candidate);
+		while (isOverBudget()) {
+			PhotoId victimId = evictionPolicy.getEvictionCandidate(skipped);
+			if (victimId == null) {
+				Photo newPhoto = photos.get(candidate);
+				if (newPhoto != null && !newPhoto.isDirty()) {
+					evict(candidate);
+				}
+				return; // only dirty photos left, have to stay over budget until they are saved
+			}
+
+			Photo victim = photos.get(victimId);
+			if (victim == null || victim.isDirty()) {
+				skipped.add(victimId);
+				continue;
+			}
+
+			Photo newPhoto = photos.get(candidate);
+			if (newPhoto != null && !newPhoto.isDirty() && !evictionPolicy.admit(candidate, victimId)) {
+				victimId = candidate;
+			}
+
+			evict(victimId);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void evict(PhotoId id) {
+		if (remove(id) != null) {
+			evictionCount.incrementAndGet();
+			log.config(LogBuilder.createSystemMessage().
+					addAction("evict photo from cache").
+					addParameter("photo ID", id.asString()).toString());
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	protected boolean isOverBudget() {
+		return photos.size() > maxEntries || weightedSize.get() > maxBytes;
+	}
+
+	/**
+	 * Estimates the heap taken by the photo including all its images.
+	 *
+	 * @methodtype get
+	 */
+	protected long weigh(Photo photo) {
+		long result = PHOTO_BASE_WEIGHT;
+		for (PhotoSize size : PhotoSize.values()) {
+			Image image = photo.getImage(size);
+			if (image != null) {
+				result += image.getImageData().length;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype assertion
+	 */
+	protected static void assertIsPositive(long value, String label) {
+		if (value <= 0) {
+			throw new IllegalArgumentException(label + " should be positive");
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int size() {
+		return photos.size();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getWeightedSize() {
+		return weightedSize.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public PhotoCacheEvictionPolicy getEvictionPolicy() {
+		return evictionPolicy;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public double getHitRate() {
+		long hits = getHitCount();
+		long requests = hits + getMissCount();
+		return (requests == 0) ? 1.0 : (double) hits / requests;
+	}
+
+	/**
+	 *
+	 */
+	@Override
+	public String toString() {
+		return "PhotoCache[entries=" + size() + "/" + maxEntries + ", bytes=" + getWeightedSize() + "/" + maxBytes +
+				", hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+	}
+
+}
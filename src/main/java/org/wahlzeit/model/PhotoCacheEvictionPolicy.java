@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import org.wahlzeit.utils.DesignPattern;
+
+import java.util.Set;
+
+/**
+ * A PhotoCacheEvictionPolicy decides which photos a bounded PhotoCache gives up when it runs out of budget.
+ * Implementations are notified about every access, insertion, and removal and must be thread-safe.
+ */
+@DesignPattern(
+		name = "Strategy",
+		participants = {"Strategy"}
+)
+public interface PhotoCacheEvictionPolicy {
+
+	/**
+	 * @methodtype command
+	 */
+	void recordAccess(PhotoId id);
+
+	/**
+	 * @methodtype command
+	 */
+	void recordInsertion(PhotoId id);
+
+	/**
+	 * @methodtype command
+	 */
+	void recordRemoval(PhotoId id);
+
+	/**
+	 * Returns the best victim among the cached photo ids that are not excluded, or null if there is none.
+	 *
+	 * @methodtype get
+	 */
+	PhotoId getEvictionCandidate(Set<PhotoId> excluded);
+
+	/**
+	 * Decides whether the newly inserted candidate is worth keeping at the expense of the victim.
+	 *
+	 * @methodtype boolean-query
+	 */
+	boolean admit(PhotoId candidate, PhotoId victim);
+
+	/**
+	 * @methodtype command
+	 */
+	void clear();
+
+}
@@ -20,8 +20,13 @@
 
 package org.wahlzeit.model;
 
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
 import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.ObjectManager;
+import org.wahlzeit.services.OfyService;
 import org.wahlzeit.utils.DesignPattern;
+
 import java.util.logging.Logger;
 
 
@@ -93,19 +98,18 @@ public class PhotoFactory {
 	}
 
 	/**
-	 * Loads a photo. The Java object is loaded from the Google Datastore, the Images in all sizes are loaded from the
-	 * Google Cloud storage.
+	 * Loads a photo. The Java object is loaded from the Google Datastore, the Images are loaded by the PhotoManager
+	 * from the ImageStorage. Returns null if there is no such photo.
 	 */
-	public Photo loadPhoto(PhotoId id) {
-	   /* Photo result =
-                OfyService.ofy().load().type(Photo.class).ancestor(KeyFactory.createKey("Application", "Wahlzeit")).filter(Photo.ID, id).first().now();
-        for (PhotoSize size : PhotoSize.values()) {
-            GcsFilename gcsFilename = new GcsFilename("picturebucket", filename);
-
-
-
-        }*/
-		return null;
+	public Photo loadPhoto(final PhotoId id) {
+		log.config(LogBuilder.createSystemMessage().addParameter("Load photo from datastore", id.asString()).toString());
+		return ObjectifyService.run(new Work<Photo>() {
+			@Override
+			public Photo run() {
+				return OfyService.ofy().load().type(Photo.class).ancestor(ObjectManager.applicationRootKey).
+						filter(Photo.ID + ".value", id.asInt()).first().now();
+			}
+		});
 	}
 
 
@@ -20,13 +20,12 @@
 
 package org.wahlzeit.model;
 
+import org.roaringbitmap.RoaringBitmap;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.utils.StringUtil;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
 import java.util.logging.Logger;
@@ -52,11 +51,15 @@ public class PhotoFilter implements Serializable {
 	protected Tags tags = Tags.EMPTY_TAGS;
 
 	/**
-	 *
+	 * Photo ids as ints in compressed bitmaps, which keeps filtering fast and the session state small
 	 */
-	protected List<PhotoId> displayablePhotoIds;
-	protected List<PhotoId> processedPhotoIds = new LinkedList<PhotoId>();
-	protected List<PhotoId> skippedPhotoIds = new LinkedList<PhotoId>();
+	protected RoaringBitmap processedPhotoIds = new RoaringBitmap();
+	protected RoaringBitmap skippedPhotoIds = new RoaringBitmap();
+
+	/**
+	 * Number of random draws before falling back to computing all displayable photos
+	 */
+	protected static final int MAX_SAMPLING_ATTEMPTS = 32;
 
 	/**
 	 *
@@ -67,7 +70,7 @@ public class PhotoFilter implements Serializable {
 	 *
 	 */
 	public PhotoFilter() {
-		resetDisplayablePhotoIds();
+		// do nothing
 	}
 
 	/**
@@ -83,7 +86,6 @@ public class PhotoFilter implements Serializable {
 	public void clear() {
 		setUserName("");
 		setTags(Tags.EMPTY_TAGS);
-		displayablePhotoIds.clear();
 		processedPhotoIds.clear();
 	}
 
@@ -92,7 +94,6 @@ public class PhotoFilter implements Serializable {
 	 */
 	public void setUserName(String newUserName) {
 		userName = newUserName;
-		resetDisplayablePhotoIds();
 	}
 
 	/**
@@ -107,7 +108,6 @@ public class PhotoFilter implements Serializable {
 	 */
 	public void setTags(Tags newTags) {
 		tags = newTags;
-		resetDisplayablePhotoIds();
 	}
 
 	/**
@@ -137,50 +137,45 @@ public class PhotoFilter implements Serializable {
 	}
 
 	/**
-	 * @methodtype command
-	 */
-	public void generateDisplayablePhotoIds() {
-		displayablePhotoIds = getFilteredPhotoIds();
-	}
-
-	/**
-	 * Get a random photo that has not been rated. If possible avoid skipped photos.
+	 * Get a uniformly random photo that has not been rated. If possible avoid skipped photos.
 	 */
 	public PhotoId getRandomDisplayablePhotoId() {
-		if (!displayablePhotoIds.isEmpty()) {
-			int size = displayablePhotoIds.size();
-			int index = ((randomNumber.nextInt() % size) + size) / 2;
-			return displayablePhotoIds.get(index);
-		} else {
-			return PhotoId.NULL_ID;
-		}
+		return sampleDisplayablePhotoId(getMatchingPhotoIds(), PhotoManager.getInstance().getVisiblePhotoIds());
 	}
 
 	/**
+	 * Draws random ranks from the matching photo ids and returns the first photo that is displayable. Rejection
+	 * sampling keeps the distribution uniform and, as long as most matching photos are displayable, needs neither the
+	 * list of displayable photos nor any other allocation. Only if too many draws are rejected are the displayable
+	 * photos computed.
 	 *
+	 * @methodtype helper
 	 */
-	public List<PhotoId> getDisplayablePhotoIds() {
-		return displayablePhotoIds;
-	}
+	protected PhotoId sampleDisplayablePhotoId(RoaringBitmap matchingPhotoIds, RoaringBitmap visiblePhotoIds) {
+		int size = matchingPhotoIds.getCardinality();
+		if (size == 0) {
+			return PhotoId.NULL_ID;
+		}
 
-	/**
-	 *
-	 */
-	public void setDisplayablePhotoIds(List<PhotoId> newPhotoIds) {
-		displayablePhotoIds = newPhotoIds;
-	}
+		for (int i = 0; i < MAX_SAMPLING_ATTEMPTS; i++) {
+			int photoInt = matchingPhotoIds.select(randomNumber.nextInt(size));
+			if (visiblePhotoIds.contains(photoInt) && !processedPhotoIds.contains(photoInt) &&
+					!skippedPhotoIds.contains(photoInt)) {
+				return PhotoId.getIdFromInt(photoInt);
+			}
+		}
 
-	/**
-	 *
-	 */
-	public void resetDisplayablePhotoIds() {
-		displayablePhotoIds = new ArrayList<PhotoId>();
+		RoaringBitmap photoIds = getFilteredPhotoIds(matchingPhotoIds, visiblePhotoIds);
+		if (photoIds.isEmpty()) {
+			return PhotoId.NULL_ID;
+		}
+		return PhotoId.getIdFromInt(photoIds.select(randomNumber.nextInt(photoIds.getCardinality())));
 	}
 
 	/**
 	 *
 	 */
-	public List<PhotoId> getProcessedPhotoIds() {
+	public RoaringBitmap getProcessedPhotoIds() {
 		return processedPhotoIds;
 	}
 
@@ -188,37 +183,30 @@ public class PhotoFilter implements Serializable {
 	 *
 	 */
 	public boolean isProcessedPhotoId(PhotoId photoId) {
-		log.info("photoId: " + photoId.asString());
-		for (PhotoId id : processedPhotoIds) {
-			log.info("Processed id: " + id.asString());
-		}
-		return processedPhotoIds.contains(photoId);
+		return processedPhotoIds.contains(photoId.asInt());
 	}
 
 	/**
 	 *
 	 */
 	public void addProcessedPhoto(Photo photo) {
-		PhotoId photoId = photo.getId();
-		processedPhotoIds.add(photoId);
-		skippedPhotoIds.remove(photoId);
-		if (displayablePhotoIds != null) {
-			displayablePhotoIds.remove(photoId);
-		}
+		int photoInt = photo.getId().asInt();
+		processedPhotoIds.add(photoInt);
+		skippedPhotoIds.remove(photoInt);
 	}
 
 
 	/**
 	 * @methodtype get
 	 */
-	public List<PhotoId> getSkippedPhotoIds() {
+	public RoaringBitmap getSkippedPhotoIds() {
 		return skippedPhotoIds;
 	}
 
 	/**
 	 * @methodtype set
 	 */
-	public void setSkippedPhotoIds(List<PhotoId> skippedPhotoIds) {
+	public void setSkippedPhotoIds(RoaringBitmap skippedPhotoIds) {
 		this.skippedPhotoIds = skippedPhotoIds;
 	}
 
@@ -226,52 +214,41 @@ public class PhotoFilter implements Serializable {
 	 * @methodtype set
 	 */
 	public void addSkippedPhotoId(PhotoId skippedPhotoId) {
-		if (!skippedPhotoIds.contains(skippedPhotoId)) {
-			skippedPhotoIds.add(skippedPhotoId);
-		}
+		skippedPhotoIds.add(skippedPhotoId.asInt());
 	}
 
 	/**
-	 *
+	 * Returns the ids of all photos that match all filter conditions, whether visible or not. The bitmap must not be
+	 * modified.
 	 */
-	protected List<PhotoId> getFilteredPhotoIds() {
-		// get all tags that match the filter conditions
-		List<PhotoId> result = new LinkedList<PhotoId>();
-		int noFilterConditions = getFilterConditions().size();
+	protected RoaringBitmap getMatchingPhotoIds() {
+		List<String> filterConditions = getFilterConditions();
 		log.config(LogBuilder.createSystemMessage().
-				addParameter("Number of filter conditions", String.valueOf(noFilterConditions)).toString());
+				addParameter("Number of filter conditions", String.valueOf(filterConditions.size())).toString());
 
-		Collection<PhotoId> candidates;
-		if (noFilterConditions == 0) {
-			candidates = PhotoManager.getInstance().getPhotoCache().keySet();
+		PhotoManager photoManager = PhotoManager.getInstance();
+		if (filterConditions.isEmpty()) {
+			return photoManager.getVisiblePhotoIds();
+		} else if (filterConditions.size() == 1) {
+			return photoManager.getTagIndex().getPostingList(filterConditions.get(0));
 		} else {
-			List<Tag> tags = new LinkedList<Tag>();
-			candidates = new LinkedList<PhotoId>();
-			for (String condition : getFilterConditions()) {
-				PhotoManager.getInstance().addTagsThatMatchCondition(tags, condition);
-			}
-			// get the list of all photo ids that correspond to the tags
-			for (Tag tag : tags) {
-				candidates.add(PhotoId.getIdFromString(tag.getPhotoId()));
-			}
+			return photoManager.getTagIndex().getPhotoIdsMatchingAll(filterConditions);
 		}
+	}
 
-		int newPhotos = 0;
-		for (PhotoId candidateId : candidates) {
-			Photo photoCandidate = PhotoManager.getInstance().getPhoto(candidateId);
-			if (!processedPhotoIds.contains(candidateId) && !skippedPhotoIds.contains(candidateId) &&
-					photoCandidate.isVisible()) {
-				result.add(candidateId);
-				++newPhotos;
-			}
-		}
-		int skippedPhotos = skippedPhotoIds.size();
-		if (newPhotos == 0 && skippedPhotos > 0) {
-			result.addAll(skippedPhotoIds);
-			newPhotos = skippedPhotos;
+	/**
+	 * Computes matching AND visible ANDNOT processed ANDNOT skipped. If that is empty, the skipped photos that still
+	 * match are shown again.
+	 */
+	protected RoaringBitmap getFilteredPhotoIds(RoaringBitmap matchingPhotoIds, RoaringBitmap visiblePhotoIds) {
+		RoaringBitmap candidates = RoaringBitmap.and(matchingPhotoIds, visiblePhotoIds);
+		RoaringBitmap result = RoaringBitmap.andNot(candidates, processedPhotoIds);
+		result.andNot(skippedPhotoIds);
+		if (result.isEmpty()) {
+			result = RoaringBitmap.and(candidates, skippedPhotoIds);
 		}
 
-		log.config(LogBuilder.createSystemMessage().addParameter("Number of photos to show", newPhotos)
+		log.config(LogBuilder.createSystemMessage().addParameter("Number of photos to show", result.getCardinality())
 				.toString());
 
 		return result;
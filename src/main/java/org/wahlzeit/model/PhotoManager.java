@@ -21,23 +21,30 @@
 package org.wahlzeit.model;
 
 import com.google.appengine.api.images.Image;
+import com.googlecode.objectify.Key;
 import com.googlecode.objectify.ObjectifyService;
 import com.googlecode.objectify.Work;
+import org.roaringbitmap.RoaringBitmap;
 import org.wahlzeit.model.persistence.ImageStorage;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.services.ObjectManager;
+import org.wahlzeit.services.OfyService;
 import org.wahlzeit.services.Persistent;
+import org.wahlzeit.services.WriteBehindQueue;
 
 import java.io.IOException;
-import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 /**
@@ -52,21 +59,56 @@ public class PhotoManager extends ObjectManager {
 
 	private static final Logger log = Logger.getLogger(PhotoManager.class.getName());
 
+	/**
+	 * Minimum time between two checks whether a pending or failed photo has been processed by another instance
+	 */
+	public static final long STALE_PHOTO_REFRESH_INTERVAL_MILLIS = 10 * 1000;
+
 	/**
 	 * In-memory cache for photos
 	 */
-	protected Map<PhotoId, Photo> photoCache = new HashMap<PhotoId, Photo>();
+	protected PhotoCache photoCache = new PhotoCache();
+
+	/**
+	 * Ids of all photos, whether they are currently cached or not
+	 */
+	protected Set<PhotoId> photoIds = Collections.newSetFromMap(new ConcurrentHashMap<PhotoId, Boolean>());
 
 	/**
 	 *
 	 */
 	protected PhotoTagCollector photoTagCollector = null;
 
+	/**
+	 * In-memory inverted index from tags to photos, used for filtering
+	 */
+	protected TagIndex tagIndex = new TagIndex();
+
+	/**
+	 * Serializes the tag updates of a photo, which store the difference to the tags in the index; a photo uses the
+	 * lock of its stripe, so that updates of other photos need not wait for its datastore writes
+	 */
+	protected static final int TAGS_LOCK_STRIPES = 64;
+	protected final Object[] tagsLocks = new Object[TAGS_LOCK_STRIPES];
+
+	/**
+	 * Ids of all visible photos; replaced rather than modified, so readers need no locking
+	 */
+	protected volatile RoaringBitmap visiblePhotoIds = new RoaringBitmap();
+
+	/**
+	 *
+	 */
+	protected final Object visibilityLock = new Object();
+
 	/**
 	 *
 	 */
 	public PhotoManager() {
 		photoTagCollector = PhotoFactory.getInstance().createPhotoTagCollector();
+		for (int i = 0; i < tagsLocks.length; i++) {
+			tagsLocks[i] = new Object();
+		}
 	}
 
 	/**
@@ -98,7 +140,9 @@ public class PhotoManager extends ObjectManager {
 	}
 
 	/**
-	 *
+	 * Returns the photo from the cache; on a cache miss the photo is loaded from the datastore. A cached photo that is
+	 * pending or failed may have been processed by another instance since, e.g. by a retried task, so it is refreshed
+	 * from the datastore, at most once per STALE_PHOTO_REFRESH_INTERVAL_MILLIS.
 	 */
 	public Photo getPhotoFromId(PhotoId id) {
 		if (id == null) {
@@ -106,11 +150,15 @@ public class PhotoManager extends ObjectManager {
 		}
 
 		Photo result = doGetPhotoFromId(id);
+		if (result != null && isStaleCandidate(result) && isRefreshDue(result)) {
+			result = refreshPhoto(result);
+		}
 
 		if (result == null) {
 			result = PhotoFactory.getInstance().loadPhoto(id);
 			if (result != null) {
 				doAddPhoto(result);
+				ImagePrefetcher.prefetchIfEnabled(id, PhotoSize.THUMB);
 			}
 		}
 
@@ -125,12 +173,67 @@ public class PhotoManager extends ObjectManager {
 		return photoCache.get(id);
 	}
 
+	/**
+	 * Photos being processed on this instance or with unsaved changes are never stale.
+	 *
+	 * @methodtype boolean-query
+	 */
+	protected boolean isStaleCandidate(Photo photo) {
+		PhotoProcessingState state = photo.getProcessingState();
+		return (state == PhotoProcessingState.PENDING || state == PhotoProcessingState.FAILED) && !photo.isDirty();
+	}
+
+	/**
+	 * Returns whether the refresh interval of the photo has passed, and if so, starts a new one.
+	 *
+	 * @methodtype boolean-query
+	 */
+	protected boolean isRefreshDue(Photo photo) {
+		long now = getCurrentTimeMillis();
+		if (now - photo.getLastRefreshTimeMillis() < STALE_PHOTO_REFRESH_INTERVAL_MILLIS) {
+			return false;
+		}
+		photo.setLastRefreshTimeMillis(now);
+		return true;
+	}
+
+	/**
+	 * Replaces the cached photo with the stored one if that has been processed meanwhile, i.e. is ready or failed
+	 * while the cached one is not; returns the photo to use.
+	 *
+	 * @methodtype command
+	 */
+	protected Photo refreshPhoto(Photo cachedPhoto) {
+		Photo storedPhoto = PhotoFactory.getInstance().loadPhoto(cachedPhoto.getId());
+		if (storedPhoto == null || storedPhoto.getProcessingState() == cachedPhoto.getProcessingState()) {
+			return cachedPhoto;
+		}
+
+		PhotoProcessingState state = storedPhoto.getProcessingState();
+		if (state != PhotoProcessingState.READY && state != PhotoProcessingState.FAILED) {
+			return cachedPhoto;
+		}
+
+		storedPhoto.setLastRefreshTimeMillis(cachedPhoto.getLastRefreshTimeMillis());
+		log.config(LogBuilder.createSystemMessage().
+				addParameter("Refreshed photo", storedPhoto.getIdAsString()).
+				addParameter("processing state", state.asString()).toString());
+		doAddPhoto(storedPhoto);
+		if (storedPhoto.isReady()) {
+			// the tags have been stored by the instance that processed the photo
+			tagIndex.updatePhoto(storedPhoto.getId(), collectTags(storedPhoto));
+		}
+		return storedPhoto;
+	}
+
 	/**
 	 * @methodtype command
 	 * @methodproperties primitive
 	 */
 	protected void doAddPhoto(Photo myPhoto) {
-		photoCache.put(myPhoto.getId(), myPhoto);
+		photoIds.add(myPhoto.getId());
+		updateVisibility(myPhoto);
+		photoCache.put(myPhoto);
 	}
 
 	/**
@@ -150,31 +253,136 @@ public class PhotoManager extends ObjectManager {
 	/**
 	 * @methodtype command
 	 *
-	 * Load all persisted photos. Executed when Wahlzeit is restarted.
+	 * Load all persisted photos. Executed when Wahlzeit is restarted. Only as many photos as fit into the cache are
+	 * kept in memory, the others are loaded on demand. Images are not loaded here but on their first request.
 	 */
 	public void loadPhotos() {
-		Collection<Photo> existingPhotos = ObjectifyService.run(new Work<Collection<Photo>>() {
+		final Collection<Photo> existingPhotos = new ArrayList<Photo>();
+		final Collection<Tag> existingTags = new ArrayList<Tag>();
+		ObjectifyService.run(new Work<Void>() {
 			@Override
-			public Collection<Photo> run() {
-				Collection<Photo> existingPhotos = new ArrayList<Photo>();
+			public Void run() {
 				readObjects(existingPhotos, Photo.class);
-				return existingPhotos;
+				indexPhotoIds(existingPhotos);
+				readObjects(existingTags, Tag.class);
+				return null;
 			}
 		});
 
+		// the tag index is the record of the stored tags, so it is built from them rather than from the photos
+		List<Tag> duplicateTags = new ArrayList<Tag>();
+		Map<String, Set<String>> storedTagsByPhoto = groupStoredTags(existingTags, duplicateTags);
+
+		// the bitmaps are built in place and published once, rather than copied for every photo
+		List<Photo> loadedPhotos = new ArrayList<Photo>();
+		List<Photo> divergedPhotos = new ArrayList<Photo>();
+		Map<PhotoId, Set<String>> tagsByPhoto = new HashMap<PhotoId, Set<String>>();
 		for (Photo photo : existingPhotos) {
 			if (!doHasPhoto(photo.getId())) {
 				log.config(LogBuilder.createSystemMessage().
 						addParameter("Load Photo with ID", photo.getIdAsString()).toString());
-				loadScaledImages(photo);
-				doAddPhoto(photo);
+				photoIds.add(photo.getId());
+				loadedPhotos.add(photo);
+				// the tags of photos still being processed have not been stored yet; processPhoto() indexes them
+				if (photo.isReady()) {
+					Set<String> storedTags = storedTagsByPhoto.get(photo.getIdAsString());
+					if (storedTags == null) {
+						storedTags = new HashSet<String>();
+					}
+					tagsByPhoto.put(photo.getId(), storedTags);
+					if (!storedTags.equals(collectTags(photo))) {
+						divergedPhotos.add(photo);
+					}
+				}
+				if (!photoCache.isFull()) {
+					doAddPhoto(photo);
+					ImagePrefetcher.prefetchIfEnabled(photo.getId(), PhotoSize.THUMB);
+				}
 			} else {
 				log.config(LogBuilder.createSystemMessage().
 						addParameter("Already loaded Photo", photo.getIdAsString()).toString());
 			}
 		}
+		updateVisibility(loadedPhotos);
+		tagIndex.updatePhotos(tagsByPhoto);
+		reconcileTags(divergedPhotos, duplicateTags);
+
+		log.info(LogBuilder.createSystemMessage().addMessage("All photos loaded.").
+				addParameter("photo cache", photoCache).toString());
+	}
 
-		log.info(LogBuilder.createSystemMessage().addMessage("All photos loaded.").toString());
+	/**
+	 * Returns the texts of the stored tags by photo id string. Tags stored more than once for a photo are added to
+	 * duplicates.
+	 *
+	 * @methodtype conversion
+	 */
+	protected Map<String, Set<String>> groupStoredTags(Collection<Tag> storedTags, List<Tag> duplicates) {
+		Map<String, Set<String>> result = new HashMap<String, Set<String>>();
+		for (Tag tag : storedTags) {
+			Set<String> tags = result.get(tag.getPhotoId());
+			if (tags == null) {
+				tags = new HashSet<String>();
+				result.put(tag.getPhotoId(), tags);
+			}
+			if (!tags.add(tag.getText())) {
+				duplicates.add(tag);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Brings the stored tags of photos whose tags differ from them, e.g. after a failed update, up to date, and deletes
+	 * duplicate tags. The tag index must hold the stored tags of the photos.
+	 *
+	 * @methodtype command
+	 */
+	protected void reconcileTags(final Collection<Photo> divergedPhotos, final Collection<Tag> duplicateTags) {
+		if (divergedPhotos.isEmpty() && duplicateTags.isEmpty()) {
+			return;
+		}
+
+		log.info(LogBuilder.createSystemMessage().
+				addParameter("Reconcile tags of photos", divergedPhotos.size()).
+				addParameter("Delete duplicate tags", duplicateTags.size()).toString());
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				OfyService.ofy().delete().entities(duplicateTags).now();
+				for (Photo photo : divergedPhotos) {
+					updateTags(photo);
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Photos stored before their id was indexed cannot be found by PhotoFactory.loadPhoto() once they are evicted from
+	 * the cache. Those photos are saved again, which adds them to the index; afterwards, this only costs a keys-only
+	 * query at startup.
+	 *
+	 * @methodtype command
+	 */
+	protected void indexPhotoIds(Collection<Photo> existingPhotos) {
+		Set<Key<Photo>> indexedPhotos = new HashSet<Key<Photo>>(OfyService.ofy().load().type(Photo.class).
+				filter(Photo.ID + ".value >=", 0).keys().list());
+		List<Photo> unindexedPhotos = new ArrayList<Photo>();
+		for (Photo photo : existingPhotos) {
+			if (!indexedPhotos.contains(Key.create(photo))) {
+				unindexedPhotos.add(photo);
+			}
+		}
+
+		if (!unindexedPhotos.isEmpty()) {
+			log.info(LogBuilder.createSystemMessage().
+					addParameter("Index ids of stored photos", unindexedPhotos.size()).toString());
+			for (int from = 0; from < unindexedPhotos.size(); from += WRITE_BATCH_SIZE) {
+				int to = Math.min(from + WRITE_BATCH_SIZE, unindexedPhotos.size());
+				OfyService.ofy().save().entities(unindexedPhotos.subList(from, to)).now();
+			}
+		}
 	}
 
 	/**
@@ -186,36 +394,215 @@ public class PhotoManager extends ObjectManager {
 	}
 
 	/**
-	 * @methodtype command
+	 * @methodtype get
+	 */
+	protected long getCurrentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public Set<PhotoId> getPhotoIds() {
+		return Collections.unmodifiableSet(photoIds);
+	}
+
+	/**
+	 * @methodtype get
 	 *
-	 * Loads all scaled Images of this Photo from Google Cloud Storage
+	 * Returns the image data of the rendition or null if it does not exist.
 	 */
-	protected void loadScaledImages(Photo photo) {
-		String photoIdAsString = photo.getId().asString();
-		ImageStorage imageStorage = ImageStorage.getInstance();
+	public ByteBuffer getImageData(PhotoId id, PhotoSize photoSize) {
+		return getImageData(id, photoSize, ImageEncoding.ORIGINAL);
+	}
 
-		for (PhotoSize photoSize : PhotoSize.values()) {
-			log.config(LogBuilder.createSystemMessage().
-					addAction("loading image").
-					addParameter("image size", photoSize.asString()).
-					addParameter("photo ID", photoIdAsString).toString());
-			if (imageStorage.doesImageExist(photoIdAsString, photoSize.asInt())) {
-				try {
-					Serializable rawImage = imageStorage.readImage(photoIdAsString, photoSize.asInt());
-					if (rawImage != null && rawImage instanceof Image) {
-						photo.setImage(photoSize, (Image) rawImage);
-					}
-				} catch (IOException e) {
-					log.warning(LogBuilder.createSystemMessage().
-							addParameter("size", photoSize.asString()).
-							addParameter("photo ID", photoIdAsString).
-							addException("Could not load image although it exists", e).toString());
-				}
-			} else {
-				log.config(LogBuilder.createSystemMessage().
-						addParameter("Size does not exist", photoSize.asString()).toString());
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the image data of the rendition in the encoding or null if it does not exist. Renditions are served from
+	 * the ImageCache, from the not yet persisted images of the photo, or loaded from the ImageStorage on first request.
+	 */
+	public ByteBuffer getImageData(PhotoId id, PhotoSize photoSize, ImageEncoding encoding) {
+		ImageCache imageCache = ImageCache.getInstance();
+		ByteBuffer result = imageCache.get(id, photoSize, encoding);
+		if (result != null) {
+			return result;
+		}
+
+		Photo photo = getPhoto(id);
+		if (photo != null) {
+			Image image = photo.getImage(photoSize, encoding);
+			if (image != null) {
+				return ByteBuffer.wrap(image.getImageData());
+			}
+			if (!encoding.isOriginal() && !photo.hasStoredImage(photoSize, encoding)) {
+				return null;
+			}
+			if (photo.hasStoredSizes() && !photo.hasStoredImage(photoSize)) {
+				return null;
+			}
+		}
+
+		ByteBuffer imageData = loadScaledImage(id, photoSize, encoding);
+		if (imageData != null) {
+			imageCache.put(id, photoSize, encoding, imageData);
+			result = imageData.asReadOnlyBuffer();
+			if (photo != null && encoding.isOriginal() && !photo.hasStoredImage(photoSize)) {
+				// complete the manifest of photos stored before it existed
+				photo.addStoredImage(photoSize);
+				savePhotoLater(photo);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the length of the rendition in the encoding in bytes, or -1 if it does not exist.
+	 */
+	public long getImageDataLength(PhotoId id, PhotoSize photoSize, ImageEncoding encoding) {
+		if (ImageStorage.getInstance().hasPositionalReads() && !isImageInMemory(id, photoSize, encoding)) {
+			try {
+				return ImageStorage.getInstance().getImageDataLength(getStorageId(id, encoding), photoSize.asInt());
+			} catch (IOException e) {
+				log.warning(LogBuilder.createSystemMessage().
+						addParameter("size", photoSize.asString()).
+						addParameter("photo ID", id.asString()).
+						addException("Could not determine image length", e).toString());
+				return -1;
+			}
+		}
+
+		ByteBuffer imageData = getImageData(id, photoSize, encoding);
+		return (imageData != null) ? imageData.remaining() : -1;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Reads part of the rendition in the encoding, starting at the position, into the buffer. Returns the number of
+	 * bytes read or -1 at the end or if the rendition does not exist. Storages with positional reads only read the
+	 * requested part; for all others the rendition is loaded into the ImageCache once.
+	 */
+	public int readImageData(PhotoId id, PhotoSize photoSize, ImageEncoding encoding, long position,
+							 ByteBuffer target) {
+		if (ImageStorage.getInstance().hasPositionalReads() && !isImageInMemory(id, photoSize, encoding)) {
+			try {
+				return ImageStorage.getInstance().readImageData(getStorageId(id, encoding), photoSize.asInt(),
+						position, target);
+			} catch (IOException e) {
+				log.warning(LogBuilder.createSystemMessage().
+						addParameter("size", photoSize.asString()).
+						addParameter("photo ID", id.asString()).
+						addException("Could not read image", e).toString());
+				return -1;
 			}
 		}
+
+		ByteBuffer imageData = getImageData(id, photoSize, encoding);
+		if (imageData == null || position >= imageData.remaining()) {
+			return -1;
+		}
+		imageData.position(imageData.position() + (int) position);
+		if (imageData.remaining() > target.remaining()) {
+			imageData.limit(imageData.position() + target.remaining());
+		}
+		int result = imageData.remaining();
+		target.put(imageData);
+		return result;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 *
+	 * Returns true if the rendition in the encoding is in the ImageCache or pending in the Photo.
+	 */
+	protected boolean isImageInMemory(PhotoId id, PhotoSize photoSize, ImageEncoding encoding) {
+		if (ImageCache.getInstance().contains(id, photoSize, encoding)) {
+			return true;
+		}
+
+		Photo photo = getPhoto(id);
+		return photo != null && photo.getImage(photoSize, encoding) != null;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns a FileChannel on the stored rendition in the encoding if the ImageStorage is backed by files and the
+	 * rendition is neither cached nor pending, so that it can be streamed without being loaded. Returns null
+	 * otherwise; getImageData then provides the rendition. The caller must close the channel.
+	 */
+	public FileChannel openImageChannel(PhotoId id, PhotoSize photoSize, ImageEncoding encoding) {
+		if (isImageInMemory(id, photoSize, encoding)) {
+			return null;
+		}
+
+		try {
+			return ImageStorage.getInstance().openImageChannel(getStorageId(id, encoding), photoSize.asInt());
+		} catch (IOException e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("size", photoSize.asString()).
+					addParameter("photo ID", id.asString()).
+					addException("Could not open image", e).toString());
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the id under which the rendition of the photo with the id is kept in the ImageStorage.
+	 *
+	 * @methodtype conversion
+	 */
+	protected String getStorageId(PhotoId id, ImageEncoding encoding) {
+		Photo photo = getPhoto(id);
+		if (photo != null) {
+			return getStorageId(photo, encoding);
+		}
+		return encoding.isOriginal() ? id.asString() : id.asString() + "." + encoding.getEnding();
+	}
+
+	/**
+	 * Returns the id under which the rendition in the encoding is kept in the ImageStorage: the content id of the
+	 * photo, or the photo id for photos without one, e.g. "x1abz", for the original encoding, and the same id with
+	 * the ending for others, e.g. "x1abz.webp". Photos with the same content thus share their renditions.
+	 *
+	 * @methodtype conversion
+	 */
+	protected static String getStorageId(Photo photo, ImageEncoding encoding) {
+		return getStorageId(photo.hasContentId() ? photo.getContentId() : photo.getIdAsString(), encoding);
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected static String getStorageId(String id, ImageEncoding encoding) {
+		return encoding.isOriginal() ? id : id + "." + encoding.getEnding();
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Loads the data of one scaled Image of the Photo from the ImageStorage. Returns null if it does not exist.
+	 */
+	protected ByteBuffer loadScaledImage(PhotoId id, PhotoSize photoSize, ImageEncoding encoding) {
+		String storageId = getStorageId(id, encoding);
+		log.config(LogBuilder.createSystemMessage().
+				addAction("loading image").
+				addParameter("image size", photoSize.asString()).
+				addParameter("photo ID", storageId).toString());
+
+		try {
+			return ImageStorage.getInstance().readImageData(storageId, photoSize.asInt());
+		} catch (IOException e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("size", photoSize.asString()).
+					addParameter("photo ID", storageId).
+					addException("Could not load image", e).toString());
+		}
+
+		return null;
 	}
 
 	/**
@@ -225,12 +612,80 @@ public class PhotoManager extends ObjectManager {
 		updateObject(photo);
 	}
 
+	/**
+	 * Prepares the photo before it is written.
+	 */
+	@Override
+	protected void writeObject(Persistent object) {
+		if (object.isDirty()) {
+			prepareWrite(object);
+		}
+		super.writeObject(object);
+	}
+
+	/**
+	 * Prepares the photos before they are written.
+	 */
+	@Override
+	protected PendingWrites writeObjectsAsync(Collection<? extends Persistent> objects) {
+		for (Persistent object : objects) {
+			if (object.isDirty()) {
+				prepareWrite(object);
+			}
+		}
+		return super.writeObjectsAsync(objects);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Brings what depends on the state of the Photo (obj) up to date before it is written: the visible photo ids and
+	 * the reference to its content.
+	 */
+	protected void prepareWrite(Persistent object) {
+		if (object instanceof Photo) {
+			Photo photo = (Photo) object;
+			updateVisibilityIfManaged(photo);
+			updateContentReference(photo);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Adds or removes the reference of the photo to its content if it has been created, deleted, or restored since
+	 * the reference was last counted. The photo is saved together with the reference count.
+	 */
+	protected void updateContentReference(Photo photo) {
+		if (photo.hasContentId() && photo.isContentReferenced() == photo.getStatus().isDeleted()) {
+			ImageContentManager.getInstance().updateReference(photo);
+		}
+	}
+
+	/**
+	 * Saves the photo through the write-behind queue, coalescing it with other changes of the same photo.
+	 */
+	public void savePhotoLater(Photo photo) {
+		updateVisibilityIfManaged(photo);
+		WriteBehindQueue.getInstance().enqueue(this, photo);
+	}
+
 	@Override
 	protected void updateDependents(Persistent obj) {
 		if (obj instanceof Photo) {
 			Photo photo = (Photo) obj;
-			saveScaledImages(photo);
-			updateTags(photo);
+			// renditions and tags of a photo that is still being processed are stored by processPhoto()
+			if (photo.isReady()) {
+				if (saveScaledImages(photo)) {
+					// the photo has already been written, so save the changed manifest separately
+					OfyService.ofy().save().entity(photo).now();
+					if (photo.hasContentId()) {
+						ImageContentManager.getInstance().completeContent(photo);
+					}
+				}
+				photoCache.updateWeight(photo);
+				updateTags(photo);
+			}
 			UserManager userManager = UserManager.getInstance();
 			Client owner = userManager.getClientById(photo.getOwnerId());
 			userManager.saveClient(owner);
@@ -238,10 +693,81 @@ public class PhotoManager extends ObjectManager {
 	}
 
 	/**
-	 * @methodtype helper
+	 * @methodtype get
+	 *
+	 * Returns the ids of all visible photos. The bitmap must not be modified.
+	 */
+	public RoaringBitmap getVisiblePhotoIds() {
+		return visiblePhotoIds;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Updates the visible photo ids if the photo is the instance this manager holds. Other instances, e.g. stored
+	 * photos loaded for a query, are detached copies that must not change them.
+	 */
+	protected void updateVisibilityIfManaged(Photo photo) {
+		if (photoCache.contains(photo)) {
+			updateVisibility(photo);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Adds the photo to or removes it from the visible photo ids, depending on its status.
 	 */
-	public List<Tag> addTagsThatMatchCondition(List<Tag> tags, String condition) {
-		readObjects(tags, Tag.class, Tag.TEXT, condition);
+	public void updateVisibility(Photo photo) {
+		int photoInt = photo.getId().asInt();
+		boolean isVisible = photo.isVisible();
+		synchronized (visibilityLock) {
+			if (visiblePhotoIds.contains(photoInt) == isVisible) {
+				return;
+			}
+
+			RoaringBitmap newVisiblePhotoIds = visiblePhotoIds.clone();
+			if (isVisible) {
+				newVisiblePhotoIds.add(photoInt);
+			} else {
+				newVisiblePhotoIds.remove(photoInt);
+			}
+			visiblePhotoIds = newVisiblePhotoIds;
+		}
+	}
+
+	/**
+	 * Like updateVisibility for many photos at once; the visible photo ids are copied only once.
+	 *
+	 * @methodtype command
+	 */
+	public void updateVisibility(Collection<Photo> photos) {
+		synchronized (visibilityLock) {
+			RoaringBitmap newVisiblePhotoIds = visiblePhotoIds.clone();
+			for (Photo photo : photos) {
+				if (photo.isVisible()) {
+					newVisiblePhotoIds.add(photo.getId().asInt());
+				} else {
+					newVisiblePhotoIds.remove(photo.getId().asInt());
+				}
+			}
+			visiblePhotoIds = newVisiblePhotoIds;
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public TagIndex getTagIndex() {
+		return tagIndex;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected Set<String> collectTags(Photo photo) {
+		Set<String> tags = new HashSet<String>();
+		photoTagCollector.collect(tags, photo);
 		return tags;
 	}
 
@@ -249,11 +775,14 @@ public class PhotoManager extends ObjectManager {
 	 * @methodtype command
 	 *
 	 * Persists all available sizes of the Photo. If one size exceeds the limit of the persistence layer, e.g. > 1MB for
-	 * the Datastore, it is simply not persisted.
+	 * the Datastore, it is simply not persisted. Persisted images are handed over from the Photo to the ImageCache and
+	 * recorded in the manifest of the Photo. Returns true if the manifest changed.
 	 */
-	protected void saveScaledImages(Photo photo) {
-		String photoIdAsString = photo.getId().asString();
+	protected boolean saveScaledImages(Photo photo) {
+		boolean result = false;
+		String storageId = getStorageId(photo, ImageEncoding.ORIGINAL);
 		ImageStorage imageStorage = ImageStorage.getInstance();
+		ImageCache imageCache = ImageCache.getInstance();
 		PhotoSize photoSize;
 		int it = 0;
 		boolean moreSizesExist = true;
@@ -263,9 +792,13 @@ public class PhotoManager extends ObjectManager {
 			Image image = photo.getImage(photoSize);
 			if (image != null) {
 				try {
-					if (!imageStorage.doesImageExist(photoIdAsString, photoSize.asInt())) {
-						imageStorage.writeImage(image, photoIdAsString, photoSize.asInt());
+					if (!photo.hasStoredImage(photoSize)) {
+						imageStorage.writeImage(image, storageId, photoSize.asInt());
+						photo.addStoredImage(photoSize);
+						result = true;
 					}
+					imageCache.put(photo.getId(), photoSize, image.getImageData());
+					photo.removeImage(photoSize);
 				} catch (Exception e) {
 					log.warning(LogBuilder.createSystemMessage().
 							addException("Problem when storing image", e).toString());
@@ -277,37 +810,133 @@ public class PhotoManager extends ObjectManager {
 				moreSizesExist = false;
 			}
 		} while (it < PhotoSize.values().length && moreSizesExist);
+		return saveEncodedImages(photo) || result;
 	}
 
 	/**
-	 * Removes all tags of the Photo (obj) in the datastore that have been removed by the user and adds all new tags of
-	 * the photo to the datastore.
+	 * @methodtype command
+	 *
+	 * Persists the images of the Photo in additional encodings, like saveScaledImages() does for the original
+	 * encoding. Returns true if the manifest changed.
+	 */
+	protected boolean saveEncodedImages(Photo photo) {
+		boolean result = false;
+		ImageStorage imageStorage = ImageStorage.getInstance();
+		ImageCache imageCache = ImageCache.getInstance();
+		for (ImageEncoding encoding : ImageEncoding.values()) {
+			if (encoding.isOriginal()) {
+				continue;
+			}
+			for (PhotoSize photoSize : PhotoSize.values()) {
+				Image image = photo.getImage(photoSize, encoding);
+				if (image == null) {
+					continue;
+				}
+				try {
+					if (!photo.hasStoredImage(photoSize, encoding)) {
+						imageStorage.writeImage(image, getStorageId(photo, encoding), photoSize.asInt());
+						photo.addStoredImage(photoSize, encoding);
+						result = true;
+					}
+					imageCache.put(photo.getId(), photoSize, encoding, image.getImageData());
+					photo.removeImage(photoSize, encoding);
+				} catch (Exception e) {
+					log.warning(LogBuilder.createSystemMessage().
+							addParameter("encoding", encoding.asString()).
+							addException("Problem when storing image", e).toString());
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Brings the tags of the Photo (obj) in the datastore up to date. The tags in the index are the ones last stored,
+	 * as loadPhotos() builds it from the stored tags, so only the difference to the current tags is deleted and
+	 * written, each in one batch; nothing is done if the tags did not change. The index is updated right away, so
+	 * that no lock shared by other photos is held during the datastore writes, and reset if they fail, so that a
+	 * failed update is retried with the next save or repaired with the next load.
 	 */
 	protected void updateTags(Photo photo) {
-		// delete all existing tags, for the case that some have been removed
-		deleteObjects(Tag.class, Tag.PHOTO_ID, photo.getId().asString());
+		PhotoId id = photo.getId();
+		Set<String> tags = collectTags(photo);
+		synchronized (getTagsLock(id)) {
+			Set<String> oldTags = tagIndex.replaceTerms(id, tags);
+			if (oldTags.equals(tags)) {
+				return;
+			}
 
-		// add all current tags to the datastore
-		Set<String> tags = new HashSet<String>();
-		photoTagCollector.collect(tags, photo);
-		for (Iterator<String> i = tags.iterator(); i.hasNext(); ) {
-			Tag tag = new Tag(i.next(), photo.getId().asString());
-			log.config(LogBuilder.createSystemMessage().addParameter("Writing Tag", tag.asString()).toString());
-			writeObject(tag);
+			Set<String> removedTags = new HashSet<String>(oldTags);
+			removedTags.removeAll(tags);
+			List<Tag> addedTags = new ArrayList<Tag>();
+			for (String tag : tags) {
+				if (!oldTags.contains(tag)) {
+					addedTags.add(new Tag(tag, id.asString()));
+				}
+			}
+			log.config(LogBuilder.createSystemMessage().addParameter("Writing tags", addedTags.size()).
+					addParameter("Deleting tags", removedTags.size()).toString());
+			try {
+				deleteObjects(Tag.class, Tag.PHOTO_ID, id.asString(), Tag.TEXT, removedTags);
+				writeObjects(addedTags);
+			} catch (RuntimeException e) {
+				tagIndex.updatePhoto(id, oldTags);
+				throw e;
+			}
 		}
 	}
 
 	/**
-	 *
+	 * @methodtype get
+	 */
+	protected Object getTagsLock(PhotoId id) {
+		return tagsLocks[id.asInt() % TAGS_LOCK_STRIPES];
+	}
+
+	/**
+	 * Saves the cached photos and flushes the write-behind queue. The cache never evicts dirty photos, and dirty
+	 * photos that are not cached wait in the queue, so no change is left unsaved.
 	 */
 	public void savePhotos() throws IOException{
 		updateObjects(photoCache.values());
+		WriteBehindQueue.getInstance().flush();
+	}
+
+	/**
+	 * Returns the photos with praise that has not been reported to their owners yet. Cached photos are taken from the
+	 * cache, which may hold praise not yet written; the others are queried from the datastore.
+	 *
+	 * @methodtype get
+	 */
+	public Collection<Photo> getPhotosWithNewPraise() {
+		Map<PhotoId, Photo> result = new HashMap<PhotoId, Photo>();
+		for (Photo photo : photoCache.values()) {
+			if (photo.hasNewPraise()) {
+				result.put(photo.getId(), photo);
+			}
+		}
+
+		List<Photo> storedPhotos = new ArrayList<Photo>();
+		readObjects(storedPhotos, Photo.class, Photo.HAS_UNREPORTED_PRAISE, true);
+		for (Photo storedPhoto : storedPhotos) {
+			if (result.containsKey(storedPhoto.getId())) {
+				continue;
+			}
+			Photo photo = doGetPhotoFromId(storedPhoto.getId());
+			if (photo == null) {
+				photo = storedPhoto;
+			}
+			if (photo.hasNewPraise()) {
+				result.put(photo.getId(), photo);
+			}
+		}
+		return result.values();
 	}
 
 	/**
 	 * @methodtype get
 	 */
-	public Map<PhotoId, Photo> getPhotoCache() {
+	public PhotoCache getPhotoCache() {
 		return photoCache;
 	}
 
@@ -329,7 +958,6 @@ public class PhotoManager extends ObjectManager {
 	 *
 	 */
 	public Photo getVisiblePhoto(PhotoFilter filter) {
-		filter.generateDisplayablePhotoIds();
 		return getPhotoFromId(filter.getRandomDisplayablePhotoId());
 	}
 
@@ -343,6 +971,127 @@ public class PhotoManager extends ObjectManager {
 		return result;
 	}
 
+	/**
+	 * Creates a pending photo and stores the uploaded image as its original, so that the renditions can be created in
+	 * the background by processPhoto(). If the original cannot be stored, e.g. because it is too large for the
+	 * storage, the renditions are created right away and the photo is ready.
+	 *
+	 * The photo refers to the renditions of its content hash, if given; its reference is counted when it is first
+	 * written. If the same image has been uploaded and processed before, the photo shares its renditions and is ready
+	 * without storing or scaling anything.
+	 */
+	public Photo createPendingPhoto(String filename, Image uploadedImage, String contentHash) throws Exception {
+		PhotoId id = PhotoId.getNextId();
+		Photo result = PhotoUtil.createPendingPhoto(filename, id, uploadedImage);
+		if (contentHash != null) {
+			result.setContentId(contentHash);
+			ImageContent content = ImageContentManager.getInstance().getContent(contentHash);
+			if (content != null && content.isComplete()) {
+				content.copyManifestTo(result);
+				result.setProcessingState(PhotoProcessingState.READY);
+				log.config(LogBuilder.createSystemMessage().
+						addParameter("photo ID", id.asString()).
+						addParameter("Sharing renditions of content", contentHash).toString());
+				addPhoto(result);
+				return result;
+			}
+		}
+
+		try {
+			String storageId = getStorageId(result, ImageEncoding.ORIGINAL);
+			ImageStorage imageStorage = ImageStorage.getInstance();
+			// an identical original written just before may be missed, which only writes the same image again
+			if (contentHash == null || !imageStorage.doesImageExist(storageId, ImageStorage.ORIGINAL_SIZE)) {
+				imageStorage.writeImage(uploadedImage, storageId, ImageStorage.ORIGINAL_SIZE);
+			}
+		} catch (Exception e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("photo ID", id.asString()).
+					addException("Could not store original, creating renditions now", e).toString());
+			PhotoUtil.createImageFiles(uploadedImage, result);
+			result.setProcessingState(PhotoProcessingState.READY);
+		}
+		addPhoto(result);
+		return result;
+	}
+
+	/**
+	 * Runs the background stages of an upload: the renditions are created from the stored original, then the photo
+	 * is saved, which stores the renditions and indexes and stores the tags. If the renditions of the content have
+	 * been completed for an identical upload in the meantime, they are shared instead. Once the photo is ready, the
+	 * original is no longer needed and deleted. If a stage fails, the photo is marked as failed and the exception is
+	 * thrown, so that the task may be retried; after the last retry, discardOriginal() should be called.
+	 *
+	 * @methodtype command
+	 */
+	public void processPhoto(Photo photo) throws Exception {
+		if (photo.isReady()) {
+			return;
+		}
+
+		String photoIdAsString = photo.getId().asString();
+		photo.setProcessingState(PhotoProcessingState.PROCESSING);
+		try {
+			ImageContent content = null;
+			if (photo.hasContentId()) {
+				content = ImageContentManager.getInstance().getContent(photo.getContentId());
+			}
+			if (content != null && content.isComplete()) {
+				content.copyManifestTo(photo);
+			} else {
+				String storageId = getStorageId(photo, ImageEncoding.ORIGINAL);
+				Image original = (Image) ImageStorage.getInstance().readImage(storageId, ImageStorage.ORIGINAL_SIZE);
+				if (original != null) {
+					PhotoUtil.createImageFiles(original, photo);
+				} else {
+					// an identical upload may have been processed and deleted the original in the meantime
+					content = photo.hasContentId() ?
+							ImageContentManager.getInstance().getContent(photo.getContentId()) : null;
+					if (content == null || !content.isComplete()) {
+						throw new IOException("No original image for photo " + photoIdAsString);
+					}
+					content.copyManifestTo(photo);
+				}
+			}
+
+			photo.setProcessingState(PhotoProcessingState.READY);
+			savePhoto(photo);
+		} catch (Exception e) {
+			photo.setProcessingState(PhotoProcessingState.FAILED);
+			OfyService.ofy().save().entity(photo).now();
+			throw e;
+		}
+
+		discardOriginal(photo);
+
+		log.config(LogBuilder.createSystemMessage().addParameter("Processed photo", photoIdAsString).toString());
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Deletes the uploaded original of the photo, once it is ready or has finally failed. An original shared with
+	 * identical uploads is kept while they may still need it. A failure to delete is only logged, as it merely leaves
+	 * the original in the storage.
+	 */
+	public void discardOriginal(Photo photo) {
+		if (photo.hasContentId() && !ImageContentManager.getInstance().isOriginalDisposable(photo)) {
+			log.config(LogBuilder.createSystemMessage().
+					addParameter("photo ID", photo.getIdAsString()).
+					addParameter("Keeping shared original of content", photo.getContentId()).toString());
+			return;
+		}
+
+		String storageId = getStorageId(photo, ImageEncoding.ORIGINAL);
+		try {
+			ImageStorage.getInstance().deleteImage(storageId, ImageStorage.ORIGINAL_SIZE);
+		} catch (Exception e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("photo ID", photo.getIdAsString()).
+					addException("Could not delete original", e).toString());
+		}
+	}
+
 	/**
 	 * @methodtype command
 	 */
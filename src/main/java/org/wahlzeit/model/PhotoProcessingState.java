@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.model;
+
+import org.wahlzeit.utils.EnumValue;
+
+/**
+ * The PhotoProcessingState of a Photo tells how far its upload has been processed in the background. A photo is
+ * pending until its renditions are being created, and ready once they and its tags are stored; only ready photos
+ * are shown to other users.
+ */
+public enum PhotoProcessingState implements EnumValue {
+
+	/**
+	 *
+	 */
+	PENDING(0), PROCESSING(1), READY(2), FAILED(3);
+
+	/**
+	 * All possible states of PhotoProcessingState
+	 */
+	private static PhotoProcessingState[] allValues = {
+			PENDING, PROCESSING, READY, FAILED
+	};
+
+	/**
+	 *
+	 */
+	public static PhotoProcessingState getFromInt(int myValue) throws IllegalArgumentException {
+		if ((myValue >= 0) && (myValue < allValues.length)) {
+			return allValues[myValue];
+		}
+
+		throw new IllegalArgumentException("invalid PhotoProcessingState int: " + myValue);
+	}
+
+	/**
+	 *
+	 */
+	private static String[] valueNames = {
+			"pending", "processing", "ready", "failed"
+	};
+
+	/**
+	 *
+	 */
+	public static PhotoProcessingState getFromString(String myState) throws IllegalArgumentException {
+		for (PhotoProcessingState state : PhotoProcessingState.values()) {
+			if (valueNames[state.asInt()].equals(myState)) {
+				return state;
+			}
+		}
+
+		throw new IllegalArgumentException("invalid PhotoProcessingState string: " + myState);
+	}
+
+	/**
+	 *
+	 */
+	private int value = 0;
+
+	/**
+	 *
+	 */
+	PhotoProcessingState(int myValue) {
+		value = myValue;
+	}
+
+	/**
+	 *
+	 */
+	public int asInt() {
+		return value;
+	}
+
+	/**
+	 *
+	 */
+	public String asString() {
+		return valueNames[value];
+	}
+
+	/**
+	 *
+	 */
+	public PhotoProcessingState[] getAllValues() {
+		return allValues;
+	}
+
+	/**
+	 *
+	 */
+	public String getTypeName() {
+		return "PhotoProcessingState";
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isReady() {
+		return this == READY;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isFailed() {
+		return this == FAILED;
+	}
+
+}
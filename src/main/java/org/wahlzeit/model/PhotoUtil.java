@@ -21,11 +21,12 @@
 package org.wahlzeit.model;
 
 import com.google.appengine.api.images.Image;
-import com.google.appengine.api.images.ImagesService;
-import com.google.appengine.api.images.ImagesServiceFactory;
-import com.google.appengine.api.images.Transform;
-import org.wahlzeit.services.LogBuilder;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 /**
@@ -36,6 +37,16 @@ public class PhotoUtil {
 
 	private static final Logger log = Logger.getLogger(PhotoUtil.class.getName());
 
+	/**
+	 * Number of bytes of the digest used for image hashes
+	 */
+	protected static final int IMAGE_HASH_LENGTH = 16;
+
+	/**
+	 *
+	 */
+	protected static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
 	/**
 	 * @methodtype creation
 	 */
@@ -53,7 +64,91 @@ public class PhotoUtil {
 	}
 
 	/**
+	 * Creates a photo whose renditions are still to be created from the uploaded image, see
+	 * PhotoManager.processPhoto().
+	 *
+	 * @methodtype creation
+	 */
+	public static Photo createPendingPhoto(String filename, PhotoId id, Image uploadedImage) {
+		assertIsValidImage(uploadedImage);
+
+		int sourceWidth = uploadedImage.getWidth();
+		int sourceHeight = uploadedImage.getHeight();
+		assertHasValidSize(sourceWidth, sourceHeight);
+
+		Photo result = PhotoFactory.getInstance().createPhoto(id);
+		result.setEnding(filename.substring(filename.lastIndexOf(".") + 1));
+		result.setWidthAndHeight(sourceWidth, sourceHeight);
+		result.setProcessingState(PhotoProcessingState.PENDING);
+
+		return result;
+	}
+
+	/**
+	 * Returns a hex-encoded hash of the image data, the first 128 bits of its SHA-256 digest.
+	 *
+	 * @methodtype conversion
+	 */
+	public static String computeImageHash(byte[] imageData) {
+		MessageDigest digest = createImageDigest();
+		digest.update(imageData);
+		return asImageHash(digest);
+	}
+
+	/**
+	 * Returns a fresh digest for computing an image hash incrementally, e.g. while streaming.
+	 *
+	 * @methodtype factory
+	 */
+	public static MessageDigest createImageDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	/**
+	 * Completes the digest and returns it in the format of computeImageHash.
 	 *
+	 * @methodtype conversion
+	 */
+	public static String asImageHash(MessageDigest digest) {
+		byte[] hash = digest.digest();
+		StringBuilder result = new StringBuilder(IMAGE_HASH_LENGTH * 2);
+		for (int i = 0; i < IMAGE_HASH_LENGTH; i++) {
+			result.append(HEX_DIGITS[(hash[i] >> 4) & 0xf]).append(HEX_DIGITS[hash[i] & 0xf]);
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Returns the MIME type for the file ending of a photo, e.g. "image/jpeg" for "jpg".
+	 *
+	 * @methodtype conversion
+	 */
+	public static String getContentType(String ending) {
+		String lowerCaseEnding = (ending == null) ? "" : ending.toLowerCase();
+		switch (lowerCaseEnding) {
+			case "jpg":
+			case "jpeg":
+				return "image/jpeg";
+			case "png":
+				return "image/png";
+			case "gif":
+				return "image/gif";
+			case "bmp":
+				return "image/bmp";
+			case "webp":
+				return "image/webp";
+			default:
+				return "application/octet-stream";
+		}
+	}
+
+	/**
+	 * Scales the source into all sizes it is large enough for, and into the additional encodings, using the
+	 * RenditionPipeline.
 	 */
 	public static void createImageFiles(Image source, Photo photo) throws Exception {
 		assertIsValidImage(source);
@@ -62,9 +157,23 @@ public class PhotoUtil {
 		int sourceHeight = source.getHeight();
 		assertHasValidSize(sourceWidth, sourceHeight);
 
+		List<PhotoSize> sizes = new ArrayList<PhotoSize>();
 		for (PhotoSize size : PhotoSize.values()) {
 			if (!size.isWiderAndHigher(sourceWidth, sourceHeight)) {
-				scaleImage(ImagesServiceFactory.makeImage(source.getImageData()), size, photo);
+				sizes.add(size);
+			}
+		}
+
+		RenditionPipeline pipeline = RenditionPipeline.getInstance();
+		Map<PhotoSize, Image> renditions = pipeline.createRenditions(source, sourceWidth, sourceHeight, sizes);
+		for (Map.Entry<PhotoSize, Image> rendition : renditions.entrySet()) {
+			photo.setImage(rendition.getKey(), rendition.getValue());
+		}
+
+		Map<ImageEncoding, Map<PhotoSize, Image>> encodings = pipeline.createEncodings(renditions);
+		for (Map.Entry<ImageEncoding, Map<PhotoSize, Image>> encoding : encodings.entrySet()) {
+			for (Map.Entry<PhotoSize, Image> rendition : encoding.getValue().entrySet()) {
+				photo.setEncodedImage(rendition.getKey(), encoding.getKey(), rendition.getValue());
 			}
 		}
 	}
@@ -87,24 +196,4 @@ public class PhotoUtil {
 		}
 	}
 
-	/**
-	 * @methodtype command Scale the source picture to the given size, store it in the datastore and reference it in the
-	 * photo.
-	 */
-	protected static void scaleImage(Image source, PhotoSize size, Photo photo) throws Exception {
-		int sourceWidth = source.getWidth();
-		int sourceHeight = source.getHeight();
-
-		int targetWidth = size.calcAdjustedWidth(sourceWidth, sourceHeight);
-		int targetHeight = size.calcAdjustedHeight(sourceWidth, sourceHeight);
-
-		ImagesService imagesService = ImagesServiceFactory.getImagesService();
-		Transform resize = ImagesServiceFactory.makeResize(targetWidth, targetHeight);
-		Image newImage = imagesService.applyTransform(resize, source);
-
-		photo.setImage(size, newImage);
-
-		log.config(LogBuilder.createSystemMessage().addParameter("Scaled image to size", size.asString()).toString());
-	}
-
 }
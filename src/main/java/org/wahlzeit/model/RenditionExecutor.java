@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.model;
+
+import com.google.apphosting.api.ApiProxy;
+import org.wahlzeit.services.LogBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * A RenditionExecutor runs the scaling of an upload into its renditions concurrently, so that creating a photo takes
+ * as long as its slowest rendition rather than all of them together. The pool is bounded; if its queue is full, the
+ * remaining renditions are scaled on the calling thread. The App Engine API environment of the caller is passed on
+ * to the pool threads, as scaling calls the images service.
+ *
+ * The pool can be configured through the system properties "org.wahlzeit.renditionExecutor.threads" and
+ * "org.wahlzeit.renditionExecutor.queueSize"; with a single thread, renditions are scaled on the calling thread.
+ */
+public class RenditionExecutor {
+
+	private static final Logger log = Logger.getLogger(RenditionExecutor.class.getName());
+
+	/**
+	 *
+	 */
+	public static final String THREADS_PROPERTY = "org.wahlzeit.renditionExecutor.threads";
+	public static final String QUEUE_SIZE_PROPERTY = "org.wahlzeit.renditionExecutor.queueSize";
+
+	/**
+	 *
+	 */
+	public static final int DEFAULT_THREADS = PhotoSize.values().length;
+	public static final int DEFAULT_QUEUE_SIZE = 64;
+
+	/**
+	 * Idle pool threads are stopped after this time
+	 */
+	protected static final long KEEP_ALIVE_SECONDS = 60;
+
+	/**
+	 *
+	 */
+	protected static RenditionExecutor instance = null;
+
+	/**
+	 * Null if renditions are scaled on the calling thread
+	 */
+	protected final ThreadPoolExecutor executor;
+
+	/**
+	 *
+	 */
+	protected RenditionExecutor(int threads, int queueSize) {
+		if (threads > 1) {
+			executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(queueSize), new RenditionThreadFactory(),
+					new ThreadPoolExecutor.CallerRunsPolicy());
+			executor.allowCoreThreadTimeOut(true);
+		} else {
+			executor = null;
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public static synchronized RenditionExecutor getInstance() {
+		if (instance == null) {
+			int threads = Integer.getInteger(THREADS_PROPERTY, DEFAULT_THREADS);
+			int queueSize = Integer.getInteger(QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE);
+			log.config(LogBuilder.createSystemMessage().
+					addAction("create RenditionExecutor").
+					addParameter("threads", threads).
+					addParameter("queue size", queueSize).toString());
+			instance = new RenditionExecutor(threads, queueSize);
+		}
+		return instance;
+	}
+
+	/**
+	 * Stops the pool threads; renditions that are being scaled are interrupted.
+	 *
+	 * @methodtype command
+	 */
+	public static synchronized void shutDown() {
+		if (instance != null) {
+			if (instance.executor != null) {
+				instance.executor.shutdownNow();
+			}
+			instance = null;
+		}
+	}
+
+	/**
+	 * Runs all tasks and returns their results in the order of the tasks. If a task fails, the remaining ones are
+	 * cancelled and its exception is thrown.
+	 *
+	 * @methodtype command
+	 */
+	public <T> List<T> invokeAll(List<? extends Callable<T>> tasks) throws Exception {
+		List<T> result = new ArrayList<T>(tasks.size());
+		if (executor == null || tasks.size() < 2) {
+			for (Callable<T> task : tasks) {
+				result.add(task.call());
+			}
+			return result;
+		}
+
+		ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+		List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+		try {
+			for (Callable<T> task : tasks) {
+				futures.add(executor.submit(new EnvironmentCallable<T>(task, environment)));
+			}
+			for (Future<T> future : futures) {
+				result.add(future.get());
+			}
+			return result;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw new IllegalStateException(cause);
+		} finally {
+			for (Future<T> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Runs a task with the API environment of the thread that submitted it.
+	 */
+	protected static class EnvironmentCallable<T> implements Callable<T> {
+
+		/**
+		 *
+		 */
+		protected final Callable<T> task;
+		protected final ApiProxy.Environment environment;
+
+		/**
+		 *
+		 */
+		protected EnvironmentCallable(Callable<T> myTask, ApiProxy.Environment myEnvironment) {
+			task = myTask;
+			environment = myEnvironment;
+		}
+
+		/**
+		 *
+		 */
+		public T call() throws Exception {
+			ApiProxy.Environment previous = ApiProxy.getCurrentEnvironment();
+			if (environment != null) {
+				ApiProxy.setEnvironmentForCurrentThread(environment);
+			}
+			try {
+				return task.call();
+			} finally {
+				if (previous != null) {
+					ApiProxy.setEnvironmentForCurrentThread(previous);
+				} else {
+					ApiProxy.clearEnvironmentForCurrentThread();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates daemon threads, so that scaling never keeps the application from shutting down.
+	 */
+	protected static class RenditionThreadFactory implements ThreadFactory {
+
+		/**
+		 *
+		 */
+		protected final AtomicInteger threadCount = new AtomicInteger();
+
+		/**
+		 *
+		 */
+		public Thread newThread(Runnable runnable) {
+			Thread result = new Thread(runnable, "rendition-executor-" + threadCount.incrementAndGet());
+			result.setDaemon(true);
+			return result;
+		}
+	}
+
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.model;
+
+import com.google.appengine.api.images.Image;
+import org.wahlzeit.services.LogBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
+
+/**
+ * A RenditionPipeline creates the renditions of an upload in the sizes defined by PhotoSize. With the DIRECT
+ * strategy, every rendition is scaled from the source. With the CASCADE strategy, a rendition is scaled from a
+ * larger rendition where possible, e.g. LARGE from EXTRA_LARGE, which is far less pixel work than scaling from the
+ * full-resolution source. Renditions that do not depend on each other are scaled concurrently by the
+ * RenditionExecutor.
+ *
+ * The quality knob trades speed for quality: for SPEED, a cascaded rendition is scaled from the next larger one; for
+ * QUALITY, only from one at least twice its size, so that repeated small steps do not add up to visible blur. The
+ * pipeline can be configured through the system properties "org.wahlzeit.renditions.scaler" (imagesService or
+ * java2d), "org.wahlzeit.renditions.strategy" (direct or cascade), and "org.wahlzeit.renditions.quality" (speed or
+ * quality). Cascading pays off where the pixel work is ours, i.e. with java2d; with the images service, each cascade
+ * level is another sequential remote call, so the strategy defaults to direct there.
+ *
+ * Renditions can additionally be encoded in compact encodings like WebP, configured as a comma-separated list in
+ * "org.wahlzeit.renditions.encodings". An encoding is only kept if the scaler supports it and it is smaller than the
+ * rendition in the original encoding.
+ */
+public class RenditionPipeline {
+
+	private static final Logger log = Logger.getLogger(RenditionPipeline.class.getName());
+
+	/**
+	 *
+	 */
+	public static final String SCALER_PROPERTY = "org.wahlzeit.renditions.scaler";
+	public static final String STRATEGY_PROPERTY = "org.wahlzeit.renditions.strategy";
+	public static final String QUALITY_PROPERTY = "org.wahlzeit.renditions.quality";
+	public static final String ENCODINGS_PROPERTY = "org.wahlzeit.renditions.encodings";
+
+	/**
+	 *
+	 */
+	public static final String IMAGES_SERVICE_SCALER = "imagesService";
+	public static final String JAVA2D_SCALER = "java2d";
+
+	/**
+	 *
+	 */
+	public enum Strategy {
+		DIRECT, CASCADE
+	}
+
+	/**
+	 *
+	 */
+	public enum Quality {
+		SPEED(1.0), QUALITY(2.0);
+
+		/**
+		 * How much larger a rendition must be to be the source of a cascaded rendition
+		 */
+		private final double minCascadeRatio;
+
+		/**
+		 *
+		 */
+		Quality(double myMinCascadeRatio) {
+			minCascadeRatio = myMinCascadeRatio;
+		}
+
+		/**
+		 *
+		 */
+		public double getMinCascadeRatio() {
+			return minCascadeRatio;
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected static RenditionPipeline instance = null;
+
+	/**
+	 *
+	 */
+	protected final ImageScaler scaler;
+	protected final Strategy strategy;
+	protected final Quality quality;
+	protected final List<ImageEncoding> encodings;
+
+	/**
+	 *
+	 */
+	public RenditionPipeline(ImageScaler myScaler, Strategy myStrategy, Quality myQuality) {
+		this(myScaler, myStrategy, myQuality, Collections.<ImageEncoding>emptyList());
+	}
+
+	/**
+	 *
+	 */
+	public RenditionPipeline(ImageScaler myScaler, Strategy myStrategy, Quality myQuality,
+							 List<ImageEncoding> myEncodings) {
+		scaler = myScaler;
+		strategy = myStrategy;
+		quality = myQuality;
+		encodings = myEncodings;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public static synchronized RenditionPipeline getInstance() {
+		if (instance == null) {
+			String scalerName = System.getProperty(SCALER_PROPERTY, IMAGES_SERVICE_SCALER);
+			String defaultStrategy = JAVA2D_SCALER.equals(scalerName) ? "cascade" : "direct";
+			Strategy strategy = Strategy.valueOf(System.getProperty(STRATEGY_PROPERTY, defaultStrategy).toUpperCase());
+			Quality quality = Quality.valueOf(System.getProperty(QUALITY_PROPERTY, "quality").toUpperCase());
+			ImageScaler scaler;
+			if (JAVA2D_SCALER.equals(scalerName)) {
+				scaler = new Java2DImageScaler(quality);
+			} else {
+				scaler = new ImagesServiceScaler();
+			}
+			List<ImageEncoding> encodings = new ArrayList<ImageEncoding>();
+			for (String encodingName : System.getProperty(ENCODINGS_PROPERTY, "").split(",")) {
+				if (!encodingName.trim().isEmpty()) {
+					encodings.add(ImageEncoding.getFromString(encodingName.trim()));
+				}
+			}
+			log.config(LogBuilder.createSystemMessage().
+					addAction("create RenditionPipeline").
+					addParameter("scaler", scalerName).
+					addParameter("strategy", strategy).
+					addParameter("quality", quality).
+					addParameter("encodings", encodings).toString());
+			instance = new RenditionPipeline(scaler, strategy, quality, encodings);
+		}
+		return instance;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public static synchronized void setInstance(RenditionPipeline pipeline) {
+		instance = pipeline;
+	}
+
+	/**
+	 * Scales the source into the sizes. Target dimensions are always computed from the source dimensions, so that
+	 * cascading does not accumulate rounding errors.
+	 *
+	 * @methodtype factory
+	 */
+	public Map<PhotoSize, Image> createRenditions(Image source, int sourceWidth, int sourceHeight,
+												  List<PhotoSize> sizes) throws Exception {
+		Map<PhotoSize, PhotoSize> parents = getParents(sourceWidth, sourceHeight, sizes);
+		Map<PhotoSize, Image> result = new EnumMap<PhotoSize, Image>(PhotoSize.class);
+
+		// each round scales the renditions whose parent is done, concurrently
+		List<PhotoSize> remaining = new ArrayList<PhotoSize>(sizes);
+		while (!remaining.isEmpty()) {
+			List<PhotoSize> round = new ArrayList<PhotoSize>();
+			List<ScaleTask> tasks = new ArrayList<ScaleTask>();
+			for (PhotoSize size : remaining) {
+				PhotoSize parent = parents.get(size);
+				if (parent == null || result.containsKey(parent)) {
+					Image parentImage = (parent == null) ? source : result.get(parent);
+					round.add(size);
+					tasks.add(new ScaleTask(parentImage, size.calcAdjustedWidth(sourceWidth, sourceHeight),
+							size.calcAdjustedHeight(sourceWidth, sourceHeight)));
+				}
+			}
+
+			List<Image> images = RenditionExecutor.getInstance().invokeAll(tasks);
+			for (int i = 0; i < round.size(); i++) {
+				result.put(round.get(i), images.get(i));
+				log.config(LogBuilder.createSystemMessage().
+						addParameter("Scaled image to size", round.get(i).asString()).
+						addParameter("from", (parents.get(round.get(i)) == null) ? "source" :
+								parents.get(round.get(i)).asString()).toString());
+			}
+			remaining.removeAll(round);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Encodes the renditions in the additional encodings, concurrently. Encodings the scaler does not support, or that
+	 * are not smaller than the rendition, are left out.
+	 *
+	 * @methodtype factory
+	 */
+	public Map<ImageEncoding, Map<PhotoSize, Image>> createEncodings(Map<PhotoSize, Image> renditions)
+			throws Exception {
+		List<EncodeTask> tasks = new ArrayList<EncodeTask>();
+		for (ImageEncoding encoding : encodings) {
+			for (Map.Entry<PhotoSize, Image> rendition : renditions.entrySet()) {
+				tasks.add(new EncodeTask(rendition.getKey(), rendition.getValue(), encoding));
+			}
+		}
+
+		Map<ImageEncoding, Map<PhotoSize, Image>> result = new EnumMap<ImageEncoding, Map<PhotoSize, Image>>(
+				ImageEncoding.class);
+		List<Image> images = RenditionExecutor.getInstance().invokeAll(tasks);
+		for (int i = 0; i < tasks.size(); i++) {
+			EncodeTask task = tasks.get(i);
+			Image image = images.get(i);
+			if (image == null || image.getImageData().length >= task.rendition.getImageData().length) {
+				continue;
+			}
+			Map<PhotoSize, Image> sizes = result.get(task.encoding);
+			if (sizes == null) {
+				sizes = new EnumMap<PhotoSize, Image>(PhotoSize.class);
+				result.put(task.encoding, sizes);
+			}
+			sizes.put(task.size, image);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the rendition each size is scaled from; sizes that are scaled from the source have no entry.
+	 *
+	 * @methodtype get
+	 */
+	protected Map<PhotoSize, PhotoSize> getParents(int sourceWidth, int sourceHeight, List<PhotoSize> sizes) {
+		Map<PhotoSize, PhotoSize> result = new EnumMap<PhotoSize, PhotoSize>(PhotoSize.class);
+		if (strategy != Strategy.CASCADE) {
+			return result;
+		}
+
+		double ratio = quality.getMinCascadeRatio();
+		for (PhotoSize size : sizes) {
+			int width = size.calcAdjustedWidth(sourceWidth, sourceHeight);
+			int height = size.calcAdjustedHeight(sourceWidth, sourceHeight);
+			PhotoSize parent = null;
+			for (PhotoSize candidate : sizes) {
+				int candidateWidth = candidate.calcAdjustedWidth(sourceWidth, sourceHeight);
+				int candidateHeight = candidate.calcAdjustedHeight(sourceWidth, sourceHeight);
+				boolean isLargeEnough = candidateWidth > width && candidateHeight > height &&
+						candidateWidth >= ratio * width && candidateHeight >= ratio * height;
+				if (isLargeEnough && (parent == null || candidate.isSmaller(parent))) {
+					parent = candidate;
+				}
+			}
+			if (parent != null) {
+				result.put(size, parent);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public ImageScaler getScaler() {
+		return scaler;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public List<ImageEncoding> getEncodings() {
+		return encodings;
+	}
+
+	/**
+	 * Encodes one rendition in an additional encoding.
+	 */
+	protected class EncodeTask implements Callable<Image> {
+
+		/**
+		 *
+		 */
+		protected final PhotoSize size;
+		protected final Image rendition;
+		protected final ImageEncoding encoding;
+
+		/**
+		 *
+		 */
+		protected EncodeTask(PhotoSize mySize, Image myRendition, ImageEncoding myEncoding) {
+			size = mySize;
+			rendition = myRendition;
+			encoding = myEncoding;
+		}
+
+		/**
+		 *
+		 */
+		public Image call() throws Exception {
+			return scaler.encode(rendition, encoding);
+		}
+	}
+
+	/**
+	 * Scales one rendition from its parent.
+	 */
+	protected class ScaleTask implements Callable<Image> {
+
+		/**
+		 *
+		 */
+		protected final Image parent;
+		protected final int targetWidth;
+		protected final int targetHeight;
+
+		/**
+		 *
+		 */
+		protected ScaleTask(Image myParent, int myTargetWidth, int myTargetHeight) {
+			parent = myParent;
+			targetWidth = myTargetWidth;
+			targetHeight = myTargetHeight;
+		}
+
+		/**
+		 *
+		 */
+		public Image call() throws Exception {
+			return scaler.scale(parent, targetWidth, targetHeight);
+		}
+	}
+
+}
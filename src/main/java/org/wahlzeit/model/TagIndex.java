@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A TagIndex is an in-memory inverted index from tag terms, as produced by the PhotoTagCollector (e.g. "un:name" or
+ * "tg:flower"), to the ids of the photos carrying them. Each term maps to a posting list, a compressed bitmap of photo
+ * ids as ints. Posting lists are never modified in place but replaced, so readers need no locking; callers must not
+ * modify the bitmaps they get. Bulk updates copy each affected posting list only once, modify the copy in place, and
+ * publish it when done.
+ */
+public class TagIndex {
+
+	/**
+	 *
+	 */
+	protected static final RoaringBitmap EMPTY_POSTING_LIST = new RoaringBitmap();
+
+	/**
+	 *
+	 */
+	protected final ConcurrentHashMap<String, RoaringBitmap> postingLists = new ConcurrentHashMap<String, RoaringBitmap>();
+
+	/**
+	 * The terms currently indexed for each photo; needed to update the index incrementally. Both maps are only
+	 * modified while holding the lock on this.
+	 */
+	protected final Map<Integer, Set<String>> photoTerms = new HashMap<Integer, Set<String>>();
+
+	/**
+	 *
+	 */
+	public TagIndex() {
+		// do nothing
+	}
+
+	/**
+	 * Sets the terms of the photo to the given ones, only touching the posting lists of terms that have been added
+	 * or removed. Returns true if the index changed.
+	 *
+	 * @methodtype command
+	 */
+	public synchronized boolean updatePhoto(PhotoId id, Set<String> terms) {
+		return !replaceTerms(id, terms).equals(terms);
+	}
+
+	/**
+	 * Like updatePhoto, but returns the terms the photo had before, so callers can derive what has been added and
+	 * removed.
+	 *
+	 * @methodtype command
+	 */
+	public synchronized Set<String> replaceTerms(PhotoId id, Set<String> terms) {
+		int photoInt = id.asInt();
+		Set<String> oldTerms = photoTerms.get(photoInt);
+		if (oldTerms == null) {
+			oldTerms = Collections.emptySet();
+		}
+		if (oldTerms.equals(terms)) {
+			return oldTerms;
+		}
+
+		for (String term : oldTerms) {
+			if (!terms.contains(term)) {
+				removeFromPostingList(term, photoInt);
+			}
+		}
+		for (String term : terms) {
+			if (!oldTerms.contains(term)) {
+				addToPostingList(term, photoInt);
+			}
+		}
+
+		if (terms.isEmpty()) {
+			photoTerms.remove(photoInt);
+		} else {
+			photoTerms.put(photoInt, new HashSet<String>(terms));
+		}
+		return oldTerms;
+	}
+
+	/**
+	 * Like updatePhoto for many photos at once, e.g. when loading all photos. Each affected posting list is copied
+	 * once instead of for every photo added to it.
+	 *
+	 * @methodtype command
+	 */
+	public synchronized void updatePhotos(Map<PhotoId, Set<String>> termsByPhoto) {
+		Map<String, RoaringBitmap> newLists = new HashMap<String, RoaringBitmap>();
+		for (Map.Entry<PhotoId, Set<String>> entry : termsByPhoto.entrySet()) {
+			int photoInt = entry.getKey().asInt();
+			Set<String> terms = entry.getValue();
+			Set<String> oldTerms = photoTerms.get(photoInt);
+			if (oldTerms == null) {
+				oldTerms = Collections.emptySet();
+			}
+			if (oldTerms.equals(terms)) {
+				continue;
+			}
+
+			for (String term : oldTerms) {
+				if (!terms.contains(term)) {
+					getNewPostingList(newLists, term).remove(photoInt);
+				}
+			}
+			for (String term : terms) {
+				if (!oldTerms.contains(term)) {
+					getNewPostingList(newLists, term).add(photoInt);
+				}
+			}
+
+			if (terms.isEmpty()) {
+				photoTerms.remove(photoInt);
+			} else {
+				photoTerms.put(photoInt, new HashSet<String>(terms));
+			}
+		}
+
+		for (Map.Entry<String, RoaringBitmap> entry : newLists.entrySet()) {
+			if (entry.getValue().isEmpty()) {
+				postingLists.remove(entry.getKey());
+			} else {
+				postingLists.put(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Returns the not yet published copy of the posting list, making it if necessary.
+	 *
+	 * @methodtype get
+	 */
+	protected RoaringBitmap getNewPostingList(Map<String, RoaringBitmap> newLists, String term) {
+		RoaringBitmap result = newLists.get(term);
+		if (result == null) {
+			result = getPostingList(term).clone();
+			newLists.put(term, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public synchronized void removePhoto(PhotoId id) {
+		updatePhoto(id, Collections.<String>emptySet());
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized Set<String> getTerms(PhotoId id) {
+		Set<String> result = photoTerms.get(id.asInt());
+		return (result == null) ? Collections.<String>emptySet() : new HashSet<String>(result);
+	}
+
+	/**
+	 * Returns the ids of all photos that carry the term.
+	 *
+	 * @methodtype get
+	 */
+	public RoaringBitmap getPostingList(String term) {
+		RoaringBitmap result = postingLists.get(term);
+		return (result == null) ? EMPTY_POSTING_LIST : result;
+	}
+
+	/**
+	 * Returns the ids of all photos that carry all of the terms as a new bitmap. Starts with the smallest posting list,
+	 * so the intermediate result never grows beyond it.
+	 *
+	 * @methodtype get
+	 */
+	public RoaringBitmap getPhotoIdsMatchingAll(Collection<String> terms) {
+		if (terms.isEmpty()) {
+			return new RoaringBitmap();
+		}
+
+		List<RoaringBitmap> lists = new ArrayList<RoaringBitmap>(terms.size());
+		for (String term : terms) {
+			RoaringBitmap postingList = getPostingList(term);
+			if (postingList.isEmpty()) {
+				return new RoaringBitmap();
+			}
+			lists.add(postingList);
+		}
+
+		Collections.sort(lists, new Comparator<RoaringBitmap>() {
+			@Override
+			public int compare(RoaringBitmap a, RoaringBitmap b) {
+				return a.getCardinality() - b.getCardinality();
+			}
+		});
+
+		RoaringBitmap result = lists.get(0).clone();
+		for (int i = 1; i < lists.size() && !result.isEmpty(); i++) {
+			result.and(lists.get(i));
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public synchronized void clear() {
+		postingLists.clear();
+		photoTerms.clear();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNumberOfTerms() {
+		return postingLists.size();
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void addToPostingList(String term, int photoInt) {
+		RoaringBitmap oldList = getPostingList(term);
+		if (oldList.contains(photoInt)) {
+			return;
+		}
+
+		RoaringBitmap newList = oldList.clone();
+		newList.add(photoInt);
+		postingLists.put(term, newList);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void removeFromPostingList(String term, int photoInt) {
+		RoaringBitmap oldList = getPostingList(term);
+		if (!oldList.contains(photoInt)) {
+			return;
+		}
+
+		if (oldList.getCardinality() == 1) {
+			postingLists.remove(term);
+			return;
+		}
+
+		RoaringBitmap newList = oldList.clone();
+		newList.remove(photoInt);
+		postingLists.put(term, newList);
+	}
+
+}
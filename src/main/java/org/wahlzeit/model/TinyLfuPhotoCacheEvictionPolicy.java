@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import org.wahlzeit.utils.DesignPattern;
+
+import java.util.Arrays;
+
+/**
+ * A W-TinyLFU-style policy: victims are chosen in LRU order, but a new photo is only admitted if it has been
+ * requested more often recently than the victim it would replace. Frequencies are kept in a small count-min sketch
+ * that is halved periodically, so popularity ages out. This keeps one-off requests (e.g. crawlers walking all photo
+ * pages) from flushing the photos that are shown over and over again.
+ */
+@DesignPattern(
+		name = "Strategy",
+		participants = {"ConcreteStrategy"}
+)
+public class TinyLfuPhotoCacheEvictionPolicy extends LruPhotoCacheEvictionPolicy {
+
+	/**
+	 *
+	 */
+	protected static final int SKETCH_DEPTH = 4;
+	protected static final int[] SKETCH_SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+	/**
+	 *
+	 */
+	protected final int[][] sketch;
+	protected final int sketchMask;
+	protected final int sampleSize;
+	protected int additions = 0;
+
+	/**
+	 *
+	 */
+	public TinyLfuPhotoCacheEvictionPolicy(long expectedEntries) {
+		int width = 16;
+		while (width < expectedEntries && width < (1 << 24)) {
+			width <<= 1;
+		}
+		sketch = new int[SKETCH_DEPTH][width];
+		sketchMask = width - 1;
+		sampleSize = 10 * width;
+	}
+
+	/**
+	 *
+	 */
+	@Override
+	public synchronized void recordAccess(PhotoId id) {
+		super.recordAccess(id);
+		increment(id);
+	}
+
+	/**
+	 *
+	 */
+	@Override
+	public synchronized void recordInsertion(PhotoId id) {
+		super.recordInsertion(id);
+		increment(id);
+	}
+
+	/**
+	 *
+	 */
+	@Override
+	public synchronized boolean admit(PhotoId candidate, PhotoId victim) {
+		return getFrequency(candidate) > getFrequency(victim);
+	}
+
+	/**
+	 *
+	 */
+	@Override
+	public synchronized void clear() {
+		super.clear();
+		for (int[] row : sketch) {
+			Arrays.fill(row, 0);
+		}
+		additions = 0;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized int getFrequency(PhotoId id) {
+		int result = Integer.MAX_VALUE;
+		for (int i = 0; i < SKETCH_DEPTH; i++) {
+			result = Math.min(result, sketch[i][indexOf(id, i)]);
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void increment(PhotoId id) {
+		for (int i = 0; i < SKETCH_DEPTH; i++) {
+			sketch[i][indexOf(id, i)]++;
+		}
+
+		if (++additions >= sampleSize) {
+			age();
+		}
+	}
+
+	/**
+	 * Halves all counters so that past popularity fades out.
+	 *
+	 * @methodtype command
+	 */
+	protected void age() {
+		for (int[] row : sketch) {
+			for (int j = 0; j < row.length; j++) {
+				row[j] >>>= 1;
+			}
+		}
+		additions /= 2;
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	protected int indexOf(PhotoId id, int row) {
+		int hash = id.hashCode() * SKETCH_SEEDS[row];
+		hash ^= hash >>> 16;
+		return hash & sketchMask;
+	}
+
+}
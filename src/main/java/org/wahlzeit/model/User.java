@@ -20,12 +20,12 @@
 
 package org.wahlzeit.model;
 
-import com.google.appengine.api.images.Image;
 import com.googlecode.objectify.annotation.Ignore;
 import com.googlecode.objectify.annotation.Subclass;
 import org.wahlzeit.services.EmailAddress;
 import org.wahlzeit.services.Language;
 import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.SpooledUpload;
 
 import java.util.Arrays;
 import java.util.Comparator;
@@ -73,8 +73,8 @@ public class User extends Client {
 	 */
 	protected Photo userPhoto = null;
 	protected Set<Photo> photos = new HashSet<Photo>();
-	@Ignore // only used as temporary variable
-	protected Image uploadedImage = null;
+	@Ignore // only used as temporary variable, and only valid on the instance that received the upload
+	protected transient SpooledUpload upload = null;
 
 	/**
 	 *
@@ -296,16 +296,21 @@ public class User extends Client {
 	}
 
 	/**
+	 * Sets the upload to be processed next; the spool file of a replaced upload is deleted.
+	 *
 	 * @methodtype set
 	 */
-	public void setUploadedImage(Image image) {
-		uploadedImage = image;
+	public void setUpload(SpooledUpload newUpload) {
+		if (upload != null && upload != newUpload) {
+			upload.delete();
+		}
+		upload = newUpload;
 	}
 
 	/**
 	 * @methodtype get
 	 */
-	public Image getUploadedImage() {
-		return uploadedImage;
+	public SpooledUpload getUpload() {
+		return upload;
 	}
 }
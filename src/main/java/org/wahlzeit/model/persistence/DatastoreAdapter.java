@@ -22,6 +22,7 @@ package org.wahlzeit.model.persistence;
 
 import com.google.appengine.api.images.Image;
 import com.google.appengine.api.images.ImagesServiceFactory;
+import com.googlecode.objectify.Key;
 import com.googlecode.objectify.ObjectifyService;
 import com.googlecode.objectify.Work;
 import com.googlecode.objectify.annotation.Entity;
@@ -97,19 +98,31 @@ public class DatastoreAdapter extends ImageStorage {
 	}
 
 	@Override
-	protected boolean doDoesImageExist(String photoIdAsString, int size) {
-		Image image = null;
-		boolean result = false;
-		try {
-			image = doReadImage(photoIdAsString, size);
-		} catch (IOException e) {
-			log.warning(
-					LogBuilder.createSystemMessage().addException("IOException when checking for Image existance", e)
-							.toString());
-		}
-		if (image != null) {
-			result = true;
-		}
+	protected void doDeleteImage(final String photoIdAsString, final int size) {
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				OfyService.ofy().delete().type(ImageWrapper.class).id(photoIdAsString + size).now();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Uses a keys-only query, so that no image data is transferred. The query is only eventually consistent and may
+	 * miss an image written just before; callers must only use the answer to skip writing the same image again.
+	 */
+	@Override
+	protected boolean doDoesImageExist(final String photoIdAsString, final int size) {
+		Key<ImageWrapper> key = ObjectifyService.run(new Work<Key<ImageWrapper>>() {
+			@Override
+			public Key<ImageWrapper> run() {
+				return OfyService.ofy().load().type(ImageWrapper.class).
+						filterKey(Key.create(ImageWrapper.class, photoIdAsString + size)).keys().first().now();
+			}
+		});
+
+		boolean result = key != null;
 		log.config(LogBuilder.createSystemMessage().addParameter("does image exist", result).toString());
 		return result;
 	}
@@ -0,0 +1,189 @@
+package org.wahlzeit.model.persistence;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.SysConfig;
+import org.wahlzeit.utils.DesignPattern;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.InvalidParameterException;
+import java.util.logging.Logger;
+
+/**
+ * Adapter for the local file system, e.g. for self-hosting, tests, and benchmarks. Renditions are stored as files in
+ * two levels of sharded directories below the root directory, so that no directory grows too large. Files are written
+ * atomically by renaming a temporary file, and read through memory-mapped file channels without copying them to the
+ * heap. There is no limit on the size of an image.
+ */
+@DesignPattern(
+		name = "Adapter",
+		participants = {"Adapter"}
+)
+public class FileSystemAdapter extends ImageStorage {
+
+	private static final Logger log = Logger.getLogger(FileSystemAdapter.class.getName());
+
+	/**
+	 *
+	 */
+	protected static final String TEMP_FILE_SUFFIX = ".tmp";
+
+	/**
+	 *
+	 */
+	protected final Path rootDir;
+
+	/**
+	 * Stores the images in the photos directory of the SysConfig.
+	 */
+	public FileSystemAdapter() {
+		this(Paths.get(SysConfig.getPhotosDir().asString()));
+	}
+
+	/**
+	 *
+	 */
+	public FileSystemAdapter(Path myRootDir) {
+		rootDir = myRootDir;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public Path getRootDir() {
+		return rootDir;
+	}
+
+	/**
+	 * Returns the file of the image, e.g. "3f/a0/x1abz-2" for the photo "x1abz" in size 2. The shards are derived from
+	 * the hash of the photo id.
+	 *
+	 * @methodtype get
+	 */
+	protected Path getImagePath(String photoIdAsString, int size) {
+		int hash = photoIdAsString.hashCode();
+		String firstShard = String.format("%02x", (hash >>> 8) & 0xff);
+		String secondShard = String.format("%02x", hash & 0xff);
+		return rootDir.resolve(firstShard).resolve(secondShard).resolve(photoIdAsString + "-" + size);
+	}
+
+	@Override
+	protected void doWriteImage(Serializable image, String photoIdAsString, int size)
+			throws IOException, InvalidParameterException {
+		if (image instanceof Image) {
+			Path imagePath = getImagePath(photoIdAsString, size);
+			Path dir = imagePath.getParent();
+			Files.createDirectories(dir);
+
+			Path tempPath = Files.createTempFile(dir, imagePath.getFileName().toString(), TEMP_FILE_SUFFIX);
+			try {
+				Files.write(tempPath, ((Image) image).getImageData());
+				Files.move(tempPath, imagePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				Files.deleteIfExists(tempPath);
+			}
+
+			log.config(LogBuilder.createSystemMessage().addMessage("image successfully written").toString());
+		} else {
+			log.warning(LogBuilder.createSystemMessage().
+					addMessage("did not get an Image type to store").
+					addParameter("image type", image.toString()).toString());
+		}
+	}
+
+	@Override
+	protected Image doReadImage(String photoIdAsString, int size) throws IOException {
+		ByteBuffer imageData = doReadImageData(photoIdAsString, size);
+		if (imageData == null) {
+			return null;
+		}
+
+		byte[] result = new byte[imageData.remaining()];
+		imageData.get(result);
+		return ImagesServiceFactory.makeImage(result);
+	}
+
+	/**
+	 * Maps the file into memory; the mapping stays valid after the channel is closed.
+	 */
+	@Override
+	protected ByteBuffer doReadImageData(String photoIdAsString, int size) throws IOException {
+		Path imagePath = getImagePath(photoIdAsString, size);
+		if (!Files.isRegularFile(imagePath)) {
+			log.info(LogBuilder.createSystemMessage().addMessage("does not exist!").toString());
+			return null;
+		}
+
+		FileChannel channel = FileChannel.open(imagePath, StandardOpenOption.READ);
+		try {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			channel.close();
+		}
+	}
+
+	@Override
+	protected long doGetImageDataLength(String photoIdAsString, int size) throws IOException {
+		Path imagePath = getImagePath(photoIdAsString, size);
+		return Files.isRegularFile(imagePath) ? Files.size(imagePath) : -1;
+	}
+
+	@Override
+	protected int doReadImageData(String photoIdAsString, int size, long position, ByteBuffer target)
+			throws IOException {
+		FileChannel channel = doOpenImageChannel(photoIdAsString, size);
+		if (channel == null) {
+			return -1;
+		}
+
+		try {
+			int result = 0;
+			while (target.hasRemaining()) {
+				int read = channel.read(target, position + result);
+				if (read < 0) {
+					break;
+				}
+				result += read;
+			}
+			return (result > 0) ? result : -1;
+		} finally {
+			channel.close();
+		}
+	}
+
+	@Override
+	public boolean hasPositionalReads() {
+		return true;
+	}
+
+	@Override
+	protected FileChannel doOpenImageChannel(String photoIdAsString, int size) throws IOException {
+		Path imagePath = getImagePath(photoIdAsString, size);
+		if (!Files.isRegularFile(imagePath)) {
+			return null;
+		}
+		return FileChannel.open(imagePath, StandardOpenOption.READ);
+	}
+
+	@Override
+	protected void doDeleteImage(String photoIdAsString, int size) throws IOException {
+		Files.deleteIfExists(getImagePath(photoIdAsString, size));
+	}
+
+	@Override
+	protected boolean doDoesImageExist(String photoIdAsString, int size) {
+		boolean result = Files.isRegularFile(getImagePath(photoIdAsString, size));
+		log.config(LogBuilder.createSystemMessage().addParameter("does image exist", result).toString());
+		return result;
+	}
+
+}
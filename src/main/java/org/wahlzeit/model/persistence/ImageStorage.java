@@ -1,11 +1,14 @@
 package org.wahlzeit.model.persistence;
 
+import com.google.appengine.api.images.Image;
 import org.wahlzeit.model.PhotoSize;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.utils.DesignPattern;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.InvalidParameterException;
 import java.util.logging.Logger;
 
@@ -23,6 +26,11 @@ public abstract class ImageStorage {
 	private static final Logger log = Logger.getLogger(ImageStorage.class.getName());
 	private static ImageStorage instance = null;
 
+	/**
+	 * Size under which the original of an upload is stored until its renditions have been created
+	 */
+	public static final int ORIGINAL_SIZE = -1;
+
 	/**
 	 * @methodtype get
 	 */
@@ -60,7 +68,7 @@ public abstract class ImageStorage {
 
 		assertImageNotNull(image);
 		assertValidPhotoId(photoIdAsString);
-		PhotoSize.assertIsValidPhotoSizeAsInt(size);
+		assertIsValidSize(size);
 
 		log.config(LogBuilder.createSystemMessage().
 				addAction("write image to storage").
@@ -81,6 +89,35 @@ public abstract class ImageStorage {
 			throws IOException, InvalidParameterException;
 
 
+	// delete methods --------------------------------------------------------------------------------------------------
+
+	/**
+	 * Deletes the image from the storage; does nothing if it does not exist.
+	 *
+	 * @methodtype command
+	 * @methodproperty wrapper
+	 */
+	public void deleteImage(String photoIdAsString, int size) throws IOException {
+		assertValidPhotoId(photoIdAsString);
+		assertIsValidSize(size);
+
+		log.config(LogBuilder.createSystemMessage().
+				addAction("delete image from storage").
+				addParameter("photo id", photoIdAsString).
+				addParameter("size", size).toString());
+
+		doDeleteImage(photoIdAsString, size);
+	}
+
+	/**
+	 * Actually deletes the image from the storage
+	 *
+	 * @methodtype command
+	 * @methodproperty hook
+	 */
+	protected abstract void doDeleteImage(String photoIdAsString, int size) throws IOException;
+
+
 	// read methods ----------------------------------------------------------------------------------------------------
 
 	/**
@@ -93,7 +130,7 @@ public abstract class ImageStorage {
 			throws IllegalArgumentException, IOException {
 
 		assertValidPhotoId(photoIdAsString);
-		PhotoSize.assertIsValidPhotoSizeAsInt(size);
+		assertIsValidSize(size);
 
 		log.config(LogBuilder.createSystemMessage().
 				addAction("read image from storage").
@@ -112,6 +149,153 @@ public abstract class ImageStorage {
 	protected abstract Serializable doReadImage(String filename, int size)
 			throws IOException;
 
+	/**
+	 * Reads the encoded data of an image via photoId and the size. When the image is not found, null is returned.
+	 *
+	 * @methodtype get
+	 * @methodproperty wrapper
+	 */
+	public ByteBuffer readImageData(String photoIdAsString, int size)
+			throws IllegalArgumentException, IOException {
+
+		assertValidPhotoId(photoIdAsString);
+		assertIsValidSize(size);
+
+		log.config(LogBuilder.createSystemMessage().
+				addAction("read image data from storage").
+				addParameter("photo id", photoIdAsString).
+				addParameter("size", size).toString());
+
+		return doReadImageData(photoIdAsString, size);
+	}
+
+	/**
+	 * Actually reads the data of the specified image. Storages that can hand out the data without copying it should
+	 * override this; by default the image is read and its data wrapped.
+	 *
+	 * @methodtype get
+	 * @methodproperty hook
+	 */
+	protected ByteBuffer doReadImageData(String photoIdAsString, int size)
+			throws IOException {
+
+		Serializable image = doReadImage(photoIdAsString, size);
+		if (image instanceof Image) {
+			return ByteBuffer.wrap(((Image) image).getImageData());
+		}
+		return null;
+	}
+
+
+	/**
+	 * Returns the length of the image data in bytes, or -1 if the image is not found.
+	 *
+	 * @methodtype get
+	 * @methodproperty wrapper
+	 */
+	public long getImageDataLength(String photoIdAsString, int size)
+			throws IllegalArgumentException, IOException {
+
+		assertValidPhotoId(photoIdAsString);
+		assertIsValidSize(size);
+
+		return doGetImageDataLength(photoIdAsString, size);
+	}
+
+	/**
+	 * Actually determines the length; by default the image data is read.
+	 *
+	 * @methodtype get
+	 * @methodproperty hook
+	 */
+	protected long doGetImageDataLength(String photoIdAsString, int size)
+			throws IOException {
+
+		ByteBuffer imageData = doReadImageData(photoIdAsString, size);
+		return (imageData != null) ? imageData.remaining() : -1;
+	}
+
+	/**
+	 * Reads image data starting at the position into the buffer, as much as fits. Returns the number of bytes read,
+	 * or -1 if the image is not found or the position is at or beyond its end.
+	 *
+	 * @methodtype get
+	 * @methodproperty wrapper
+	 */
+	public int readImageData(String photoIdAsString, int size, long position, ByteBuffer target)
+			throws IllegalArgumentException, IOException {
+
+		assertValidPhotoId(photoIdAsString);
+		assertIsValidSize(size);
+		if (position < 0) {
+			throw new IllegalArgumentException("Invalid position: " + position);
+		}
+
+		return doReadImageData(photoIdAsString, size, position, target);
+	}
+
+	/**
+	 * Actually reads part of the image data. By default the whole image data is read; storages that can read at a
+	 * position should override this and hasPositionalReads.
+	 *
+	 * @methodtype get
+	 * @methodproperty hook
+	 */
+	protected int doReadImageData(String photoIdAsString, int size, long position, ByteBuffer target)
+			throws IOException {
+
+		ByteBuffer imageData = doReadImageData(photoIdAsString, size);
+		if (imageData == null || position >= imageData.remaining()) {
+			return -1;
+		}
+
+		ByteBuffer source = imageData.duplicate();
+		source.position(source.position() + (int) position);
+		if (source.remaining() > target.remaining()) {
+			source.limit(source.position() + target.remaining());
+		}
+		int result = source.remaining();
+		target.put(source);
+		return result;
+	}
+
+	/**
+	 * Returns true if readImageData at a position reads only the requested part of the image.
+	 *
+	 * @methodtype boolean-query
+	 */
+	public boolean hasPositionalReads() {
+		return false;
+	}
+
+	/**
+	 * Opens a FileChannel on the image data, so that it can be streamed without loading it as a whole. Returns null
+	 * if the image is not found or the storage is not backed by files. The caller must close the channel.
+	 *
+	 * @methodtype get
+	 * @methodproperty wrapper
+	 */
+	public FileChannel openImageChannel(String photoIdAsString, int size)
+			throws IllegalArgumentException, IOException {
+
+		assertValidPhotoId(photoIdAsString);
+		assertIsValidSize(size);
+
+		return doOpenImageChannel(photoIdAsString, size);
+	}
+
+	/**
+	 * Actually opens the channel; storages backed by files should override this.
+	 *
+	 * @methodtype get
+	 * @methodproperty hook
+	 */
+	protected FileChannel doOpenImageChannel(String photoIdAsString, int size)
+			throws IOException {
+
+		return null;
+	}
+
 
 	// exist method ----------------------------------------------------------------------------------------------------
 
@@ -125,7 +309,7 @@ public abstract class ImageStorage {
 			throws IllegalArgumentException {
 
 		assertValidPhotoId(photoIdAsString);
-		PhotoSize.assertIsValidPhotoSizeAsInt(size);
+		assertIsValidSize(size);
 
 		log.config(LogBuilder.createSystemMessage().
 				addAction("check if image exists in storage").
@@ -158,6 +342,17 @@ public abstract class ImageStorage {
 		}
 	}
 
+	/**
+	 * @methodtype assert
+	 */
+	protected void assertIsValidSize(int size)
+			throws IllegalArgumentException {
+
+		if (size != ORIGINAL_SIZE) {
+			PhotoSize.assertIsValidPhotoSizeAsInt(size);
+		}
+	}
+
 	/**
 	 * @methodtype assert
 	 */
@@ -38,6 +38,11 @@ public abstract class DataObject implements Persistent, Serializable {
 	 */
 	protected transient int writeCount = 0;
 
+	/**
+	 * Counts all changes of this instance; unlike the write count, it is not reset when the object is written
+	 */
+	protected transient int modificationCount = 0;
+
 	/**
 	 *
 	 */
@@ -57,6 +62,14 @@ public abstract class DataObject implements Persistent, Serializable {
 	 */
 	public final void incWriteCount() {
 		writeCount++;
+		modificationCount++;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public final int getModificationCount() {
+		return modificationCount;
 	}
 
 	/**
@@ -22,7 +22,9 @@ package org.wahlzeit.services;
 
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.googlecode.objectify.Result;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.logging.Logger;
@@ -38,6 +40,16 @@ public abstract class ObjectManager {
 	 */
 	public static final Key applicationRootKey = KeyFactory.createKey("Application", "Wahlzeit");
 
+	/**
+	 * Maximum number of entities per datastore save
+	 */
+	public static final int WRITE_BATCH_SIZE = 500;
+
+	/**
+	 * Maximum number of values of a datastore "in" filter
+	 */
+	public static final int MAX_IN_FILTER_VALUES = 30;
+
 	private static final Logger log = Logger.getLogger(ObjectManager.class.getName());
 
 
@@ -130,9 +142,7 @@ public abstract class ObjectManager {
 	 * Updates all entities of the given collection in the datastore.
 	 */
 	protected void updateObjects(Collection<? extends Persistent> collection) {
-		for (Persistent object : collection) {
-			updateObject(object);
-		}
+		writeObjects(collection);
 	}
 
 	/**
@@ -160,6 +170,40 @@ public abstract class ObjectManager {
 		}
 	}
 
+	/**
+	 * Writes all dirty entities of the collection to the datastore in batches and waits until they are saved.
+	 */
+	protected void writeObjects(Collection<? extends Persistent> objects) {
+		writeObjectsAsync(objects).await();
+	}
+
+	/**
+	 * Starts writing all dirty entities of the collection to the datastore, in chunks of at most WRITE_BATCH_SIZE
+	 * entities per asynchronous save. The caller must await the returned PendingWrites, which is when the dependents
+	 * of the objects are updated.
+	 */
+	protected PendingWrites writeObjectsAsync(Collection<? extends Persistent> objects) {
+		assertIsNonNullArgument(objects, "objects");
+
+		List<Persistent> dirtyObjects = new ArrayList<Persistent>(objects.size());
+		for (Persistent object : objects) {
+			if (object.isDirty()) {
+				dirtyObjects.add(object);
+			}
+		}
+
+		List<Result<?>> results = new ArrayList<Result<?>>();
+		for (int from = 0; from < dirtyObjects.size(); from += WRITE_BATCH_SIZE) {
+			int to = Math.min(from + WRITE_BATCH_SIZE, dirtyObjects.size());
+			results.add(OfyService.ofy().save().entities(dirtyObjects.subList(from, to)));
+		}
+
+		log.info(LogBuilder.createSystemMessage().
+				addParameter("Datastore: Write objects", dirtyObjects.size()).
+				addParameter("batches", results.size()).toString());
+		return new PendingWrites(dirtyObjects, results);
+	}
+
 	/**
 	 * Updates all dependencies of the object.
 	 */
@@ -194,6 +238,36 @@ public abstract class ObjectManager {
 		OfyService.ofy().delete().keys(keys);
 	}
 
+	/**
+	 * Deletes all entities of the type that have a property with the specified value and whose second property has
+	 * one of the given values, e.g. deleteObjects(Tag.class, "photoId", "x1abz", "text", removedTags). The values are
+	 * queried in chunks of at most MAX_IN_FILTER_VALUES, as the datastore rejects larger "in" filters.
+	 */
+	protected <E> void deleteObjects(Class<E> type, String propertyName, Object value, String inPropertyName,
+									 Collection<?> inValues) {
+		assertIsNonNullArgument(type, "type");
+		assertIsNonNullArgument(propertyName, "propertyName");
+		assertIsNonNullArgument(value, "value");
+		assertIsNonNullArgument(inPropertyName, "inPropertyName");
+		assertIsNonNullArgument(inValues, "inValues");
+
+		if (inValues.isEmpty()) {
+			return;
+		}
+
+		log.info(LogBuilder.createSystemMessage().
+				addMessage("Datastore: delete entities of type " + type + " where property " + propertyName
+						+ " == " + value + " and " + inPropertyName + " in " + inValues).toString());
+		List<?> values = new ArrayList<Object>(inValues);
+		List<com.googlecode.objectify.Key<E>> keys = new ArrayList<com.googlecode.objectify.Key<E>>();
+		for (int from = 0; from < values.size(); from += MAX_IN_FILTER_VALUES) {
+			int to = Math.min(from + MAX_IN_FILTER_VALUES, values.size());
+			keys.addAll(OfyService.ofy().load().type(type).ancestor(applicationRootKey).filter(propertyName, value).
+					filter(inPropertyName + " in", values.subList(from, to)).keys().list());
+		}
+		OfyService.ofy().delete().keys(keys).now();
+	}
+
 	/**
 	 *
 	 */
@@ -201,4 +275,45 @@ public abstract class ObjectManager {
 		assertIsNonNullArgument(arg, "anonymous");
 	}
 
+	/**
+	 * The barrier of a batched write: waits for all saves and then updates the dependents of the written objects.
+	 */
+	protected class PendingWrites {
+
+		/**
+		 *
+		 */
+		protected final List<Persistent> objects;
+		protected final List<Result<?>> results;
+
+		/**
+		 *
+		 */
+		protected PendingWrites(List<Persistent> objects, List<Result<?>> results) {
+			this.objects = objects;
+			this.results = results;
+		}
+
+		/**
+		 * @methodtype command
+		 */
+		public void await() {
+			for (Result<?> result : results) {
+				result.now();
+			}
+			for (Persistent object : objects) {
+				updateDependents(object);
+				object.resetWriteCount();
+			}
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public int getNumberOfObjects() {
+			return objects.size();
+		}
+
+	}
+
 }
@@ -30,6 +30,7 @@ public class OfyService {
 		factory().register(Guest.class);
 		factory().register(PhotoCase.class);
 		factory().register(ImageWrapper.class);
+		factory().register(ImageContent.class);
 	}
 
 	public static Objectify ofy() {
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.services;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.Logger;
+
+/**
+ * A SpooledUpload is a handle to an uploaded file in the UploadSpool. The data is only read when it is needed, and
+ * the file should be deleted once the upload has been processed.
+ */
+public class SpooledUpload {
+
+	private static final Logger log = Logger.getLogger(SpooledUpload.class.getName());
+
+	/**
+	 *
+	 */
+	protected final Path file;
+	protected final String fileName;
+	protected final long size;
+	protected final String contentHash;
+
+	/**
+	 *
+	 */
+	public SpooledUpload(Path myFile, String myFileName, long mySize, String myContentHash) {
+		file = myFile;
+		fileName = myFileName;
+		size = mySize;
+		contentHash = myContentHash;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the hash of the uploaded data, as computed by PhotoUtil.computeImageHash.
+	 *
+	 * @methodtype get
+	 */
+	public String getContentHash() {
+		return contentHash;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public Path getFile() {
+		return file;
+	}
+
+	/**
+	 * Reads the uploaded data into an array of exactly its size.
+	 *
+	 * @methodtype get
+	 */
+	public byte[] readData() throws IOException {
+		return Files.readAllBytes(file);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void delete() {
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("file", file).
+					addException("Could not delete spooled upload", e).toString());
+		}
+	}
+
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Logger;
+
+import org.wahlzeit.model.PhotoUtil;
+
+/**
+ * An UploadSpool streams uploaded files to temporary files, so that an upload never has to be held in memory as a
+ * whole. The copy buffers are pooled, and the size limit is enforced while streaming: an upload that exceeds it is
+ * aborted and its partial file is deleted.
+ *
+ * The spool can be configured through the system properties "org.wahlzeit.upload.spoolDir" and
+ * "org.wahlzeit.upload.maxBytes".
+ */
+public class UploadSpool {
+
+	private static final Logger log = Logger.getLogger(UploadSpool.class.getName());
+
+	/**
+	 *
+	 */
+	public static final String SPOOL_DIR_PROPERTY = "org.wahlzeit.upload.spoolDir";
+	public static final String MAX_BYTES_PROPERTY = "org.wahlzeit.upload.maxBytes";
+
+	/**
+	 *
+	 */
+	public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+	/**
+	 *
+	 */
+	protected static final int BUFFER_SIZE = 64 * 1024;
+	protected static final int MAX_POOLED_BUFFERS = 16;
+
+	/**
+	 *
+	 */
+	protected static UploadSpool instance = null;
+
+	/**
+	 *
+	 */
+	protected final Path spoolDir;
+	protected final long maxBytes;
+
+	/**
+	 *
+	 */
+	protected final BlockingQueue<byte[]> bufferPool = new ArrayBlockingQueue<byte[]>(MAX_POOLED_BUFFERS);
+
+	/**
+	 *
+	 */
+	public UploadSpool(Path mySpoolDir, long myMaxBytes) {
+		spoolDir = mySpoolDir;
+		maxBytes = myMaxBytes;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public static synchronized UploadSpool getInstance() {
+		if (instance == null) {
+			String defaultSpoolDir = Paths.get(System.getProperty("java.io.tmpdir"), "wahlzeit-uploads").toString();
+			Path spoolDir = Paths.get(System.getProperty(SPOOL_DIR_PROPERTY, defaultSpoolDir));
+			long maxBytes = Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES);
+			log.config(LogBuilder.createSystemMessage().
+					addAction("create UploadSpool").
+					addParameter("spool dir", spoolDir).
+					addParameter("max bytes", maxBytes).toString());
+			instance = new UploadSpool(spoolDir, maxBytes);
+		}
+		return instance;
+	}
+
+	/**
+	 * Copies the stream to a new spool file; the stream is closed.
+	 * The content hash is computed on the fly, so the data is not read twice.
+	 *
+	 * @methodtype factory
+	 */
+	public SpooledUpload spool(InputStream in, String fileName) throws IOException {
+		Files.createDirectories(spoolDir);
+		Path file = Files.createTempFile(spoolDir, "upload-", ".tmp");
+		byte[] buffer = acquireBuffer();
+		MessageDigest digest = PhotoUtil.createImageDigest();
+		long size = 0;
+		boolean isComplete = false;
+		try {
+			OutputStream out = Files.newOutputStream(file);
+			try {
+				int bytesRead = in.read(buffer);
+				while (bytesRead != -1) {
+					size += bytesRead;
+					if (size > maxBytes) {
+						throw new UploadTooLargeException(fileName, maxBytes);
+					}
+					out.write(buffer, 0, bytesRead);
+					digest.update(buffer, 0, bytesRead);
+					bytesRead = in.read(buffer);
+				}
+			} finally {
+				out.close();
+			}
+			isComplete = true;
+		} finally {
+			releaseBuffer(buffer);
+			in.close();
+			if (!isComplete) {
+				Files.deleteIfExists(file);
+			}
+		}
+
+		String contentHash = PhotoUtil.asImageHash(digest);
+		log.config(LogBuilder.createSystemMessage().
+				addParameter("Spooled upload", fileName).
+				addParameter("size", size).
+				addParameter("content hash", contentHash).toString());
+		return new SpooledUpload(file, fileName, size, contentHash);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	protected byte[] acquireBuffer() {
+		byte[] result = bufferPool.poll();
+		return (result != null) ? result : new byte[BUFFER_SIZE];
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void releaseBuffer(byte[] buffer) {
+		bufferPool.offer(buffer);
+	}
+
+	/**
+	 * Thrown while streaming an upload that exceeds the size limit.
+	 */
+	public static class UploadTooLargeException extends IOException {
+
+		/**
+		 *
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 *
+		 */
+		public UploadTooLargeException(String fileName, long maxBytes) {
+			super("Upload " + fileName + " exceeds the limit of " + maxBytes + " bytes");
+		}
+	}
+
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.services;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * A WriteBehindQueue collects objects that need to be saved and writes them later in batches. An object that is
+ * dirtied again while it waits is only written once, so repeated changes within the window are coalesced. Objects
+ * are identified by identity, as the managers keep one instance per entity in memory.
+ *
+ * The queue is in-memory, so it must be flushed by the instance that holds it: when its oldest entry is older than
+ * the window, checked at the end of each request through flushIfDue(), when it is full (the caller that finds it full
+ * pays for the flush, which is the back-pressure), and on shutdown. A request that finds the queue due writes it
+ * after its response has been committed. An instance that receives no further requests keeps its pending objects
+ * until it shuts down, so objects that must not wait, e.g. new photos, should be written directly instead.
+ *
+ * The queue can be configured through the system properties "org.wahlzeit.writeBehind.windowMillis" and
+ * "org.wahlzeit.writeBehind.maxPending".
+ */
+public class WriteBehindQueue {
+
+	private static final Logger log = Logger.getLogger(WriteBehindQueue.class.getName());
+
+	/**
+	 *
+	 */
+	public static final String WINDOW_MILLIS_PROPERTY = "org.wahlzeit.writeBehind.windowMillis";
+	public static final String MAX_PENDING_PROPERTY = "org.wahlzeit.writeBehind.maxPending";
+
+	/**
+	 *
+	 */
+	public static final long DEFAULT_WINDOW_MILLIS = 5000;
+	public static final int DEFAULT_MAX_PENDING = 1000;
+
+	/**
+	 *
+	 */
+	protected static WriteBehindQueue instance = null;
+
+	/**
+	 *
+	 */
+	protected final long windowMillis;
+	protected final int maxPending;
+
+	/**
+	 * Objects waiting to be written, each with the manager that writes it; guarded by this
+	 */
+	protected final Map<Persistent, ObjectManager> pending = new IdentityHashMap<Persistent, ObjectManager>();
+
+	/**
+	 * When the oldest pending object was enqueued
+	 */
+	protected long oldestEnqueueTime = 0;
+
+	/**
+	 *
+	 */
+	protected long enqueueCount = 0;
+	protected long coalescedCount = 0;
+	protected long writeCount = 0;
+
+	/**
+	 *
+	 */
+	public WriteBehindQueue() {
+		this(Long.getLong(WINDOW_MILLIS_PROPERTY, DEFAULT_WINDOW_MILLIS),
+				Integer.getInteger(MAX_PENDING_PROPERTY, DEFAULT_MAX_PENDING));
+	}
+
+	/**
+	 *
+	 */
+	public WriteBehindQueue(long windowMillis, int maxPending) {
+		if (maxPending < 1) {
+			throw new IllegalArgumentException("maxPending should be positive");
+		}
+		this.windowMillis = windowMillis;
+		this.maxPending = maxPending;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public static synchronized WriteBehindQueue getInstance() {
+		if (instance == null) {
+			instance = new WriteBehindQueue();
+		}
+		return instance;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public static synchronized void setInstance(WriteBehindQueue writeBehindQueue) {
+		instance = writeBehindQueue;
+	}
+
+	/**
+	 * Enqueues the object to be written by the manager. Flushes right away if the queue is full.
+	 *
+	 * @methodtype command
+	 */
+	public void enqueue(ObjectManager manager, Persistent object) {
+		boolean mustFlush;
+		synchronized (this) {
+			enqueueCount++;
+			if (pending.containsKey(object)) {
+				coalescedCount++;
+			} else {
+				if (pending.isEmpty()) {
+					oldestEnqueueTime = System.currentTimeMillis();
+				}
+				pending.put(object, manager);
+			}
+			mustFlush = isFull();
+		}
+
+		if (mustFlush) {
+			flush();
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public synchronized boolean isFlushDue() {
+		return isDue();
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void flushIfDue() {
+		if (isFlushDue()) {
+			flush();
+		}
+	}
+
+	/**
+	 * Writes all pending objects, one batch per manager, and waits until they are saved. The batches of all managers
+	 * are started before the first one is waited for. Objects of a batch that fails stay queued; objects that were
+	 * enqueued again while being written stay dirty. Returns the number of objects written.
+	 *
+	 * @methodtype command
+	 */
+	public int flush() {
+		Map<ObjectManager, List<Persistent>> batches = drainPending();
+		Map<ObjectManager, ObjectManager.PendingWrites> writes =
+				new IdentityHashMap<ObjectManager, ObjectManager.PendingWrites>();
+		for (Map.Entry<ObjectManager, List<Persistent>> batch : batches.entrySet()) {
+			try {
+				writes.put(batch.getKey(), batch.getKey().writeObjectsAsync(batch.getValue()));
+			} catch (RuntimeException e) {
+				handleWriteFailure(batch.getKey(), batch.getValue(), e);
+			}
+		}
+
+		int result = 0;
+		for (Map.Entry<ObjectManager, ObjectManager.PendingWrites> write : writes.entrySet()) {
+			List<Persistent> objects = batches.get(write.getKey());
+			try {
+				write.getValue().await();
+				result += objects.size();
+				keepRequeuedObjectsDirty(objects);
+			} catch (RuntimeException e) {
+				handleWriteFailure(write.getKey(), objects, e);
+			}
+		}
+
+		synchronized (this) {
+			writeCount += result;
+		}
+		if (result > 0) {
+			log.info(LogBuilder.createSystemMessage().addParameter("Write-behind: objects written", result).toString());
+		}
+		return result;
+	}
+
+	/**
+	 * Removes all pending objects from the queue and groups them by their manager.
+	 *
+	 * @methodtype command
+	 */
+	protected synchronized Map<ObjectManager, List<Persistent>> drainPending() {
+		Map<ObjectManager, List<Persistent>> batches = new IdentityHashMap<ObjectManager, List<Persistent>>();
+		for (Map.Entry<Persistent, ObjectManager> entry : pending.entrySet()) {
+			List<Persistent> batch = batches.get(entry.getValue());
+			if (batch == null) {
+				batch = new ArrayList<Persistent>();
+				batches.put(entry.getValue(), batch);
+			}
+			batch.add(entry.getKey());
+		}
+		pending.clear();
+		return batches;
+	}
+
+	/**
+	 * A written object has its write count reset; one that was changed and enqueued again in the meantime must still
+	 * be written by its next batch.
+	 *
+	 * @methodtype command
+	 */
+	protected synchronized void keepRequeuedObjectsDirty(List<Persistent> objects) {
+		for (Persistent object : objects) {
+			if (pending.containsKey(object) && !object.isDirty()) {
+				object.incWriteCount();
+			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void handleWriteFailure(ObjectManager manager, List<Persistent> objects, RuntimeException e) {
+		log.warning(LogBuilder.createSystemMessage().
+				addParameter("objects", objects.size()).
+				addException("Problem when writing behind", e).toString());
+		requeue(manager, objects);
+	}
+
+	/**
+	 * Puts the objects of a failed batch back and retries them after another window, so that a failing datastore is
+	 * not hit with every request.
+	 *
+	 * @methodtype command
+	 */
+	protected synchronized void requeue(ObjectManager manager, List<Persistent> objects) {
+		oldestEnqueueTime = System.currentTimeMillis();
+		for (Persistent object : objects) {
+			if (!pending.containsKey(object)) {
+				pending.put(object, manager);
+			}
+		}
+	}
+
+	/**
+	 * Must be called while holding the lock on this.
+	 *
+	 * @methodtype boolean-query
+	 */
+	protected boolean isDue() {
+		return !pending.isEmpty() && (System.currentTimeMillis() - oldestEnqueueTime >= windowMillis);
+	}
+
+	/**
+	 * Must be called while holding the lock on this.
+	 *
+	 * @methodtype boolean-query
+	 */
+	protected boolean isFull() {
+		return pending.size() >= maxPending;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized int size() {
+		return pending.size();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getEnqueueCount() {
+		return enqueueCount;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getCoalescedCount() {
+		return coalescedCount;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getWriteCount() {
+		return writeCount;
+	}
+
+	/**
+	 *
+	 */
+	@Override
+	public synchronized String toString() {
+		return "WriteBehindQueue[pending=" + pending.size() + ", enqueued=" + enqueueCount + ", coalesced=" +
+				coalescedCount + ", written=" + writeCount + "]";
+	}
+
+}
@@ -25,7 +25,10 @@ import org.wahlzeit.model.UserSession;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.services.Session;
 import org.wahlzeit.services.SessionManager;
+import org.wahlzeit.services.WriteBehindQueue;
+import org.wahlzeit.utils.AcceptHeader;
 import org.wahlzeit.utils.StringUtil;
+import org.wahlzeit.webparts.DeferredGzipOutputStream;
 import org.wahlzeit.webparts.WebPart;
 
 import javax.servlet.ServletException;
@@ -34,6 +37,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.util.Iterator;
@@ -90,6 +94,7 @@ public abstract class AbstractServlet extends HttpServlet {
 		}
 
 		SessionManager.dropThreadLocalSession();
+		flushWritesIfDue(response);
 	}
 
 	/**
@@ -109,6 +114,19 @@ public abstract class AbstractServlet extends HttpServlet {
 		}
 
 		SessionManager.dropThreadLocalSession();
+		flushWritesIfDue(response);
+	}
+
+	/**
+	 * The write-behind queue lives on this instance, so its requests have to drive its flushes. The response is
+	 * committed first, so that the client does not wait for the datastore where the container sends it right away.
+	 */
+	protected void flushWritesIfDue(HttpServletResponse response) throws IOException {
+		WriteBehindQueue writeBehindQueue = WriteBehindQueue.getInstance();
+		if (writeBehindQueue.isFlushDue()) {
+			response.flushBuffer();
+			writeBehindQueue.flushIfDue();
+		}
 	}
 
 	/**
@@ -177,21 +195,78 @@ public abstract class AbstractServlet extends HttpServlet {
 	/**
 	 *
 	 */
-	protected void configureResponse(Session ctx, HttpServletResponse response, WebPart result) throws IOException {
+	protected void configureResponse(HttpServletRequest request, Session ctx, HttpServletResponse response,
+									 WebPart result) throws IOException {
+		addProcessingTime(ctx, result);
+
+		response.setContentType("text/html");
+		response.setHeader("Vary", "Accept-Encoding");
+
+		OutputStream out = createOutputStream(request, response);
+		result.writeOn(out);
+		out.close();
+
+		response.setStatus(HttpServletResponse.SC_OK);
+	}
+
+	/**
+	 *
+	 */
+	protected void addProcessingTime(Session ctx, WebPart result) {
 		long processingTime = ctx.getProcessingTime();
 		result.addString("processingTime", StringUtil.asStringInSeconds((processingTime == 0) ? 1 : processingTime));
 		log.config(LogBuilder.createSystemMessage().
 				addParameter("proctime", String.valueOf(processingTime)).toString());
+	}
 
+	/**
+	 * Writes a page that has already been rendered, e.g. one from the PageCache. The gzipped page, if any, is sent to
+	 * clients accepting it as it is; without, the page is compressed on the fly if it is large enough.
+	 */
+	protected void configureResponse(HttpServletRequest request, HttpServletResponse response, byte[] page,
+									 byte[] gzippedPage) throws IOException {
 		response.setContentType("text/html");
-
-		PrintWriter out = response.getWriter();
-		result.writeOn(out);
+		response.setHeader("Vary", "Accept-Encoding");
+
+		OutputStream out;
+		if (gzippedPage != null && acceptsGzip(request)) {
+			response.setHeader("Content-Encoding", "gzip");
+			response.setContentLength(gzippedPage.length);
+			out = response.getOutputStream();
+			out.write(gzippedPage);
+		} else {
+			out = createOutputStream(request, response);
+			out.write(page);
+		}
 		out.close();
 
 		response.setStatus(HttpServletResponse.SC_OK);
 	}
 
+	/**
+	 * Returns a stream gzipping the response if the client accepts it and it reaches the minimum size.
+	 */
+	protected OutputStream createOutputStream(HttpServletRequest request, final HttpServletResponse response)
+			throws IOException {
+		OutputStream result = response.getOutputStream();
+		if (acceptsGzip(request)) {
+			result = new DeferredGzipOutputStream(result, DeferredGzipOutputStream.getMinBytes()) {
+				@Override
+				protected void startCompression() {
+					response.setHeader("Content-Encoding", "gzip");
+				}
+			};
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	protected boolean acceptsGzip(HttpServletRequest request) {
+		return AcceptHeader.acceptsExplicitly(request.getHeader("Accept-Encoding"), "gzip");
+	}
+
 	/**
 	 *
 	 */
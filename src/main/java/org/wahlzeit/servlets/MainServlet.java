@@ -21,25 +21,34 @@
 package org.wahlzeit.servlets;
 
 import com.google.api.client.util.Charsets;
-import com.google.appengine.api.images.Image;
-import com.google.appengine.api.images.ImagesServiceFactory;
 import com.google.common.io.CharStreams;
 import org.apache.commons.fileupload.FileItemIterator;
 import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.wahlzeit.handlers.CacheableWebPageHandler;
 import org.wahlzeit.handlers.PartUtil;
 import org.wahlzeit.handlers.WebFormHandler;
 import org.wahlzeit.handlers.WebPageHandler;
 import org.wahlzeit.handlers.WebPartHandlerManager;
+import org.wahlzeit.main.ServiceMain;
+import org.wahlzeit.model.Client;
+import org.wahlzeit.model.Guest;
+import org.wahlzeit.model.PhotoFilter;
 import org.wahlzeit.model.User;
+import org.wahlzeit.model.UserManager;
 import org.wahlzeit.model.UserSession;
+import org.wahlzeit.services.DataObject;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.services.SessionManager;
+import org.wahlzeit.services.SpooledUpload;
+import org.wahlzeit.services.UploadSpool;
+import org.wahlzeit.webparts.PageCache;
 import org.wahlzeit.webparts.WebPart;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -60,6 +69,86 @@ public class MainServlet extends AbstractServlet {
 	 */
 	private static final long serialVersionUID = 42L; // any one does; class never serialized
 
+	/**
+	 * Request attribute holding the page cache key of a page to be rendered for the cache
+	 */
+	protected static final String PAGE_CACHE_KEY_ATTRIBUTE = "org.wahlzeit.pageCacheKey";
+
+	/**
+	 * Pages of anonymous guests are served from the PageCache. A request comes from an anonymous guest if it has no
+	 * session yet, or if the client of its session is a guest whose pages still look like those of a new guest, i.e.
+	 * one that has neither personalized its settings nor set a photo filter. Pages are cached per language, so guests
+	 * keep the language of their session. Logged-in users and personalized guests bypass the cache.
+	 */
+	@Override
+	public void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		String language = getPageCacheLanguage(request);
+		if (language != null && !ServiceMain.getInstance().isShuttingDown()) {
+			request.setCharacterEncoding("UTF-8");
+			response.setCharacterEncoding("UTF-8");
+
+			String link = getLink(request);
+			WebPageHandler handler = WebPartHandlerManager.getWebPageHandler(link);
+			String pageCacheKey = getPageCacheKey(request, language, handler, link);
+			if (pageCacheKey != null) {
+				DataObject dependency = ((CacheableWebPageHandler) handler).getPageCacheDependency(link);
+				PageCache.CachedPage page = PageCache.getInstance().getPage(pageCacheKey, dependency);
+				if (page != null) {
+					log.info(LogBuilder.createSystemMessage().addParameter("cached page", pageCacheKey).toString());
+					configureResponse(request, response, page.getData(), page.getGzippedData());
+					flushWritesIfDue(response);
+					return;
+				}
+				request.setAttribute(PAGE_CACHE_KEY_ATTRIBUTE, pageCacheKey);
+			}
+		}
+
+		super.doGet(request, response);
+	}
+
+	/**
+	 * Returns the language pages for an anonymous guest are rendered in, or null if the request does not come from
+	 * one. A request without session is rendered for a new guest, which takes the language of the request.
+	 */
+	protected String getPageCacheLanguage(HttpServletRequest request) {
+		HttpSession httpSession = request.getSession(false);
+		if (httpSession == null) {
+			return request.getLocale().getLanguage();
+		}
+
+		String clientId = (String) httpSession.getAttribute(UserSession.CLIENT_ID);
+		Client client = (clientId != null) ? UserManager.getInstance().getClientById(clientId) : null;
+		if (!(client instanceof Guest) || !((Guest) client).hasDefaultSettings()) {
+			return null;
+		}
+
+		PhotoFilter filter = (PhotoFilter) httpSession.getAttribute(UserSession.PHOTO_FILTER);
+		if (filter == null || !filter.getUserName().isEmpty() || filter.getTags().getSize() > 0) {
+			return null;
+		}
+
+		return client.getLanguage().asIsoCode();
+	}
+
+	/**
+	 * Returns the key of the page in the PageCache, or null if the handler does not cache it. Pages depend on the
+	 * site and the language in addition to what the handler declares.
+	 */
+	protected String getPageCacheKey(HttpServletRequest request, String language, WebPageHandler handler,
+									 String link) {
+		if (!(handler instanceof CacheableWebPageHandler)) {
+			return null;
+		}
+
+		@SuppressWarnings("unchecked")
+		Map<String, String[]> args = request.getParameterMap();
+		String handlerKey = ((CacheableWebPageHandler) handler).getPageCacheKey(link, args);
+		if (handlerKey == null) {
+			return null;
+		}
+		return getSiteUrl(request) + " " + language + " " + handlerKey;
+	}
+
 	/**
 	 *
 	 */
@@ -99,14 +188,7 @@ public class MainServlet extends AbstractServlet {
 		long startTime = System.currentTimeMillis();
 
 		UserSession us = (UserSession) SessionManager.getThreadLocalSession();
-		String link = request.getRequestURI();
-		int linkStart = link.lastIndexOf("/") + 1;
-		int linkEnd = link.indexOf(".html");
-		if (linkEnd == -1) {
-			linkEnd = link.length();
-		}
-
-		link = link.substring(linkStart, linkEnd);
+		String link = getLink(request);
 		log.info(LogBuilder.createUserMessage().addParameter("requested URI", request.getRequestURI()).toString());
 
 
@@ -120,9 +202,15 @@ public class MainServlet extends AbstractServlet {
 		}
 
 		if (newLink.equals(link)) { // no redirect necessary
-			WebPart result = handler.makeWebPart(us);
-			us.addProcessingTime(System.currentTimeMillis() - startTime);
-			configureResponse(us, response, result);
+			String pageCacheKey = (String) request.getAttribute(PAGE_CACHE_KEY_ATTRIBUTE);
+			if (pageCacheKey != null) {
+				renderAndCachePage(request, us, response, (CacheableWebPageHandler) handler, link, pageCacheKey,
+						startTime);
+			} else {
+				WebPart result = handler.makeWebPart(us);
+				us.addProcessingTime(System.currentTimeMillis() - startTime);
+				configureResponse(request, us, response, result);
+			}
 			us.clearSavedArgs(); // saved args go from post to next get
 			us.resetProcessingTime();
 		} else {
@@ -132,6 +220,43 @@ public class MainServlet extends AbstractServlet {
 		SessionManager.dropThreadLocalSession();
 	}
 
+	/**
+	 * Renders the page, puts it into the PageCache, and writes it, using the gzipped copy made for the cache. The
+	 * modification count of the dependency is taken before rendering, so changes made meanwhile invalidate the page.
+	 */
+	protected void renderAndCachePage(HttpServletRequest request, UserSession us, HttpServletResponse response,
+									  CacheableWebPageHandler handler, String link, String pageCacheKey,
+									  long startTime) throws IOException {
+		DataObject dependency = handler.getPageCacheDependency(link);
+		int modificationCount = (dependency != null) ? dependency.getModificationCount() : 0;
+
+		WebPart result = handler.makeWebPart(us);
+		us.addProcessingTime(System.currentTimeMillis() - startTime);
+		addProcessingTime(us, result);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		result.writeOn(out);
+		byte[] page = out.toByteArray();
+
+		PageCache.CachedPage cachedPage = PageCache.getInstance().put(pageCacheKey, page,
+				handler.getPageCacheTtlMillis(), dependency, modificationCount);
+		byte[] gzippedPage = (cachedPage != null) ? cachedPage.getGzippedData() : null;
+		configureResponse(request, response, page, gzippedPage);
+	}
+
+	/**
+	 * Returns the name of the requested page, e.g. "about" for "/about.html".
+	 */
+	protected String getLink(HttpServletRequest request) {
+		String link = request.getRequestURI();
+		int linkStart = link.lastIndexOf("/") + 1;
+		int linkEnd = link.indexOf(".html");
+		if (linkEnd == -1) {
+			linkEnd = link.length();
+		}
+
+		return link.substring(linkStart, linkEnd);
+	}
+
 	/**
 	 *
 	 */
@@ -146,7 +271,8 @@ public class MainServlet extends AbstractServlet {
 
 	/**
 	 * Searches for files in the request and puts them in the resulting map with the key "fileName". When a file is
-	 * found, you can access its path by searching for elements with the key "fileName".
+	 * found, you can access its path by searching for elements with the key "fileName". The file itself is streamed
+	 * to the UploadSpool, and the user only keeps a handle to it.
 	 */
 	protected Map getMultiPartRequestArgs(HttpServletRequest request, UserSession us) throws IOException,
 			ServletException {
@@ -161,10 +287,16 @@ public class MainServlet extends AbstractServlet {
 				String filename = fileItemStream.getName();
 
 				if (!fileItemStream.isFormField()) {
-					InputStream inputStream = fileItemStream.openStream();
-					Image image = getImage(inputStream);
 					User user = (User) us.getClient();
-					user.setUploadedImage(image);
+					try {
+						InputStream inputStream = fileItemStream.openStream();
+						SpooledUpload spooledUpload = UploadSpool.getInstance().spool(inputStream, filename);
+						user.setUpload(spooledUpload);
+					} catch (UploadSpool.UploadTooLargeException e) {
+						// the handler finds no upload and reports the failure
+						log.warning(LogBuilder.createSystemMessage().addException("Upload rejected", e).toString());
+						user.setUpload(null);
+					}
 					result.put("fileName", filename);
 					log.config(LogBuilder.createSystemMessage().addParameter("Uploaded image", filename).toString());
 				} else {
@@ -183,24 +315,4 @@ public class MainServlet extends AbstractServlet {
 
 		return result;
 	}
-
-	/**
-	 * Create an Image object from the Input stream.
-	 */
-	private Image getImage(InputStream input) throws IOException {
-		Image image;
-		try {
-			ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-			byte[] buffer = new byte[1024 * 1024];
-			int bytesRead = input.read(buffer);
-			while (bytesRead != -1) {
-				outputStream.write(buffer, 0, bytesRead);
-				bytesRead = input.read(buffer);
-			}
-			image = ImagesServiceFactory.makeImage(outputStream.toByteArray());
-		} finally {
-			input.close();
-		}
-		return image;
-	}
 }
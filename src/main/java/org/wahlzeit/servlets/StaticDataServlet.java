@@ -1,17 +1,27 @@
 package org.wahlzeit.servlets;
 
-import com.google.appengine.api.images.Image;
 import org.apache.http.HttpStatus;
+import org.wahlzeit.model.ImageEncoding;
 import org.wahlzeit.model.Photo;
+import org.wahlzeit.model.PhotoId;
 import org.wahlzeit.model.PhotoManager;
 import org.wahlzeit.model.PhotoSize;
-import org.wahlzeit.model.persistence.ImageStorage;
+import org.wahlzeit.model.PhotoUtil;
 import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.utils.AcceptHeader;
+import org.wahlzeit.utils.ByteRange;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.io.Serializable;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 
 /**
@@ -26,6 +36,28 @@ public class StaticDataServlet extends AbstractServlet {
 
 	Logger log = Logger.getLogger(StaticDataServlet.class.getName());
 
+	/**
+	 *
+	 */
+	public static final String ETAG_HEADER = "ETag";
+	public static final String LAST_MODIFIED_HEADER = "Last-Modified";
+	public static final String CACHE_CONTROL_HEADER = "Cache-Control";
+	public static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+	public static final String IF_MODIFIED_SINCE_HEADER = "If-Modified-Since";
+	public static final String ACCEPT_RANGES_HEADER = "Accept-Ranges";
+	public static final String RANGE_HEADER = "Range";
+	public static final String IF_RANGE_HEADER = "If-Range";
+	public static final String CONTENT_RANGE_HEADER = "Content-Range";
+	public static final String ACCEPT_HEADER = "Accept";
+	public static final String VARY_HEADER = "Vary";
+	public static final String MULTIPART_BYTERANGES = "multipart/byteranges; boundary=";
+
+	/**
+	 *
+	 */
+	public static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+	public static final String NO_STORE_CACHE_CONTROL = "no-store";
+
 	@Override
 	public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
 		try {
@@ -40,15 +72,7 @@ public class StaticDataServlet extends AbstractServlet {
 					addParameter("size", size).toString());
 
 			if ("image".equals(type)) {
-				Image image = getImage(photoId, size);
-				if (image != null) {
-					response.getOutputStream().write(image.getImageData());
-					response.getOutputStream().flush();
-					response.setStatus(HttpStatus.SC_OK);
-				} else {
-					log.warning(LogBuilder.createSystemMessage().addMessage("image not found").toString());
-					response.setStatus(HttpStatus.SC_NOT_FOUND);
-				}
+				writeImage(PhotoId.getIdFromString(photoId), PhotoSize.getFromInt(size), request, response);
 			} else {
 				log.warning(LogBuilder.createSystemMessage().
 						addMessage("unimplemented static resource type has been requested").toString());
@@ -63,29 +87,336 @@ public class StaticDataServlet extends AbstractServlet {
 	/**
 	 * @methodtype command
 	 *
-	 * Loads image either from the <@link>PhotoManager</@link> or from the <@link>ImageStorage</@link>. If image does
-	 * not exist, null is returned.
+	 * Streams the image, or the requested ranges of it, to the response, unless the client's copy is still valid.
+	 * File-backed renditions are transferred from their FileChannel, all others are written from their buffer or read
+	 * positionally; in neither case is the whole image loaded into a byte array.
 	 */
-	private Image getImage(String photoId, int size) {
-		Image image = null;
-		Photo photo = PhotoManager.getInstance().getPhoto(photoId);
+	protected void writeImage(PhotoId photoId, PhotoSize photoSize, HttpServletRequest request,
+							  HttpServletResponse response) throws IOException {
+		PhotoManager photoManager = PhotoManager.getInstance();
+		Photo photo = photoManager.getPhoto(photoId);
+		ImageEncoding encoding = ImageEncoding.ORIGINAL;
+		String contentType = PhotoUtil.getContentType(null);
 		if (photo != null) {
-			PhotoSize photoSize = PhotoSize.getFromInt(size);
-			image = photo.getImage(photoSize);
-		}
-		// if not in cache load from Google Cloud Storage
-		if (image == null) {
-			Serializable rawImage = null;
-			try {
-				rawImage = ImageStorage.getInstance().readImage(photoId, size);
-			} catch (IOException e) {
-				log.warning(LogBuilder.createSystemMessage().addException("Problem when reading image.", e).toString());
+			encoding = negotiateEncoding(request, response, photo, photoSize);
+			contentType = encoding.isOriginal() ? photo.getContentType() : encoding.getContentType();
+		}
+
+		String eTag = (photo != null) ? getETag(photo, photoSize, encoding) : null;
+		long lastModified = (photo != null) ? photo.getCreationTime() : -1;
+		if (photo != null && isNotModified(request, eTag, lastModified)) {
+			setValidatorHeaders(response, eTag, lastModified);
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		FileChannel imageChannel = photoManager.openImageChannel(photoId, photoSize, encoding);
+		try {
+			long length = (imageChannel != null) ? imageChannel.size() :
+					photoManager.getImageDataLength(photoId, photoSize, encoding);
+			if (length < 0) {
+				// the rendition may be pending or storage may have failed, so the answer must not be cached
+				log.warning(LogBuilder.createSystemMessage().addMessage("image not found").toString());
+				response.setHeader(CACHE_CONTROL_HEADER, NO_STORE_CACHE_CONTROL);
+				response.setStatus(HttpStatus.SC_NOT_FOUND);
+				return;
 			}
-			if (rawImage != null && rawImage instanceof Image) {
-				image = (Image) rawImage;
+
+			if (photo != null) {
+				setValidatorHeaders(response, eTag, lastModified);
+			}
+			response.setHeader(ACCEPT_RANGES_HEADER, "bytes");
+			List<ByteRange> ranges = getRequestedRanges(request, eTag, lastModified, length);
+			if (ranges == null) {
+				setImageHeaders(response, contentType, length);
+				if (imageChannel != null) {
+					transferImageData(imageChannel, 0, length, response.getOutputStream());
+				} else {
+					writeImageData(photoManager.getImageData(photoId, photoSize, encoding), response.getOutputStream());
+				}
+			} else if (ranges.isEmpty()) {
+				response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+				response.setHeader(CONTENT_RANGE_HEADER, "bytes */" + length);
+			} else {
+				ImageSource imageSource = new ImageSource(photoId, photoSize, encoding, imageChannel);
+				if (ranges.size() == 1) {
+					writeSingleRange(imageSource, ranges.get(0), contentType, length, response);
+				} else {
+					writeMultipleRanges(imageSource, ranges, contentType, length, response);
+				}
+			}
+			response.getOutputStream().flush();
+		} finally {
+			if (imageChannel != null) {
+				imageChannel.close();
 			}
 		}
-		return image;
 	}
-}
 
+	/**
+	 * Returns the ranges requested by the Range header, or null if the whole image should be served, e.g. because
+	 * If-Range does not match the current image.
+	 *
+	 * @methodtype get
+	 */
+	protected List<ByteRange> getRequestedRanges(HttpServletRequest request, String eTag, long lastModified,
+												 long length) {
+		String range = request.getHeader(RANGE_HEADER);
+		if (range == null) {
+			return null;
+		}
+
+		String ifRange = request.getHeader(IF_RANGE_HEADER);
+		if (ifRange != null) {
+			if (ifRange.startsWith("\"")) {
+				if (!ifRange.equals(eTag)) {
+					return null;
+				}
+			} else {
+				long ifRangeDate;
+				try {
+					ifRangeDate = request.getDateHeader(IF_RANGE_HEADER);
+				} catch (IllegalArgumentException e) {
+					return null;
+				}
+				if (lastModified < 0 || (lastModified / 1000) != (ifRangeDate / 1000)) {
+					return null;
+				}
+			}
+		}
+
+		return ByteRange.parse(range, length);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void writeSingleRange(ImageSource imageSource, ByteRange range, String contentType, long length,
+									HttpServletResponse response) throws IOException {
+		response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+		response.setContentType(contentType);
+		response.setHeader(CONTENT_RANGE_HEADER, range.asContentRange(length));
+		response.setContentLength((int) range.getLength());
+		imageSource.writeRange(range, response.getOutputStream());
+	}
+
+	/**
+	 * Writes the ranges as a multipart/byteranges body.
+	 *
+	 * @methodtype command
+	 */
+	protected void writeMultipleRanges(ImageSource imageSource, List<ByteRange> ranges, String contentType,
+									   long length, HttpServletResponse response) throws IOException {
+		String boundary = Long.toHexString(System.nanoTime()) + Integer.toHexString(ranges.hashCode());
+
+		List<byte[]> partHeaders = new ArrayList<byte[]>(ranges.size());
+		long contentLength = 0;
+		for (ByteRange range : ranges) {
+			String partHeader = "\r\n--" + boundary + "\r\n" +
+					"Content-Type: " + contentType + "\r\n" +
+					CONTENT_RANGE_HEADER + ": " + range.asContentRange(length) + "\r\n\r\n";
+			byte[] partHeaderBytes = partHeader.getBytes(StandardCharsets.US_ASCII);
+			partHeaders.add(partHeaderBytes);
+			contentLength += partHeaderBytes.length + range.getLength();
+		}
+		byte[] closingBoundary = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+		contentLength += closingBoundary.length;
+
+		response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+		response.setContentType(MULTIPART_BYTERANGES + boundary);
+		response.setContentLength((int) contentLength);
+
+		OutputStream out = response.getOutputStream();
+		for (int i = 0; i < ranges.size(); i++) {
+			out.write(partHeaders.get(i));
+			imageSource.writeRange(ranges.get(i), out);
+		}
+		out.write(closingBoundary);
+	}
+
+	/**
+	 * Returns the encoding to serve: the first additional encoding of the rendition that the client lists explicitly
+	 * in its Accept header, or ORIGINAL. Responses for renditions with additional encodings vary by Accept.
+	 *
+	 * @methodtype get
+	 */
+	protected ImageEncoding negotiateEncoding(HttpServletRequest request, HttpServletResponse response, Photo photo,
+											  PhotoSize photoSize) {
+		ImageEncoding result = ImageEncoding.ORIGINAL;
+		String accept = request.getHeader(ACCEPT_HEADER);
+		for (ImageEncoding encoding : ImageEncoding.values()) {
+			if (encoding.isOriginal() || !photo.hasEncoding(photoSize, encoding)) {
+				continue;
+			}
+			response.setHeader(VARY_HEADER, ACCEPT_HEADER);
+			if (result.isOriginal() && AcceptHeader.acceptsExplicitly(accept, encoding.getContentType())) {
+				result = encoding;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a strong ETag from the content hash of the rendition, or null if the photo has no hash for it. Additional
+	 * encodings are derived from the rendition, so their ETag is the one of the rendition with the encoding appended.
+	 *
+	 * @methodtype get
+	 */
+	protected String getETag(Photo photo, PhotoSize photoSize, ImageEncoding encoding) {
+		String imageHash = photo.getImageHash(photoSize);
+		if (imageHash == null) {
+			return null;
+		}
+		return encoding.isOriginal() ? "\"" + imageHash + "\"" : "\"" + imageHash + "-" + encoding.asString() + "\"";
+	}
+
+	/**
+	 * Renditions never change for a given URL, so they may be cached for a year without revalidation. Only to be
+	 * called once the rendition is known to exist.
+	 *
+	 * @methodtype command
+	 */
+	protected void setValidatorHeaders(HttpServletResponse response, String eTag, long lastModified) {
+		if (eTag != null) {
+			response.setHeader(ETAG_HEADER, eTag);
+		}
+		response.setDateHeader(LAST_MODIFIED_HEADER, lastModified);
+		response.setHeader(CACHE_CONTROL_HEADER, IMMUTABLE_CACHE_CONTROL);
+	}
+
+	/**
+	 * Evaluates If-None-Match and, if absent, If-Modified-Since, without touching the image storage.
+	 *
+	 * @methodtype boolean-query
+	 */
+	protected boolean isNotModified(HttpServletRequest request, String eTag, long lastModified) {
+		String ifNoneMatch = request.getHeader(IF_NONE_MATCH_HEADER);
+		if (ifNoneMatch != null) {
+			if (eTag == null) {
+				return false;
+			}
+			for (String candidate : ifNoneMatch.split(",")) {
+				String trimmedCandidate = candidate.trim();
+				if (trimmedCandidate.startsWith("W/")) {
+					trimmedCandidate = trimmedCandidate.substring(2);
+				}
+				if ("*".equals(trimmedCandidate) || eTag.equals(trimmedCandidate)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		long ifModifiedSince;
+		try {
+			ifModifiedSince = request.getDateHeader(IF_MODIFIED_SINCE_HEADER);
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+		// HTTP dates have a resolution of seconds
+		return ifModifiedSince >= 0 && (lastModified / 1000) <= (ifModifiedSince / 1000);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void setImageHeaders(HttpServletResponse response, String contentType, long length) {
+		response.setStatus(HttpStatus.SC_OK);
+		response.setContentType(contentType);
+		response.setContentLength((int) length);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Writes the image data to the stream without requiring it to be backed by a heap array.
+	 */
+	protected void writeImageData(ByteBuffer imageData, OutputStream out) throws IOException {
+		WritableByteChannel channel = Channels.newChannel(out);
+		while (imageData.hasRemaining()) {
+			channel.write(imageData);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Transfers the part of the file to the stream. The stream is no channel the file can be sent to directly, so
+	 * this is not zero-copy: the data passes through a small buffer, but the file is never loaded as a whole. Fails
+	 * if the file ends before the part, e.g. because it has been truncated in the meantime.
+	 */
+	protected static void transferImageData(FileChannel imageChannel, long position, long count, OutputStream out)
+			throws IOException {
+		WritableByteChannel channel = Channels.newChannel(out);
+		long end = position + count;
+		while (position < end) {
+			long transferred = imageChannel.transferTo(position, end - position, channel);
+			if (transferred <= 0) {
+				throw new IOException("Image ended before the requested range");
+			}
+			position += transferred;
+		}
+	}
+
+	/**
+	 * The rendition a range request is served from: its FileChannel if the storage is backed by files, positional
+	 * reads through the PhotoManager otherwise. Only the requested bytes pass through a small transfer buffer.
+	 */
+	protected static class ImageSource {
+
+		/**
+		 *
+		 */
+		protected static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+		/**
+		 *
+		 */
+		protected final PhotoId photoId;
+		protected final PhotoSize photoSize;
+		protected final ImageEncoding encoding;
+		protected final FileChannel imageChannel;
+
+		/**
+		 *
+		 */
+		protected ImageSource(PhotoId myPhotoId, PhotoSize myPhotoSize, ImageEncoding myEncoding,
+							  FileChannel myImageChannel) {
+			photoId = myPhotoId;
+			photoSize = myPhotoSize;
+			encoding = myEncoding;
+			imageChannel = myImageChannel;
+		}
+
+		/**
+		 * @methodtype command
+		 */
+		protected void writeRange(ByteRange range, OutputStream out) throws IOException {
+			if (imageChannel != null) {
+				transferImageData(imageChannel, range.getFirst(), range.getLength(), out);
+				return;
+			}
+
+			PhotoManager photoManager = PhotoManager.getInstance();
+			WritableByteChannel channel = Channels.newChannel(out);
+			ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(TRANSFER_BUFFER_SIZE, range.getLength()));
+			long position = range.getFirst();
+			long end = range.getLast() + 1;
+			while (position < end) {
+				buffer.clear();
+				if (end - position < buffer.capacity()) {
+					buffer.limit((int) (end - position));
+				}
+				int read = photoManager.readImageData(photoId, photoSize, encoding, position, buffer);
+				if (read <= 0) {
+					throw new IOException("Image ended before the requested range");
+				}
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				position += read;
+			}
+		}
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.utils;
+
+/**
+ * AcceptHeader evaluates the value of an HTTP Accept header, or of one of its kin like Accept-Encoding.
+ */
+public class AcceptHeader {
+
+	/**
+	 * Returns the quality value with which the media type, e.g. "image/webp", or the content coding, e.g. "gzip", is
+	 * listed in the header; 0 if it is not listed explicitly. Wildcards like "image/*" are not taken into account, as
+	 * clients send them for types they cannot decode.
+	 *
+	 * @methodtype get
+	 */
+	public static double getExplicitQuality(String header, String mediaType) {
+		if (header == null || mediaType == null) {
+			return 0;
+		}
+
+		for (String mediaRange : header.split(",")) {
+			String[] parameters = mediaRange.split(";");
+			if (!parameters[0].trim().equalsIgnoreCase(mediaType)) {
+				continue;
+			}
+
+			double result = 1;
+			for (int i = 1; i < parameters.length; i++) {
+				String parameter = parameters[i].trim();
+				if (parameter.startsWith("q=")) {
+					try {
+						result = Double.parseDouble(parameter.substring(2));
+					} catch (NumberFormatException e) {
+						result = 0;
+					}
+				}
+			}
+			return result;
+		}
+
+		return 0;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public static boolean acceptsExplicitly(String header, String mediaType) {
+		return getExplicitQuality(header, mediaType) > 0;
+	}
+
+}
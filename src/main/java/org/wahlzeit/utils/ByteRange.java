@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A ByteRange is a range of bytes [first, last] of a resource, as requested by an HTTP Range header.
+ */
+public class ByteRange {
+
+	/**
+	 *
+	 */
+	public static final String BYTES_UNIT = "bytes=";
+
+	/**
+	 * More ranges than this are not served as ranges, to keep clients from requesting many tiny pieces
+	 */
+	public static final int MAX_RANGES = 16;
+
+	/**
+	 *
+	 */
+	protected final long first;
+	protected final long last;
+
+	/**
+	 *
+	 */
+	public ByteRange(long myFirst, long myLast) {
+		if (myFirst < 0 || myLast < myFirst) {
+			throw new IllegalArgumentException("Invalid byte range " + myFirst + "-" + myLast);
+		}
+		first = myFirst;
+		last = myLast;
+	}
+
+	/**
+	 * Parses the value of a Range header for a resource of the given length. Returns null if the header is missing,
+	 * malformed, or asks for too many ranges, so that the whole resource should be served; returns an empty list if no
+	 * range is satisfiable. Ranges reaching beyond the end are shortened to it, and overlapping or adjacent ranges are
+	 * merged, so that no byte is served twice.
+	 *
+	 * @methodtype factory
+	 */
+	public static List<ByteRange> parse(String header, long length) {
+		if (header == null || !header.startsWith(BYTES_UNIT)) {
+			return null;
+		}
+
+		String[] specs = header.substring(BYTES_UNIT.length()).split(",");
+		if (specs.length > MAX_RANGES) {
+			return null;
+		}
+
+		List<ByteRange> result = new ArrayList<ByteRange>(specs.length);
+		for (String spec : specs) {
+			String trimmedSpec = spec.trim();
+			int dash = trimmedSpec.indexOf('-');
+			if (dash < 0) {
+				return null;
+			}
+
+			try {
+				String firstString = trimmedSpec.substring(0, dash).trim();
+				String lastString = trimmedSpec.substring(dash + 1).trim();
+				if (firstString.isEmpty()) {
+					// suffix range, e.g. "-500" for the last 500 bytes
+					long suffixLength = Long.parseLong(lastString);
+					if (suffixLength > 0 && length > 0) {
+						result.add(new ByteRange(Math.max(0, length - suffixLength), length - 1));
+					}
+				} else {
+					long first = Long.parseLong(firstString);
+					long last = lastString.isEmpty() ? length - 1 : Long.parseLong(lastString);
+					if (first < 0 || last < first) {
+						return null;
+					}
+					if (first < length) {
+						result.add(new ByteRange(first, Math.min(last, length - 1)));
+					}
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+
+		return Collections.unmodifiableList(coalesce(result));
+	}
+
+	/**
+	 * Sorts the ranges and merges those that overlap or are adjacent.
+	 *
+	 * @methodtype conversion
+	 */
+	protected static List<ByteRange> coalesce(List<ByteRange> ranges) {
+		if (ranges.size() < 2) {
+			return ranges;
+		}
+
+		List<ByteRange> sortedRanges = new ArrayList<ByteRange>(ranges);
+		Collections.sort(sortedRanges, new Comparator<ByteRange>() {
+			public int compare(ByteRange range, ByteRange other) {
+				return Long.compare(range.first, other.first);
+			}
+		});
+
+		List<ByteRange> result = new ArrayList<ByteRange>(sortedRanges.size());
+		ByteRange current = sortedRanges.get(0);
+		for (ByteRange next : sortedRanges.subList(1, sortedRanges.size())) {
+			if (next.first <= current.last + 1) {
+				current = new ByteRange(current.first, Math.max(current.last, next.last));
+			} else {
+				result.add(current);
+				current = next;
+			}
+		}
+		result.add(current);
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getFirst() {
+		return first;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getLast() {
+		return last;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getLength() {
+		return last - first + 1;
+	}
+
+	/**
+	 * Returns the value of a Content-Range header, e.g. "bytes 0-499/1234".
+	 *
+	 * @methodtype conversion
+	 */
+	public String asContentRange(long totalLength) {
+		return "bytes " + first + "-" + last + "/" + totalLength;
+	}
+
+	/**
+	 *
+	 */
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof ByteRange)) {
+			return false;
+		}
+		ByteRange other = (ByteRange) o;
+		return first == other.first && last == other.last;
+	}
+
+	/**
+	 *
+	 */
+	@Override
+	public int hashCode() {
+		return (int) (31 * first + last);
+	}
+
+	/**
+	 *
+	 */
+	@Override
+	public String toString() {
+		return first + "-" + last;
+	}
+
+}
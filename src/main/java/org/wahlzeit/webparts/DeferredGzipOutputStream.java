@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.webparts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A DeferredGzipOutputStream writes its content gzip-compressed to the target, provided the content reaches a minimum
+ * size; smaller content is written as it is. Until then, the content is buffered, and startCompression() is called
+ * right before the first compressed byte, e.g. to set the Content-Encoding header.
+ *
+ * Fragments are spliced into the compressed stream as they were compressed once, without compressing them again. This
+ * works because their deflate blocks end on a byte boundary and refer to nothing before them; afterwards, the
+ * compressor continues with the end of the fragment as its dictionary.
+ */
+public class DeferredGzipOutputStream extends OutputStream {
+
+	/**
+	 *
+	 */
+	public static final String MIN_BYTES_PROPERTY = "org.wahlzeit.compression.minBytes";
+
+	/**
+	 * Below, compression saves less than the header and trailer cost
+	 */
+	public static final int DEFAULT_MIN_BYTES = 1024;
+
+	/**
+	 * Smaller fragments are compressed along with their context, which is better than splicing them
+	 */
+	public static final int MIN_SPLICE_BYTES = 256;
+
+	/**
+	 *
+	 */
+	protected static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+	protected static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+	protected static final int BUFFER_SIZE = 8 * 1024;
+
+	/**
+	 *
+	 */
+	protected final OutputStream target;
+	protected final int minBytes;
+
+	/**
+	 * Content not yet written to the target; null once compression has started
+	 */
+	protected ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+	/**
+	 *
+	 */
+	protected Deflater deflater = null;
+	protected final CRC32 crc = new CRC32();
+	protected long length = 0;
+	protected boolean isClosed = false;
+	protected final byte[] buffer = new byte[BUFFER_SIZE];
+
+	/**
+	 *
+	 */
+	public DeferredGzipOutputStream(OutputStream myTarget, int myMinBytes) {
+		target = myTarget;
+		minBytes = myMinBytes;
+	}
+
+	/**
+	 * Returns the minimum size of content to be compressed, configured through the system property
+	 * "org.wahlzeit.compression.minBytes".
+	 *
+	 * @methodtype get
+	 */
+	public static int getMinBytes() {
+		return Integer.getInteger(MIN_BYTES_PROPERTY, DEFAULT_MIN_BYTES);
+	}
+
+	/**
+	 * Returns the data compressed for splicing: raw deflate blocks without dictionary, ending on a byte boundary and
+	 * without final block.
+	 *
+	 * @methodtype conversion
+	 */
+	public static byte[] deflateForSplicing(byte[] data) {
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+		try {
+			deflater.setInput(data);
+			ByteArrayOutputStream result = new ByteArrayOutputStream(data.length / 4 + 16);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int length;
+			do {
+				length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+				result.write(buffer, 0, length);
+			} while (length == buffer.length);
+			return result.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isCompressing() {
+		return deflater != null;
+	}
+
+	/**
+	 * Called before the first compressed byte is written to the target.
+	 *
+	 * @methodtype command
+	 */
+	protected void startCompression() throws IOException {
+		// do nothing by default
+	}
+
+	/**
+	 *
+	 */
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	/**
+	 *
+	 */
+	@Override
+	public void write(byte[] data, int offset, int count) throws IOException {
+		if (isCompressing()) {
+			compress(data, offset, count);
+			return;
+		}
+
+		pending.write(data, offset, count);
+		if (pending.size() >= minBytes) {
+			beginCompression();
+		}
+	}
+
+	/**
+	 * Writes the fragment, spliced in precompressed if compression has started.
+	 */
+	public void writeFragment(Fragment fragment) throws IOException {
+		byte[] deflatedData = fragment.getDeflatedData();
+		if (!isCompressing() || deflatedData == null) {
+			write(fragment.data, 0, fragment.data.length);
+			return;
+		}
+
+		deflate(Deflater.SYNC_FLUSH);
+		target.write(deflatedData);
+		crc.update(fragment.data);
+		length += fragment.data.length;
+
+		deflater.reset();
+		int dictionarySize = Math.min(fragment.data.length, MAX_DICTIONARY_SIZE);
+		deflater.setDictionary(fragment.data, fragment.data.length - dictionarySize, dictionarySize);
+	}
+
+	/**
+	 * Writes the rest of the content and closes the target; further calls do nothing.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (isClosed) {
+			return;
+		}
+
+		isClosed = true;
+		try {
+			if (isCompressing()) {
+				deflater.finish();
+				while (!deflater.finished()) {
+					int count = deflater.deflate(buffer);
+					target.write(buffer, 0, count);
+				}
+				writeInt((int) crc.getValue());
+				writeInt((int) length);
+			} else {
+				pending.writeTo(target);
+				pending = null;
+			}
+		} finally {
+			try {
+				if (isCompressing()) {
+					deflater.end();
+				}
+			} finally {
+				target.close();
+			}
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected void beginCompression() throws IOException {
+		startCompression();
+		deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		target.write(GZIP_HEADER);
+
+		byte[] data = pending.toByteArray();
+		pending = null;
+		compress(data, 0, data.length);
+	}
+
+	/**
+	 *
+	 */
+	protected void compress(byte[] data, int offset, int count) throws IOException {
+		crc.update(data, offset, count);
+		length += count;
+		deflater.setInput(data, offset, count);
+		deflate(Deflater.NO_FLUSH);
+	}
+
+	/**
+	 *
+	 */
+	protected void deflate(int flush) throws IOException {
+		int count;
+		do {
+			count = deflater.deflate(buffer, 0, buffer.length, flush);
+			target.write(buffer, 0, count);
+		} while (count == buffer.length || (flush == Deflater.NO_FLUSH && count > 0 && !deflater.needsInput()));
+	}
+
+	/**
+	 * Writes the int in little-endian byte order, as gzip requires.
+	 */
+	protected void writeInt(int value) throws IOException {
+		target.write(value & 0xff);
+		target.write((value >> 8) & 0xff);
+		target.write((value >> 16) & 0xff);
+		target.write((value >> 24) & 0xff);
+	}
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.webparts;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A Fragment is a pre-rendered Writable; writing it copies its bytes, so it can be shared by all responses. Larger
+ * fragments are also compressed once, so compressed responses can splice them in as they are.
+ */
+public class Fragment implements Writable {
+
+	/**
+	 *
+	 */
+	protected final byte[] data;
+
+	/**
+	 * Compressed for splicing, or null if the fragment is too small to be worth it
+	 */
+	protected final byte[] deflatedData;
+
+	/**
+	 *
+	 */
+	public Fragment(byte[] myData) {
+		data = myData;
+		if (data.length >= DeferredGzipOutputStream.MIN_SPLICE_BYTES) {
+			deflatedData = DeferredGzipOutputStream.deflateForSplicing(data);
+		} else {
+			deflatedData = null;
+		}
+	}
+
+	/**
+	 *
+	 */
+	public void writeOn(OutputStream out) throws IOException {
+		if (out instanceof DeferredGzipOutputStream) {
+			((DeferredGzipOutputStream) out).writeFragment(this);
+		} else {
+			out.write(data);
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public byte[] getDeflatedData() {
+		return deflatedData;
+	}
+
+	/**
+	 * Returns the number of bytes the fragment takes, compressed data included.
+	 *
+	 * @methodtype get
+	 */
+	public int getSize() {
+		return data.length + ((deflatedData != null) ? deflatedData.length : 0);
+	}
+
+}
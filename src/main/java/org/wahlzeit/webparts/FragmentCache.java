@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.webparts;
+
+import org.wahlzeit.services.LogBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A FragmentCache holds rendered WebParts whose output depends only on their template, the language, and the varying
+ * inputs declared in their key, e.g. sidebars and info pages. Cached fragments are written as they are instead of being
+ * rebuilt for every request. The least recently used fragments are evicted first; the budget can be configured through
+ * the system property "org.wahlzeit.fragmentCache.maxBytes".
+ *
+ * Fragments of a template must be invalidated when anything they were rendered from changes; reloading the templates
+ * invalidates all fragments.
+ */
+public class FragmentCache {
+
+	private static final Logger log = Logger.getLogger(FragmentCache.class.getName());
+
+	/**
+	 *
+	 */
+	public static final String MAX_BYTES_PROPERTY = "org.wahlzeit.fragmentCache.maxBytes";
+
+	/**
+	 *
+	 */
+	public static final long DEFAULT_MAX_BYTES = 4L * 1024 * 1024; // = 4 MB
+
+	/**
+	 *
+	 */
+	protected static FragmentCache instance = new FragmentCache();
+
+	/**
+	 *
+	 */
+	protected final ConcurrentMap<FragmentKey, Fragment> fragments = new ConcurrentHashMap<FragmentKey, Fragment>();
+
+	/**
+	 * Access-ordered, so iteration starts with the least recently used fragment; guarded by itself
+	 */
+	protected final LinkedHashMap<FragmentKey, Boolean> order = new LinkedHashMap<FragmentKey, Boolean>(64, 0.75f, true);
+
+	/**
+	 *
+	 */
+	protected final long maxBytes;
+
+	/**
+	 *
+	 */
+	protected final AtomicLong weightedSize = new AtomicLong();
+	protected final AtomicLong hitCount = new AtomicLong();
+	protected final AtomicLong missCount = new AtomicLong();
+	protected final AtomicLong evictionCount = new AtomicLong();
+
+	/**
+	 * Creates a cache configured from the system properties, falling back to the defaults.
+	 */
+	public FragmentCache() {
+		this(Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES));
+	}
+
+	/**
+	 *
+	 */
+	public FragmentCache(long myMaxBytes) {
+		if (myMaxBytes <= 0) {
+			throw new IllegalArgumentException("maxBytes should be positive");
+		}
+
+		maxBytes = myMaxBytes;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public static FragmentCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public static void setInstance(FragmentCache newInstance) {
+		instance = newInstance;
+	}
+
+	/**
+	 * Returns the cached fragment or null if it is not cached.
+	 *
+	 * @methodtype get
+	 */
+	public Fragment get(FragmentKey key) {
+		Fragment result = fragments.get(key);
+		if (result == null) {
+			missCount.incrementAndGet();
+			return null;
+		}
+
+		hitCount.incrementAndGet();
+		synchronized (order) {
+			order.get(key);
+		}
+		return result;
+	}
+
+	/**
+	 * Renders the writable and caches the result, unless it is larger than the whole budget. Returns the fragment,
+	 * which can be written in place of the writable in either case.
+	 *
+	 * @methodtype command
+	 */
+	public Fragment put(FragmentKey key, Writable writable) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			writable.writeOn(out);
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not render fragment " + key, e);
+		}
+
+		Fragment result = new Fragment(out.toByteArray());
+		if (result.getSize() > maxBytes) {
+			return result;
+		}
+
+		synchronized (order) {
+			Fragment oldFragment = fragments.put(key, result);
+			weightedSize.addAndGet(result.getSize() - ((oldFragment != null) ? oldFragment.getSize() : 0));
+			order.put(key, Boolean.TRUE);
+
+			evictIfNecessary();
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void invalidate(FragmentKey key) {
+		synchronized (order) {
+			doRemove(key);
+		}
+	}
+
+	/**
+	 * Removes the fragments of the template, in all languages and for all varying inputs.
+	 *
+	 * @methodtype command
+	 */
+	public void invalidateTemplate(String templateName) {
+		synchronized (order) {
+			for (Iterator<FragmentKey> i = order.keySet().iterator(); i.hasNext(); ) {
+				FragmentKey key = i.next();
+				if (key.templateName.equals(templateName)) {
+					i.remove();
+					doRemoveFragment(key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void clear() {
+		synchronized (order) {
+			fragments.clear();
+			order.clear();
+			weightedSize.set(0);
+		}
+	}
+
+	/**
+	 * Must be called while holding the order lock.
+	 *
+	 * @methodtype command
+	 */
+	protected void evictIfNecessary() {
+		Iterator<FragmentKey> victims = order.keySet().iterator();
+		while (weightedSize.get() > maxBytes && victims.hasNext()) {
+			FragmentKey victim = victims.next();
+			victims.remove();
+			if (doRemoveFragment(victim)) {
+				evictionCount.incrementAndGet();
+				log.config(LogBuilder.createSystemMessage().
+						addAction("evict fragment from cache").
+						addParameter("fragment", victim).toString());
+			}
+		}
+	}
+
+	/**
+	 * Must be called while holding the order lock.
+	 *
+	 * @methodtype command
+	 */
+	protected void doRemove(FragmentKey key) {
+		order.remove(key);
+		doRemoveFragment(key);
+	}
+
+	/**
+	 * Must be called while holding the order lock.
+	 *
+	 * @methodtype command
+	 */
+	protected boolean doRemoveFragment(FragmentKey key) {
+		Fragment fragment = fragments.remove(key);
+		if (fragment != null) {
+			weightedSize.addAndGet(-fragment.getSize());
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int size() {
+		return fragments.size();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getWeightedSize() {
+		return weightedSize.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	/**
+	 *
+	 */
+	@Override
+	public String toString() {
+		return "FragmentCache[entries=" + size() + ", bytes=" + getWeightedSize() + "/" + maxBytes + ", hits=" +
+				getHitCount() + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+	}
+
+	/**
+	 * The key of a cached fragment: the template, the language, and the inputs the fragment varies with.
+	 */
+	public static class FragmentKey {
+
+		/**
+		 *
+		 */
+		protected final String language;
+		protected final String templateName;
+		protected final String[] varyingInputs;
+
+		/**
+		 *
+		 */
+		public FragmentKey(String myLanguage, String myTemplateName, String... myVaryingInputs) {
+			language = myLanguage;
+			templateName = myTemplateName;
+			varyingInputs = myVaryingInputs;
+		}
+
+		/**
+		 *
+		 */
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof FragmentKey)) {
+				return false;
+			}
+
+			FragmentKey other = (FragmentKey) o;
+			return language.equals(other.language) && templateName.equals(other.templateName) &&
+					Arrays.equals(varyingInputs, other.varyingInputs);
+		}
+
+		/**
+		 *
+		 */
+		@Override
+		public int hashCode() {
+			return (language.hashCode() * 31 + templateName.hashCode()) * 31 + Arrays.hashCode(varyingInputs);
+		}
+
+		/**
+		 *
+		 */
+		@Override
+		public String toString() {
+			return language + "/" + templateName + Arrays.toString(varyingInputs);
+		}
+	}
+
+}
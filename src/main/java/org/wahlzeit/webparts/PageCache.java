@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.webparts;
+
+import org.wahlzeit.services.DataObject;
+import org.wahlzeit.services.LogBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A PageCache holds fully rendered pages for anonymous requests, keyed by what the pages depend on. Each page expires
+ * after its time to live and is dropped as soon as the object it was rendered from, e.g. its photo, has been modified.
+ * The least recently used pages are evicted first; the budget can be configured through the system property
+ * "org.wahlzeit.pageCache.maxBytes". Pages large enough to be sent compressed are also kept gzipped, so they are
+ * compressed once rather than for every request.
+ */
+public class PageCache {
+
+	private static final Logger log = Logger.getLogger(PageCache.class.getName());
+
+	/**
+	 *
+	 */
+	public static final String MAX_BYTES_PROPERTY = "org.wahlzeit.pageCache.maxBytes";
+
+	/**
+	 *
+	 */
+	public static final long DEFAULT_MAX_BYTES = 8L * 1024 * 1024; // = 8 MB
+
+	/**
+	 *
+	 */
+	protected static PageCache instance = new PageCache();
+
+	/**
+	 * Access-ordered, so iteration starts with the least recently used page; guarded by itself
+	 */
+	protected final LinkedHashMap<String, CachedPage> pages = new LinkedHashMap<String, CachedPage>(64, 0.75f, true);
+
+	/**
+	 *
+	 */
+	protected final long maxBytes;
+
+	/**
+	 * Guarded by pages
+	 */
+	protected long weightedSize = 0;
+	protected long hitCount = 0;
+	protected long missCount = 0;
+
+	/**
+	 * Creates a cache configured from the system properties, falling back to the defaults.
+	 */
+	public PageCache() {
+		this(Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES));
+	}
+
+	/**
+	 *
+	 */
+	public PageCache(long myMaxBytes) {
+		if (myMaxBytes <= 0) {
+			throw new IllegalArgumentException("maxBytes should be positive");
+		}
+
+		maxBytes = myMaxBytes;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public static PageCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public static void setInstance(PageCache newInstance) {
+		instance = newInstance;
+	}
+
+	/**
+	 * Returns the page or null if it is not cached, has expired, or the dependency, i.e. the current instance of the
+	 * object the page was rendered from, is not the same or has been modified since. The result must not be modified.
+	 *
+	 * @methodtype get
+	 */
+	public byte[] get(String key, DataObject dependency) {
+		CachedPage page = getPage(key, dependency);
+		return (page != null) ? page.getData() : null;
+	}
+
+	/**
+	 * Like get(), but returns the page with its gzipped data, if any.
+	 *
+	 * @methodtype get
+	 */
+	public CachedPage getPage(String key, DataObject dependency) {
+		synchronized (pages) {
+			CachedPage page = pages.get(key);
+			if (page != null && !page.isValid(dependency, getCurrentTimeMillis())) {
+				doRemove(key);
+				page = null;
+			}
+
+			if (page == null) {
+				missCount++;
+				return null;
+			}
+
+			hitCount++;
+			return page;
+		}
+	}
+
+	/**
+	 * Caches the page for the time to live, as long as the dependency, if any, is not modified after it had the
+	 * modification count, which should be taken before rendering. Pages larger than the whole budget are not cached at
+	 * all. The page must not be modified afterwards. Returns the cached page, or null if it was not cached.
+	 *
+	 * @methodtype command
+	 */
+	public CachedPage put(String key, byte[] data, long ttlMillis, DataObject dependency,
+						  int dependencyModificationCount) {
+		if (data.length > maxBytes || ttlMillis <= 0) {
+			return null;
+		}
+
+		byte[] gzippedData = (data.length >= DeferredGzipOutputStream.getMinBytes()) ? gzip(data) : null;
+		CachedPage page = new CachedPage(data, gzippedData, getCurrentTimeMillis() + ttlMillis, dependency,
+				dependencyModificationCount);
+		synchronized (pages) {
+			doRemove(key);
+			pages.put(key, page);
+			weightedSize += page.getSize();
+
+			evictIfNecessary();
+		}
+		return page;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void invalidate(String key) {
+		synchronized (pages) {
+			doRemove(key);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void clear() {
+		synchronized (pages) {
+			pages.clear();
+			weightedSize = 0;
+		}
+	}
+
+	/**
+	 * Must be called while holding the pages lock.
+	 *
+	 * @methodtype command
+	 */
+	protected void evictIfNecessary() {
+		Iterator<Map.Entry<String, CachedPage>> victims = pages.entrySet().iterator();
+		while (weightedSize > maxBytes && victims.hasNext()) {
+			Map.Entry<String, CachedPage> victim = victims.next();
+			victims.remove();
+			weightedSize -= victim.getValue().getSize();
+			log.config(LogBuilder.createSystemMessage().
+					addAction("evict page from cache").
+					addParameter("page", victim.getKey()).toString());
+		}
+	}
+
+	/**
+	 * Must be called while holding the pages lock.
+	 *
+	 * @methodtype command
+	 */
+	protected void doRemove(String key) {
+		CachedPage page = pages.remove(key);
+		if (page != null) {
+			weightedSize -= page.getSize();
+		}
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected static byte[] gzip(byte[] data) {
+		try {
+			ByteArrayOutputStream result = new ByteArrayOutputStream(data.length / 4 + 32);
+			GZIPOutputStream out = new GZIPOutputStream(result);
+			out.write(data);
+			out.close();
+			return result.toByteArray();
+		} catch (IOException ex) {
+			throw new IllegalStateException("in-memory compression failed", ex); // no I/O involved
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected long getCurrentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int size() {
+		synchronized (pages) {
+			return pages.size();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getWeightedSize() {
+		synchronized (pages) {
+			return weightedSize;
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getHitCount() {
+		synchronized (pages) {
+			return hitCount;
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getMissCount() {
+		synchronized (pages) {
+			return missCount;
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Override
+	public String toString() {
+		return "PageCache[entries=" + size() + ", bytes=" + getWeightedSize() + "/" + maxBytes + ", hits=" +
+				getHitCount() + ", misses=" + getMissCount() + "]";
+	}
+
+	/**
+	 * A rendered page with its expiry and the state of its dependency when it was rendered.
+	 */
+	public static class CachedPage {
+
+		/**
+		 *
+		 */
+		protected final byte[] data;
+		protected final byte[] gzippedData;
+		protected final long expiryTimeMillis;
+		protected final DataObject dependency;
+		protected final int dependencyModificationCount;
+
+		/**
+		 *
+		 */
+		protected CachedPage(byte[] myData, byte[] myGzippedData, long myExpiryTimeMillis, DataObject myDependency,
+							 int myDependencyModificationCount) {
+			data = myData;
+			gzippedData = myGzippedData;
+			expiryTimeMillis = myExpiryTimeMillis;
+			dependency = myDependency;
+			dependencyModificationCount = myDependencyModificationCount;
+		}
+
+		/**
+		 * The result must not be modified.
+		 *
+		 * @methodtype get
+		 */
+		public byte[] getData() {
+			return data;
+		}
+
+		/**
+		 * Returns the page gzipped, or null if it is too small to be sent compressed. The result must not be modified.
+		 *
+		 * @methodtype get
+		 */
+		public byte[] getGzippedData() {
+			return gzippedData;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		protected int getSize() {
+			return data.length + ((gzippedData != null) ? gzippedData.length : 0);
+		}
+
+		/**
+		 * @methodtype boolean-query
+		 */
+		protected boolean isValid(DataObject currentDependency, long nowMillis) {
+			if (nowMillis >= expiryTimeMillis || currentDependency != dependency) {
+				return false;
+			}
+			return dependency == null || dependency.getModificationCount() == dependencyModificationCount;
+		}
+	}
+
+}
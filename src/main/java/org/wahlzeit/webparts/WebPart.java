@@ -23,8 +23,10 @@ package org.wahlzeit.webparts;
 import org.wahlzeit.utils.EnumValue;
 import org.wahlzeit.utils.HtmlUtil;
 
+import com.google.common.base.Charsets;
+
 import java.io.IOException;
-import java.io.Writer;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -32,6 +34,8 @@ import java.util.Map;
  * A WebPart is a Writable formatted as HTML, working off a template.
  * A WebPart has its data set from a client using key/value pairs.
  * A WebPart has a recursive structure; it may contain further WebParts.
+ * Values are kept in the slots of the compiled template; values for keys the template does not use are only kept for
+ * getValue().
  */
 public class WebPart implements Writable {
 
@@ -41,19 +45,29 @@ public class WebPart implements Writable {
 	protected WebPartTemplate template = null;
 
 	/**
-	 *
+	 * Values by slot index of the template
+	 */
+	protected Object[] values;
+
+	/**
+	 * Values for keys without slot; created when needed
 	 */
-	protected Map<String, Object> parts = new HashMap<String, Object>();
+	protected Map<String, Object> otherValues = null;
 
 	/**
 	 *
 	 */
 	public WebPart(WebPartTemplate myTemplate) {
 		template = myTemplate;
+		values = new Object[(template != null) ? template.getNumberOfSlots() : 0];
 	}
 
 	public Object getValue(String key) {
-		return parts.get(key);
+		int slotIndex = getSlotIndex(key);
+		if (slotIndex != -1) {
+			return values[slotIndex];
+		}
+		return (otherValues != null) ? otherValues.get(key) : null;
 	}
 
 	/**
@@ -169,42 +183,50 @@ public class WebPart implements Writable {
 	 *
 	 */
 	protected void putValue(String key, Object value) {
-		if (value != null) {
-			parts.put(key, value);
+		if (value == null) {
+			return;
+		}
+
+		int slotIndex = getSlotIndex(key);
+		if (slotIndex != -1) {
+			values[slotIndex] = value;
+		} else {
+			if (otherValues == null) {
+				otherValues = new HashMap<String, Object>();
+			}
+			otherValues.put(key, value);
 		}
 	}
 
 	/**
 	 *
 	 */
-	public void writeOn(Writer out) throws IOException {
-		String tmpl = template.asString();
-		String[] keys = template.getKeys();
-		int[] slots = template.getSlots();
-
-		int start = 0;
-		for (int i = 0; i < keys.length; i++) {
-			int index = slots[i];
-			out.write(tmpl, start, index - start);
-
-			String key = keys[i];
-			if (key != null) {
-				Object object = parts.get(key);
-				if (object != null) {
-					if (object instanceof Writable) {
-						Writable part = (Writable) object;
-						part.writeOn(out);
-					} else {
-						String value = object.toString();
-						out.write(value);
-					}
+	protected int getSlotIndex(String key) {
+		return (template != null) ? template.getSlotIndex(key) : -1;
+	}
+
+	/**
+	 * Writes the encoded segments of the template, each followed by the value of its slot.
+	 */
+	public void writeOn(OutputStream out) throws IOException {
+		byte[][] segments = template.getSegments();
+		int[] slotIndices = template.getSlotIndices();
+
+		for (int i = 0; i < slotIndices.length; i++) {
+			out.write(segments[i]);
+
+			Object object = values[slotIndices[i]];
+			if (object != null) {
+				if (object instanceof Writable) {
+					Writable part = (Writable) object;
+					part.writeOn(out);
+				} else {
+					out.write(object.toString().getBytes(Charsets.UTF_8));
 				}
 			}
-
-			start = index;
 		}
 
-		out.write(tmpl, start, tmpl.length() - start);
+		out.write(segments[slotIndices.length]);
 	}
 
 }
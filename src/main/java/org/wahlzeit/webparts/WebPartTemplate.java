@@ -20,12 +20,22 @@
 
 package org.wahlzeit.webparts;
 
+import com.google.common.base.Charsets;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A WebPartTmpl is a template for a WebPart.
  * It gets initialized once and is read-only after that.
+ *
+ * Initializing compiles the template: the static text between the placeholders is encoded to UTF-8 once, and each
+ * distinct key gets a slot index, so that WebParts keep their values in an array and write the encoded segments as
+ * they are.
  */
 public class WebPartTemplate {
 
@@ -40,10 +50,21 @@ public class WebPartTemplate {
 	protected String template;
 
 	/**
-	 *
+	 * The key of each placeholder, in order, and the slot it refers to
 	 */
 	protected String[] keys = null;
-	protected int[] slots = null;
+	protected int[] slotIndices = null;
+
+	/**
+	 * The distinct keys, by slot index
+	 */
+	protected String[] slotKeys = null;
+	protected Map<String, Integer> slotIndicesByKey = Collections.emptyMap();
+
+	/**
+	 * The UTF-8 encoded text before each placeholder and after the last one
+	 */
+	protected byte[][] segments = null;
 
 	/**
 	 *
@@ -57,38 +78,52 @@ public class WebPartTemplate {
 	 */
 	public void initialize(String source) {
 		List<String> keyList = new LinkedList<String>();
-		List<Integer> slotList = new LinkedList<Integer>();
-
-		StringBuffer buffer = new StringBuffer(source);
+		List<String> segmentList = new LinkedList<String>();
+		StringBuilder text = new StringBuilder(source.length());
 
+		int start = 0;
 		for (int index = 0; index != -1; ) {
-			int nextSlot = buffer.indexOf("{$", index);
-			if (nextSlot != -1) {
-				int endSlot = buffer.indexOf("}", nextSlot);
-				if (endSlot != -1) {
-					String key = buffer.substring(nextSlot + 2, endSlot);
-
-					keyList.add(key);
-					slotList.add(nextSlot);
-
-					buffer.replace(nextSlot, endSlot + 1, "");
-					index = nextSlot;
-				}
-				index = endSlot;
+			int nextSlot = source.indexOf("{$", index);
+			int endSlot = (nextSlot != -1) ? source.indexOf("}", nextSlot) : -1;
+			if (endSlot != -1) {
+				String segment = source.substring(start, nextSlot);
+				keyList.add(source.substring(nextSlot + 2, endSlot));
+				segmentList.add(segment);
+				text.append(segment);
+				start = endSlot + 1;
+				index = start;
 			} else {
 				index = -1;
 			}
 		}
+		String lastSegment = source.substring(start);
+		segmentList.add(lastSegment);
+		text.append(lastSegment);
 
 		int length = keyList.size();
-		keys = new String[length];
-		slots = new int[length];
+		keys = keyList.toArray(new String[length]);
+		slotIndices = new int[length];
+		List<String> slotKeyList = new ArrayList<String>();
+		Map<String, Integer> indicesByKey = new HashMap<String, Integer>();
 		for (int i = 0; i < length; i++) {
-			keys[i] = keyList.get(i);
-			slots[i] = slotList.get(i);
+			Integer slotIndex = indicesByKey.get(keys[i]);
+			if (slotIndex == null) {
+				slotIndex = slotKeyList.size();
+				slotKeyList.add(keys[i]);
+				indicesByKey.put(keys[i], slotIndex);
+			}
+			slotIndices[i] = slotIndex;
 		}
+		slotKeys = slotKeyList.toArray(new String[slotKeyList.size()]);
+		slotIndicesByKey = Collections.unmodifiableMap(indicesByKey);
 
-		template = buffer.toString();
+		segments = new byte[segmentList.size()][];
+		int i = 0;
+		for (String segment : segmentList) {
+			segments[i++] = segment.getBytes(Charsets.UTF_8);
+		}
+
+		template = text.toString();
 	}
 
 	/**
@@ -99,7 +134,7 @@ public class WebPartTemplate {
 	}
 
 	/**
-	 *
+	 * Returns the static text of the template, i.e. without the placeholders.
 	 */
 	public String asString() {
 		return template;
@@ -109,14 +144,45 @@ public class WebPartTemplate {
 	 *
 	 */
 	public String[] getKeys() {
-		return keys; // @FIXME needs cloning?
+		return keys.clone();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNumberOfSlots() {
+		return slotKeys.length;
 	}
 
 	/**
+	 * @methodtype get
 	 *
+	 * Returns the slot index of the key, or -1 if the template has no such placeholder.
+	 */
+	public int getSlotIndex(String key) {
+		Integer result = slotIndicesByKey.get(key);
+		return (result != null) ? result : -1;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String getSlotKey(int slotIndex) {
+		return slotKeys[slotIndex];
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected int[] getSlotIndices() {
+		return slotIndices;
+	}
+
+	/**
+	 * @methodtype get
 	 */
-	public int[] getSlots() {
-		return slots; // @FIXME needs cloning?
+	protected byte[][] getSegments() {
+		return segments;
 	}
 
 }
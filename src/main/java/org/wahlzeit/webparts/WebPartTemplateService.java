@@ -21,36 +21,72 @@
 package org.wahlzeit.webparts;
 
 import com.google.common.base.Charsets;
-import com.google.common.io.Files;
 import org.wahlzeit.services.ConfigDir;
 import org.wahlzeit.services.LogBuilder;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
- * The WebPartTemplateService creates WebPartTemplates upon request by reading them from disk.
- * It requires configuration with a template directory and uses the following naming convention: tmplDir/language/part-type/part-name.html
+ * The WebPartTemplateService provides the WebPartTemplates of the template directory. It requires configuration with a
+ * template directory and uses the following naming convention: tmplDir/language/part-type/part-name.html
+ *
+ * All templates are read and initialized when the directory is set, so requests never read templates from disk. The
+ * templates are kept in an immutable map that is replaced as a whole; with the system property
+ * "org.wahlzeit.templates.hotReload", e.g. during development, the directory is watched and the map is rebuilt and
+ * replaced whenever a template changes. Replacing the templates invalidates all cached fragments and pages.
  */
 public class WebPartTemplateService {
 
+	/**
+	 *
+	 */
+	public static final String HOT_RELOAD_PROPERTY = "org.wahlzeit.templates.hotReload";
+
+	/**
+	 *
+	 */
+	protected static final String TEMPLATE_FILE_ENDING = ".html";
+
+	/**
+	 * Time to wait for further changes before reloading, so that saving several templates reloads only once
+	 */
+	protected static final long RELOAD_DELAY_MILLIS = 200;
+
 	/**
 	 *
 	 */
 	protected static final WebPartTemplateService instance = new WebPartTemplateService();
 	private static final Logger log = Logger.getLogger(WebPartTemplateService.class.getName());
 	/**
-	 *
+	 * Immutable; replaced as a whole, so readers need no locking
 	 */
-	protected Map<String, WebPartTemplate> templates = new HashMap<String, WebPartTemplate>();
+	protected volatile Map<String, WebPartTemplate> templates = Collections.emptyMap();
 	/**
 	 *
 	 */
 	protected ConfigDir templatesDir = null;
 
+	/**
+	 *
+	 */
+	protected Thread reloadThread = null;
+
 	/**
 	 *
 	 */
@@ -66,53 +102,183 @@ public class WebPartTemplateService {
 	}
 
 	/**
-	 *
+	 * Returns the template, or null if there is no such template.
 	 */
 	public WebPartTemplate getTemplate(String lang, String name) {
-		String shortName = lang + File.separator + name;
+		String shortName = lang + "/" + name;
 		WebPartTemplate result = templates.get(shortName);
 
 		if (result == null) {
-			try {
-				loadTemplate(shortName);
-				result = templates.get(shortName);
-			} catch (IOException ioex) {
-				log.warning(LogBuilder.createSystemMessage().
-						addParameter("template name", shortName).
-						addException("Problem loading template", ioex).toString());
-			}
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("template name", shortName).
+					addMessage("Unknown template").toString());
 		}
 
 		return result;
 	}
 
 	/**
+	 * @methodtype get
+	 */
+	public int getNumberOfTemplates() {
+		return templates.size();
+	}
+
+	/**
+	 * Reads and initializes all templates of the template directory and replaces the current ones. Templates in the
+	 * default directory take precedence over those in the custom directory, as in ConfigDir.
 	 *
+	 * @methodtype command
 	 */
-	protected void loadTemplate(String shortName) throws IOException {
-		WebPartTemplate template = new WebPartTemplate(shortName);
-		String fileName = getTemplatesDir().getAbsoluteConfigFileName(shortName + ".html");
+	public synchronized void loadTemplates() {
+		Map<String, WebPartTemplate> newTemplates = new HashMap<String, WebPartTemplate>();
+		loadTemplates(newTemplates, getCustomDir());
+		loadTemplates(newTemplates, getDefaultDir());
+		templates = Collections.unmodifiableMap(newTemplates);
+		FragmentCache.getInstance().clear();
+		PageCache.getInstance().clear();
+
+		log.config(LogBuilder.createSystemMessage().
+				addAction("Load templates").
+				addParameter("number of templates", newTemplates.size()).toString());
+	}
+
+	/**
+	 *
+	 */
+	protected void loadTemplates(final Map<String, WebPartTemplate> result, final Path dir) {
+		if (!Files.isDirectory(dir)) {
+			return;
+		}
+
+		try {
+			Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					String fileName = dir.relativize(file).toString().replace(File.separatorChar, '/');
+					if (fileName.endsWith(TEMPLATE_FILE_ENDING)) {
+						String shortName = fileName.substring(0, fileName.length() - TEMPLATE_FILE_ENDING.length());
+						WebPartTemplate template = loadTemplate(shortName, file);
+						if (template != null) {
+							result.put(shortName, template);
+						}
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("directory", dir).
+					addException("I/O Error while reading Template files", e).toString());
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected WebPartTemplate loadTemplate(String shortName, Path file) {
 		log.config(LogBuilder.createSystemMessage().
 				addAction("open html template file").
-				addParameter("file name", fileName).toString());
-		File file = new File(fileName);
+				addParameter("file name", file).toString());
 
 		try {
-			String source = Files.toString(file, Charsets.UTF_8);
-			//String source = Resources.toString(Resources.getResource(fileName), Charsets.UTF_8);
+			String source = new String(Files.readAllBytes(file), Charsets.UTF_8);
+			WebPartTemplate template = new WebPartTemplate(shortName);
+			template.initialize(source);
+			return template;
+		} catch (IOException e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("template name", shortName).
+					addException("I/O Error while reading Template file", e).toString());
+			return null;
+		}
+	}
+
+	/**
+	 * Watches the template directory in a daemon thread and reloads all templates on changes.
+	 *
+	 * @methodtype command
+	 */
+	public synchronized void startHotReload() throws IOException {
+		if (reloadThread != null) {
+			return;
+		}
 
-			if (source != null) {
-				template.initialize(source);
-				log.config(LogBuilder.createSystemMessage().addAction("Initialize template").toString());
+		final WatchService watchService = FileSystems.getDefault().newWatchService();
+		registerDirs(watchService);
+		reloadThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				watchTemplates(watchService);
 			}
+		}, "template-reload");
+		reloadThread.setDaemon(true);
+		reloadThread.start();
+
+		log.config(LogBuilder.createSystemMessage().
+				addAction("Start template hot reload").
+				addParameter("directory", templatesDir.asString()).toString());
+	}
+
+	/**
+	 *
+	 */
+	protected void watchTemplates(WatchService watchService) {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				WatchKey key = watchService.take();
+				do {
+					key.pollEvents();
+					key.reset();
+					key = watchService.poll(RELOAD_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+				} while (key != null);
 
-			templates.put(shortName, template);
+				// new directories must be watched, too
+				registerDirs(watchService);
+				loadTemplates();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		} catch (IOException e) {
 			log.warning(LogBuilder.createSystemMessage().
-					addException("I/O Error while reading Template file", e).toString());
+					addException("Stopped template hot reload", e).toString());
 		}
 	}
 
+	/**
+	 *
+	 */
+	protected void registerDirs(final WatchService watchService) throws IOException {
+		for (Path dir : new Path[] {getDefaultDir(), getCustomDir()}) {
+			if (!Files.isDirectory(dir)) {
+				continue;
+			}
+
+			Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path subDir, BasicFileAttributes attrs) throws IOException {
+					subDir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+							StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected Path getDefaultDir() {
+		return Paths.get(templatesDir.asString(), ConfigDir.DEFAULT_DIR_NAME);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected Path getCustomDir() {
+		return Paths.get(templatesDir.asString(), ConfigDir.CUSTOM_DIR_NAME);
+	}
+
 	/**
 	 *
 	 */
@@ -121,10 +287,11 @@ public class WebPartTemplateService {
 	}
 
 	/**
-	 *
+	 * Sets the template directory and loads all of its templates.
 	 */
 	public void setTemplatesDir(ConfigDir newTemplatesDir) {
 		templatesDir = newTemplatesDir;
+		loadTemplates();
 	}
 
 }
@@ -21,16 +21,16 @@
 package org.wahlzeit.webparts;
 
 import java.io.IOException;
-import java.io.Writer;
+import java.io.OutputStream;
 
 /**
- * A Writable can write a representation of itself to a Writer.
+ * A Writable can write a representation of itself to an OutputStream, as UTF-8 bytes.
  */
 public interface Writable {
 
 	/**
 	 *
 	 */
-	void writeOn(Writer writer) throws IOException;
+	void writeOn(OutputStream out) throws IOException;
 
 }
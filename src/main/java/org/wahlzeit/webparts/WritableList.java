@@ -21,7 +21,7 @@
 package org.wahlzeit.webparts;
 
 import java.io.IOException;
-import java.io.Writer;
+import java.io.OutputStream;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -45,7 +45,7 @@ public class WritableList implements Writable {
 	/**
 	 *
 	 */
-	public void writeOn(Writer out) throws IOException {
+	public void writeOn(OutputStream out) throws IOException {
 		for (Iterator<Writable> pi = writables.listIterator(); pi.hasNext(); ) {
 			Writable part = pi.next();
 			part.writeOn(out);
@@ -4,15 +4,19 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 import org.wahlzeit.handlers.TestSuiteHandlers;
 import org.wahlzeit.model.TestSuiteModel;
+import org.wahlzeit.servlets.TestSuiteServlets;
 import org.wahlzeit.services.TestSuiteServices;
 import org.wahlzeit.utils.TestSuiteUtils;
+import org.wahlzeit.webparts.TestSuiteWebParts;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
         TestSuiteHandlers.class,
         TestSuiteModel.class,
+        TestSuiteServlets.class,
         TestSuiteServices.class,
-        TestSuiteUtils.class
+        TestSuiteUtils.class,
+        TestSuiteWebParts.class
 })
 
 public class TestSuiteWahlzeit {
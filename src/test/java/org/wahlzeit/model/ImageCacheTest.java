@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.model;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ImageCacheTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPutAndGet() {
+		ImageCache cache = new ImageCache(1024, false);
+		PhotoId id = new PhotoId(1);
+		cache.put(id, PhotoSize.THUMB, new byte[]{1, 2, 3});
+
+		ByteBuffer result = cache.get(id, PhotoSize.THUMB);
+		assertNotNull(result);
+		assertTrue(result.isReadOnly());
+		assertEquals(3, result.remaining());
+		assertEquals(2, result.get(1));
+		assertNull(cache.get(id, PhotoSize.SMALL));
+
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testOffHeapKeepsData() {
+		ImageCache cache = new ImageCache(1024, true);
+		PhotoId id = new PhotoId(1);
+		cache.put(id, PhotoSize.THUMB, new byte[]{4, 5});
+
+		ByteBuffer result = cache.get(id, PhotoSize.THUMB);
+		assertTrue(result.isDirect());
+		assertEquals(4, result.get());
+		assertEquals(5, result.get());
+
+		// readers do not share their position
+		assertEquals(2, cache.get(id, PhotoSize.THUMB).remaining());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testLeastRecentlyUsedIsEvicted() {
+		ImageCache cache = new ImageCache(10, false);
+		PhotoId id = new PhotoId(1);
+		cache.put(id, PhotoSize.THUMB, new byte[4]);
+		cache.put(id, PhotoSize.SMALL, new byte[4]);
+		cache.get(id, PhotoSize.THUMB);
+		cache.put(id, PhotoSize.MEDIUM, new byte[4]);
+
+		assertTrue(cache.contains(id, PhotoSize.THUMB));
+		assertFalse(cache.contains(id, PhotoSize.SMALL));
+		assertTrue(cache.contains(id, PhotoSize.MEDIUM));
+		assertEquals(8, cache.getWeightedSize());
+		assertEquals(1, cache.getEvictionCount());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testRemoveDropsAllSizes() {
+		ImageCache cache = new ImageCache(1024, false);
+		PhotoId id = new PhotoId(1);
+		cache.put(id, PhotoSize.THUMB, new byte[4]);
+		cache.put(id, PhotoSize.SMALL, new byte[4]);
+		cache.remove(id);
+
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getWeightedSize());
+	}
+
+}
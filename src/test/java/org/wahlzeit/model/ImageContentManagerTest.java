@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.model;
+
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.junit.rules.TestRule;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the reference counts and manifests of shared image content.
+ */
+public class ImageContentManagerTest {
+
+	@ClassRule
+	public static TestRule chain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider());
+
+	/**
+	 *
+	 */
+	@Test
+	public void testReferencesAreCounted() {
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				ImageContentManager manager = ImageContentManager.getInstance();
+				assertNull(manager.getContent("0a1b"));
+
+				assertEquals(1, manager.addReference("0a1b").getReferenceCount());
+				assertEquals(2, manager.addReference("0a1b").getReferenceCount());
+				manager.removeReference("0a1b");
+				assertEquals(1, manager.getContent("0a1b").getReferenceCount());
+				manager.removeReference("0a1b");
+				manager.removeReference("0a1b");
+
+				ImageContent content = manager.getContent("0a1b");
+				assertEquals(0, content.getReferenceCount());
+				assertFalse(content.isReferenced());
+				return null;
+			}
+		});
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testManifestIsSharedWithIdenticalUploads() {
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				ImageContentManager manager = ImageContentManager.getInstance();
+				Photo first = new Photo(new PhotoId(4711));
+				first.setContentId("2c3d");
+				manager.addReference("2c3d");
+				first.addStoredImage(PhotoSize.THUMB);
+				first.addStoredImage(PhotoSize.SMALL, ImageEncoding.WEBP);
+				first.setImageHash(PhotoSize.THUMB, "thumbhash");
+				manager.completeContent(first);
+
+				ImageContent content = manager.getContent("2c3d");
+				assertTrue(content.isComplete());
+
+				Photo second = new Photo(new PhotoId(4712));
+				second.setContentId("2c3d");
+				content.copyManifestTo(second);
+				assertTrue(second.hasStoredImage(PhotoSize.THUMB));
+				assertFalse(second.hasStoredImage(PhotoSize.SMALL));
+				assertTrue(second.hasStoredImage(PhotoSize.SMALL, ImageEncoding.WEBP));
+				assertEquals("thumbhash", second.getImageHash(PhotoSize.THUMB));
+				assertEquals("2c3d", PhotoManager.getStorageId(second, ImageEncoding.ORIGINAL));
+				assertEquals("2c3d.webp", PhotoManager.getStorageId(second, ImageEncoding.WEBP));
+				return null;
+			}
+		});
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testReferenceOfPhotoIsUpdatedWhenWritten() {
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				ImageContentManager manager = ImageContentManager.getInstance();
+				Photo photo = new Photo(new PhotoId(4713));
+				photo.setContentId("4e5f");
+				manager.updateReference(photo);
+				assertTrue(photo.isContentReferenced());
+				assertEquals(1, manager.getContent("4e5f").getReferenceCount());
+
+				// deleting the photo only changes it in memory
+				photo.setStatus(photo.getStatus().asDeleted(true));
+				assertEquals(1, manager.getContent("4e5f").getReferenceCount());
+
+				manager.updateReference(photo);
+				assertFalse(photo.isContentReferenced());
+				assertEquals(0, manager.getContent("4e5f").getReferenceCount());
+				return null;
+			}
+		});
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testSharedOriginalIsKeptWhileOtherPhotosNeedIt() {
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				ImageContentManager manager = ImageContentManager.getInstance();
+				Photo failed = new Photo(new PhotoId(4714));
+				failed.setContentId("5e6f");
+				manager.updateReference(failed);
+				Photo pending = new Photo(new PhotoId(4715));
+				pending.setContentId("5e6f");
+				manager.updateReference(pending);
+				assertFalse(manager.isOriginalDisposable(failed));
+
+				pending.setStatus(pending.getStatus().asDeleted(true));
+				manager.updateReference(pending);
+				assertTrue(manager.isOriginalDisposable(failed));
+
+				pending.setStatus(pending.getStatus().asDeleted(false));
+				manager.updateReference(pending);
+				pending.addStoredImage(PhotoSize.THUMB);
+				manager.completeContent(pending);
+				assertTrue(manager.isOriginalDisposable(failed));
+				return null;
+			}
+		});
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testUnreferencedContentIsPurgedAfterGracePeriod() {
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				ClockedImageContentManager manager = new ClockedImageContentManager();
+				manager.addReference("6a7b");
+				manager.addReference("8c9d");
+				manager.removeReference("6a7b");
+
+				manager.currentTimeMillis += ImageContentManager.PURGE_GRACE_PERIOD_MILLIS - 1;
+				assertEquals(0, manager.purgeUnreferencedContents());
+				assertNotNull(manager.getContent("6a7b"));
+
+				manager.currentTimeMillis++;
+				assertEquals(1, manager.purgeUnreferencedContents());
+				assertNull(manager.getContent("6a7b"));
+				assertNotNull(manager.getContent("8c9d"));
+				assertEquals(1, manager.purgedContentIds.size());
+				assertEquals("6a7b", manager.purgedContentIds.get(0));
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * An ImageContentManager with a settable clock that records instead of deleting renditions
+	 */
+	protected static class ClockedImageContentManager extends ImageContentManager {
+
+		/**
+		 *
+		 */
+		protected long currentTimeMillis = 1000000;
+		protected List<String> purgedContentIds = new ArrayList<String>();
+
+		@Override
+		protected long getCurrentTimeMillis() {
+			return currentTimeMillis;
+		}
+
+		@Override
+		protected void deleteRenditions(ImageContent content) {
+			purgedContentIds.add(content.getId());
+		}
+
+	}
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.model;
+
+import com.google.apphosting.api.ApiProxy;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class ImagePrefetcherTest {
+
+	/**
+	 *
+	 */
+	@After
+	public void tearDown() {
+		ApiProxy.clearEnvironmentForCurrentThread();
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testEnvironmentIsPassedOn() throws Exception {
+		ApiProxy.Environment environment = mock(ApiProxy.Environment.class);
+		ApiProxy.setEnvironmentForCurrentThread(environment);
+		final CountDownLatch loaded = new CountDownLatch(1);
+		final ApiProxy.Environment[] loadingEnvironment = new ApiProxy.Environment[1];
+		ImagePrefetcher prefetcher = new ImagePrefetcher(1, 10) {
+			@Override
+			protected void loadImage(PhotoId photoId, PhotoSize photoSize) {
+				loadingEnvironment[0] = ApiProxy.getCurrentEnvironment();
+				loaded.countDown();
+			}
+		};
+
+		try {
+			prefetcher.prefetch(new PhotoId(4801), PhotoSize.THUMB);
+			assertTrue(loaded.await(5, TimeUnit.SECONDS));
+			assertSame(environment, loadingEnvironment[0]);
+		} finally {
+			prefetcher.executor.shutdownNow();
+		}
+	}
+
+}
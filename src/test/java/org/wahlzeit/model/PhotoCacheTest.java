@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.model;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PhotoCacheTest {
+
+	/**
+	 *
+	 */
+	protected Photo createCleanPhoto(int id) {
+		Photo result = new Photo(new PhotoId(id));
+		result.resetWriteCount();
+		return result;
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testGetCountsHitsAndMisses() {
+		PhotoCache cache = new PhotoCache(10, Long.MAX_VALUE, PhotoCache.LRU_POLICY);
+		Photo photo = createCleanPhoto(1);
+		cache.put(photo);
+
+		assertSame(photo, cache.get(photo.getId()));
+		assertNull(cache.get(new PhotoId(2)));
+
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(0.5, cache.getHitRate(), 0.0);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testLruEvictsLeastRecentlyUsed() {
+		PhotoCache cache = new PhotoCache(2, Long.MAX_VALUE, PhotoCache.LRU_POLICY);
+		Photo p1 = createCleanPhoto(1);
+		Photo p2 = createCleanPhoto(2);
+		cache.put(p1);
+		cache.put(p2);
+		cache.get(p1.getId());
+
+		cache.put(createCleanPhoto(3));
+
+		assertEquals(2, cache.size());
+		assertTrue(cache.containsKey(p1.getId()));
+		assertFalse(cache.containsKey(p2.getId()));
+		assertEquals(1, cache.getEvictionCount());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testByteBudgetIsEnforced() {
+		PhotoCache cache = new PhotoCache(100, 3 * PhotoCache.PHOTO_BASE_WEIGHT, PhotoCache.LRU_POLICY);
+		for (int i = 1; i <= 5; i++) {
+			cache.put(createCleanPhoto(i));
+		}
+
+		assertEquals(3, cache.size());
+		assertEquals(3 * PhotoCache.PHOTO_BASE_WEIGHT, cache.getWeightedSize());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testDirtyPhotosAreNotEvicted() {
+		PhotoCache cache = new PhotoCache(1, Long.MAX_VALUE, PhotoCache.LRU_POLICY);
+		Photo dirty = new Photo(new PhotoId(1));
+		cache.put(dirty);
+		cache.put(createCleanPhoto(2));
+
+		assertTrue(cache.containsKey(dirty.getId()));
+		assertEquals(1, cache.size());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testTinyLfuRejectsColdCandidate() {
+		PhotoCache cache = new PhotoCache(1, Long.MAX_VALUE, PhotoCache.TINY_LFU_POLICY);
+		Photo hot = createCleanPhoto(1);
+		cache.put(hot);
+		for (int i = 0; i < 5; i++) {
+			cache.get(hot.getId());
+		}
+
+		Photo cold = createCleanPhoto(2);
+		cache.put(cold);
+
+		assertNotNull(cache.get(hot.getId()));
+		assertFalse(cache.containsKey(cold.getId()));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testRemoveReleasesWeight() {
+		PhotoCache cache = new PhotoCache(10, Long.MAX_VALUE, PhotoCache.LRU_POLICY);
+		Photo photo = createCleanPhoto(1);
+		cache.put(photo);
+		cache.remove(photo.getId());
+
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getWeightedSize());
+	}
+
+	/**
+	 *
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownPolicyIsRejected() {
+		new PhotoCache(10, 10, "fifo");
+	}
+
+}
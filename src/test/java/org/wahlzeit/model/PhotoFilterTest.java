@@ -21,8 +21,12 @@ package org.wahlzeit.model;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -33,6 +37,9 @@ public class PhotoFilterTest {
 	@Before
 	public void initPhotoFilter() {
 		photoFilter = new PhotoFilter();
+		if (PhotoId.getCurrentIdAsInt() < 4) {
+			PhotoId.setCurrentIdFromInt(4);
+		}
 	}
 
 	/**
@@ -46,8 +53,7 @@ public class PhotoFilterTest {
 		assertEquals("", photoFilter.userName);
 		assertEquals(Tags.EMPTY_TAGS, photoFilter.tags);
 
-		assertEquals(0, photoFilter.processedPhotoIds.size());
-		assertEquals(0, photoFilter.displayablePhotoIds.size());
+		assertEquals(0, photoFilter.processedPhotoIds.getCardinality());
 	}
 
 	/**
@@ -70,18 +76,66 @@ public class PhotoFilterTest {
 		photoFilter.setTags(new Tags("test"));
 		assertEquals("test", photoFilter.getTags().asString());
 
-		photoFilter.displayablePhotoIds.add(new PhotoId(3));
-		assertTrue(photoFilter.displayablePhotoIds.size() == 1);
-
-		photoFilter.processedPhotoIds.add(new PhotoId(2));
-		assertTrue(photoFilter.processedPhotoIds.size() == 1);
+		photoFilter.processedPhotoIds.add(new PhotoId(2).asInt());
+		assertTrue(photoFilter.processedPhotoIds.getCardinality() == 1);
 
 		photoFilter.clear();
 
 		assertEquals("", photoFilter.getUserName());
 		assertEquals(Tags.EMPTY_TAGS, photoFilter.getTags());
-		assertTrue(photoFilter.displayablePhotoIds.isEmpty());
 		assertTrue(photoFilter.processedPhotoIds.isEmpty());
 	}
 
+	/**
+	 *
+	 */
+	@Test
+	public void testSkippedPhotoIds() {
+		photoFilter.addSkippedPhotoId(new PhotoId(5));
+		photoFilter.addSkippedPhotoId(new PhotoId(5));
+
+		assertEquals(1, photoFilter.getSkippedPhotoIds().getCardinality());
+		assertTrue(photoFilter.getSkippedPhotoIds().contains(5));
+		assertFalse(photoFilter.isProcessedPhotoId(new PhotoId(5)));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testSamplingSkipsInvisibleAndProcessedPhotos() {
+		RoaringBitmap matching = RoaringBitmap.bitmapOf(1, 2, 3, 4);
+		RoaringBitmap visible = RoaringBitmap.bitmapOf(1, 2, 3);
+		photoFilter.processedPhotoIds.add(1);
+		photoFilter.addSkippedPhotoId(new PhotoId(2));
+
+		for (int i = 0; i < 20; i++) {
+			assertEquals(new PhotoId(3), photoFilter.sampleDisplayablePhotoId(matching, visible));
+		}
+
+		photoFilter.processedPhotoIds.add(3);
+		assertEquals(new PhotoId(2), photoFilter.sampleDisplayablePhotoId(matching, visible));
+
+		photoFilter.skippedPhotoIds.remove(2);
+		photoFilter.processedPhotoIds.add(2);
+		assertEquals(PhotoId.NULL_ID, photoFilter.sampleDisplayablePhotoId(matching, visible));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testSamplingIsUniform() {
+		photoFilter.randomNumber = new Random(42);
+		RoaringBitmap photoIds = RoaringBitmap.bitmapOf(1, 2, 3, 4);
+		int[] counts = new int[5];
+		for (int i = 0; i < 4000; i++) {
+			counts[photoFilter.sampleDisplayablePhotoId(photoIds, photoIds).asInt()]++;
+		}
+
+		for (int photoInt = 1; photoInt <= 4; photoInt++) {
+			assertTrue(counts[photoInt] > 850 && counts[photoInt] < 1150);
+		}
+	}
+
 }
@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.junit.rules.TestRule;
+import org.wahlzeit.services.OfyService;
+import org.wahlzeit.services.Persistent;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test cases for storing and reconciling tags, finding praised photos, refreshing processed photos, and indexing
+ * stored photos in the PhotoManager.
+ */
+public class PhotoManagerTest {
+
+	@ClassRule
+	public static TestRule chain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider());
+
+	/**
+	 *
+	 */
+	@Test
+	public void testOnlyChangedTagsAreStored() {
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				PhotoManager manager = new PhotoManager();
+				Photo photo = new Photo(new PhotoId(4201));
+				photo.setTags(new Tags("flower, red"));
+				manager.updateTags(photo);
+				Map<String, Long> storedTags = getStoredTags(photo);
+				assertEquals(asSet("tg:flower", "tg:red"), storedTags.keySet());
+
+				// nothing changed, so nothing is written
+				manager.updateTags(photo);
+				assertEquals(storedTags, getStoredTags(photo));
+
+				photo.setTags(new Tags("flower, tree"));
+				manager.updateTags(photo);
+				Map<String, Long> newStoredTags = getStoredTags(photo);
+				assertEquals(asSet("tg:flower", "tg:tree"), newStoredTags.keySet());
+				assertEquals(storedTags.get("tg:flower"), newStoredTags.get("tg:flower"));
+				assertEquals(asSet("tg:flower", "tg:tree"), manager.getTagIndex().getTerms(photo.getId()));
+				return null;
+			}
+		});
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testIndexIsResetIfTagsCannotBeStored() {
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				FailingPhotoManager manager = new FailingPhotoManager();
+				Photo photo = new Photo(new PhotoId(4202));
+				photo.setTags(new Tags("flower"));
+				manager.isFailing = true;
+				try {
+					manager.updateTags(photo);
+					fail("expected the write to fail");
+				} catch (IllegalStateException e) {
+					// expected
+				}
+				assertEquals(0, manager.getTagIndex().getTerms(photo.getId()).size());
+
+				manager.isFailing = false;
+				manager.updateTags(photo);
+				assertEquals(asSet("tg:flower"), getStoredTags(photo).keySet());
+				assertEquals(asSet("tg:flower"), manager.getTagIndex().getTerms(photo.getId()));
+				return null;
+			}
+		});
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testStoredTagsAreReconciledOnLoad() {
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				Photo photo = new Photo(new PhotoId(4206));
+				photo.setTags(new Tags("flower, tree"));
+				OfyService.ofy().save().entity(photo).now();
+				// left behind by failed updates: a duplicate, a stale, and a missing tag
+				String id = photo.getId().asString();
+				OfyService.ofy().save().entities(new Tag("tg:flower", id), new Tag("tg:flower", id),
+						new Tag("tg:red", id)).now();
+
+				PhotoManager manager = new PhotoManager();
+				manager.loadPhotos();
+				assertEquals(asSet("tg:flower", "tg:tree"), getStoredTags(photo).keySet());
+				assertEquals(2, OfyService.ofy().load().type(Tag.class).ancestor(PhotoManager.applicationRootKey).
+						filter(Tag.PHOTO_ID, id).count());
+				assertEquals(asSet("tg:flower", "tg:tree"), manager.getTagIndex().getTerms(photo.getId()));
+				return null;
+			}
+		});
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPraisedPhotosAreFoundWhenNotCached() {
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				PhotoManager manager = new PhotoManager();
+				Photo photo = new Photo(new PhotoId(4203));
+				photo.addToPraise(5);
+				OfyService.ofy().save().entity(photo).now();
+				OfyService.ofy().clear();
+
+				assertEquals(asSet(photo.getId()), getIds(manager.getPhotosWithNewPraise()));
+
+				photo.setNoNewPraise();
+				OfyService.ofy().save().entity(photo).now();
+				OfyService.ofy().clear();
+				assertTrue(manager.getPhotosWithNewPraise().isEmpty());
+				return null;
+			}
+		});
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPendingPhotoIsRefreshedOnceProcessedElsewhere() {
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				ClockedPhotoManager manager = new ClockedPhotoManager();
+				PhotoId id = new PhotoId(4204);
+				Photo cachedPhoto = new Photo(id);
+				cachedPhoto.setProcessingState(PhotoProcessingState.PENDING);
+				cachedPhoto.resetWriteCount();
+				manager.doAddPhoto(cachedPhoto);
+				assertSame(cachedPhoto, manager.getPhotoFromId(id));
+
+				Photo processedPhoto = new Photo(id);
+				processedPhoto.setProcessingState(PhotoProcessingState.READY);
+				OfyService.ofy().save().entity(processedPhoto).now();
+
+				// the datastore is only checked again once the refresh interval has passed
+				assertSame(cachedPhoto, manager.getPhotoFromId(id));
+				manager.now += PhotoManager.STALE_PHOTO_REFRESH_INTERVAL_MILLIS;
+				Photo result = manager.getPhotoFromId(id);
+				assertNotSame(cachedPhoto, result);
+				assertTrue(result.isReady());
+				assertSame(result, manager.getPhotoFromId(id));
+				return null;
+			}
+		});
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testOnlyManagedPhotoChangesVisibility() {
+		PhotoManager manager = new PhotoManager();
+		Photo photo = new Photo(new PhotoId(4207));
+		manager.doAddPhoto(photo);
+		assertTrue(manager.getVisiblePhotoIds().contains(4207));
+
+		Photo storedCopy = new Photo(new PhotoId(4207));
+		storedCopy.setStatus(storedCopy.getStatus().asDeleted(true));
+		manager.updateVisibilityIfManaged(storedCopy);
+		assertTrue(manager.getVisiblePhotoIds().contains(4207));
+
+		photo.setStatus(photo.getStatus().asDeleted(true));
+		assertTrue(manager.getVisiblePhotoIds().contains(4207));
+		manager.updateVisibilityIfManaged(photo);
+		assertFalse(manager.getVisiblePhotoIds().contains(4207));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPhotosStoredWithoutIdIndexAreIndexed() {
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				PhotoManager manager = new PhotoManager();
+				Photo photo = new Photo(new PhotoId(4205));
+				OfyService.ofy().save().entity(photo).now();
+
+				// as stored before the id was indexed
+				Entity entity = OfyService.ofy().save().toEntity(photo);
+				entity.setUnindexedProperty(Photo.ID + ".value", entity.getProperty(Photo.ID + ".value"));
+				DatastoreServiceFactory.getDatastoreService().put(entity);
+				OfyService.ofy().clear();
+				assertNull(PhotoFactory.getInstance().loadPhoto(photo.getId()));
+
+				manager.indexPhotoIds(Arrays.asList(photo));
+				OfyService.ofy().clear();
+				assertEquals(photo.getId(), PhotoFactory.getInstance().loadPhoto(photo.getId()).getId());
+				return null;
+			}
+		});
+	}
+
+	/**
+	 *
+	 */
+	protected static Set<PhotoId> getIds(Collection<Photo> photos) {
+		Set<PhotoId> result = new HashSet<PhotoId>();
+		for (Photo photo : photos) {
+			result.add(photo.getId());
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the ids of the stored tags of the photo by their text.
+	 */
+	protected static Map<String, Long> getStoredTags(Photo photo) {
+		OfyService.ofy().clear();
+		List<Tag> tags = OfyService.ofy().load().type(Tag.class).ancestor(PhotoManager.applicationRootKey).
+				filter(Tag.PHOTO_ID, photo.getId().asString()).list();
+		Map<String, Long> result = new HashMap<String, Long>();
+		for (Tag tag : tags) {
+			result.put(tag.getText(), Key.create(tag).getId());
+		}
+		return result;
+	}
+
+	/**
+	 *
+	 */
+	@SafeVarargs
+	protected static <T> Set<T> asSet(T... values) {
+		Set<T> result = new HashSet<T>();
+		for (T value : values) {
+			result.add(value);
+		}
+		return result;
+	}
+
+	/**
+	 *
+	 */
+	protected static class ClockedPhotoManager extends PhotoManager {
+
+		protected long now = PhotoManager.STALE_PHOTO_REFRESH_INTERVAL_MILLIS;
+
+		@Override
+		protected long getCurrentTimeMillis() {
+			return now;
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected static class FailingPhotoManager extends PhotoManager {
+
+		protected boolean isFailing = false;
+
+		@Override
+		protected void writeObjects(Collection<? extends Persistent> objects) {
+			if (isFailing) {
+				throw new IllegalStateException("datastore unavailable");
+			}
+			super.writeObjects(objects);
+		}
+	}
+
+}
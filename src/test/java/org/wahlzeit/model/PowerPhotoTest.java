@@ -20,6 +20,7 @@
 
 package org.wahlzeit.model;
 
+import com.google.appengine.api.images.ImagesServiceFactory;
 import org.junit.Before;
 import org.junit.ClassRule;
 import org.junit.Rule;
@@ -95,6 +96,79 @@ public class PowerPhotoTest {
         assertNotEquals(p2.getPower().getYearCapacity(), p3.getPower().getYearCapacity());
     }
 
+    /**
+     *
+     */
+    @Test
+    public void testStoredSizesManifest() {
+        assertFalse(p1.hasStoredSizes());
+        assertFalse(p1.hasStoredImage(PhotoSize.THUMB));
+
+        p1.resetWriteCount();
+        p1.addStoredImage(PhotoSize.THUMB);
+        p1.addStoredImage(PhotoSize.LARGE);
+
+        assertTrue(p1.isDirty());
+        assertTrue(p1.hasStoredSizes());
+        assertTrue(p1.hasStoredImage(PhotoSize.THUMB));
+        assertTrue(p1.hasStoredImage(PhotoSize.LARGE));
+        assertFalse(p1.hasStoredImage(PhotoSize.MEDIUM));
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testImageHashIsComputedWhenImageIsSet() {
+        byte[] imageData = new byte[]{1, 2, 3};
+        p1.setImage(PhotoSize.THUMB, ImagesServiceFactory.makeImage(imageData));
+
+        String imageHash = p1.getImageHash(PhotoSize.THUMB);
+        assertEquals(32, imageHash.length());
+        assertEquals(PhotoUtil.computeImageHash(imageData), imageHash);
+        assertNotEquals(PhotoUtil.computeImageHash(new byte[]{3, 2, 1}), imageHash);
+        assertNull(p1.getImageHash(PhotoSize.MEDIUM));
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testProcessingStateControlsVisibility() {
+        assertEquals(PhotoProcessingState.READY, p1.getProcessingState());
+        assertTrue(p1.isVisible());
+
+        p1.setProcessingState(PhotoProcessingState.PENDING);
+        assertFalse(p1.isReady());
+        assertFalse(p1.isVisible());
+
+        p1.setProcessingState(PhotoProcessingState.FAILED);
+        assertTrue(p1.getProcessingState().isFailed());
+        assertFalse(p1.isVisible());
+
+        p1.setProcessingState(PhotoProcessingState.READY);
+        assertTrue(p1.isVisible());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testEncodedImagesAreRecordedPerSize() {
+        assertFalse(p1.hasEncoding(PhotoSize.THUMB, ImageEncoding.WEBP));
+
+        p1.setEncodedImage(PhotoSize.THUMB, ImageEncoding.WEBP, ImagesServiceFactory.makeImage(new byte[]{1}));
+        assertTrue(p1.hasEncoding(PhotoSize.THUMB, ImageEncoding.WEBP));
+        assertNull(p1.getImage(PhotoSize.THUMB));
+
+        p1.addStoredImage(PhotoSize.THUMB, ImageEncoding.WEBP);
+        p1.removeImage(PhotoSize.THUMB, ImageEncoding.WEBP);
+        assertNull(p1.getImage(PhotoSize.THUMB, ImageEncoding.WEBP));
+        assertTrue(p1.hasStoredImage(PhotoSize.THUMB, ImageEncoding.WEBP));
+        assertFalse(p1.hasStoredImage(PhotoSize.THUMB));
+        assertFalse(p1.hasStoredImage(PhotoSize.SMALL, ImageEncoding.WEBP));
+    }
+
     /**
      *  Test exception handling.
      */
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.model;
+
+import com.google.apphosting.api.ApiProxy;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+public class RenditionExecutorTest {
+
+	/**
+	 *
+	 */
+	@After
+	public void tearDown() {
+		ApiProxy.clearEnvironmentForCurrentThread();
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testTasksRunConcurrently() throws Exception {
+		RenditionExecutor executor = new RenditionExecutor(3, 10);
+		final CountDownLatch started = new CountDownLatch(3);
+		List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+		for (int i = 0; i < 3; i++) {
+			final int result = i;
+			tasks.add(new Callable<Integer>() {
+				public Integer call() throws Exception {
+					started.countDown();
+					assertTrue(started.await(5, TimeUnit.SECONDS));
+					return result;
+				}
+			});
+		}
+
+		assertEquals(Arrays.asList(0, 1, 2), executor.invokeAll(tasks));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testEnvironmentIsPassedOn() throws Exception {
+		final ApiProxy.Environment environment = mock(ApiProxy.Environment.class);
+		ApiProxy.setEnvironmentForCurrentThread(environment);
+		RenditionExecutor executor = new RenditionExecutor(2, 10);
+		Callable<ApiProxy.Environment> task = new Callable<ApiProxy.Environment>() {
+			public ApiProxy.Environment call() {
+				return ApiProxy.getCurrentEnvironment();
+			}
+		};
+
+		List<ApiProxy.Environment> result = executor.invokeAll(Arrays.asList(task, task));
+		assertSame(environment, result.get(0));
+		assertSame(environment, result.get(1));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testFailureIsThrown() throws Exception {
+		RenditionExecutor executor = new RenditionExecutor(2, 10);
+		Callable<Integer> success = new Callable<Integer>() {
+			public Integer call() {
+				return 1;
+			}
+		};
+		Callable<Integer> failure = new Callable<Integer>() {
+			public Integer call() throws IOException {
+				throw new IOException("scaling failed");
+			}
+		};
+
+		try {
+			executor.invokeAll(Arrays.asList(success, failure));
+			fail("expected IOException");
+		} catch (IOException e) {
+			assertEquals("scaling failed", e.getMessage());
+		}
+	}
+
+}
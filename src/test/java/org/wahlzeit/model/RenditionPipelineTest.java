@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.model;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RenditionPipelineTest {
+
+	/**
+	 *
+	 */
+	protected static final int SOURCE_WIDTH = 1000;
+	protected static final int SOURCE_HEIGHT = 1400;
+
+	/**
+	 *
+	 */
+	protected final List<PhotoSize> allSizes = Arrays.asList(PhotoSize.values());
+
+	/**
+	 *
+	 */
+	@Test
+	public void testDirectScalesFromSource() {
+		RenditionPipeline pipeline = new RenditionPipeline(null, RenditionPipeline.Strategy.DIRECT,
+				RenditionPipeline.Quality.SPEED);
+		assertEquals(0, pipeline.getParents(SOURCE_WIDTH, SOURCE_HEIGHT, allSizes).size());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testCascadeForSpeedUsesNextLargerSize() {
+		RenditionPipeline pipeline = new RenditionPipeline(null, RenditionPipeline.Strategy.CASCADE,
+				RenditionPipeline.Quality.SPEED);
+		Map<PhotoSize, PhotoSize> parents = pipeline.getParents(SOURCE_WIDTH, SOURCE_HEIGHT, allSizes);
+
+		assertNull(parents.get(PhotoSize.EXTRA_LARGE));
+		assertEquals(PhotoSize.EXTRA_LARGE, parents.get(PhotoSize.LARGE));
+		assertEquals(PhotoSize.LARGE, parents.get(PhotoSize.MEDIUM));
+		assertEquals(PhotoSize.EXTRA_SMALL, parents.get(PhotoSize.THUMB));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testCascadeForQualityUsesTwiceLargerSize() {
+		RenditionPipeline pipeline = new RenditionPipeline(null, RenditionPipeline.Strategy.CASCADE,
+				RenditionPipeline.Quality.QUALITY);
+		Map<PhotoSize, PhotoSize> parents = pipeline.getParents(SOURCE_WIDTH, SOURCE_HEIGHT, allSizes);
+
+		assertNull(parents.get(PhotoSize.EXTRA_LARGE));
+		assertNull(parents.get(PhotoSize.LARGE));
+		assertEquals(PhotoSize.EXTRA_LARGE, parents.get(PhotoSize.MEDIUM));
+		assertEquals(PhotoSize.LARGE, parents.get(PhotoSize.SMALL));
+		assertEquals(PhotoSize.EXTRA_SMALL, parents.get(PhotoSize.THUMB));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testCreateRenditionsWithJava2D() throws Exception {
+		for (RenditionPipeline.Quality quality : RenditionPipeline.Quality.values()) {
+			RenditionPipeline pipeline = new RenditionPipeline(new Java2DImageScaler(quality),
+					RenditionPipeline.Strategy.CASCADE, quality);
+			Map<PhotoSize, Image> renditions =
+					pipeline.createRenditions(createSource(), SOURCE_WIDTH, SOURCE_HEIGHT, allSizes);
+
+			assertEquals(allSizes.size(), renditions.size());
+			for (PhotoSize size : allSizes) {
+				byte[] imageData = renditions.get(size).getImageData();
+				BufferedImage rendition = ImageIO.read(new ByteArrayInputStream(imageData));
+				assertEquals(size.calcAdjustedWidth(SOURCE_WIDTH, SOURCE_HEIGHT), rendition.getWidth());
+				assertEquals(size.calcAdjustedHeight(SOURCE_WIDTH, SOURCE_HEIGHT), rendition.getHeight());
+			}
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testCreateEncodingsKeepsSmallerEncodings() throws Exception {
+		ImageScaler scaler = new ImageScaler() {
+			public Image scale(Image source, int targetWidth, int targetHeight) {
+				return source;
+			}
+
+			public Image encode(Image rendition, ImageEncoding encoding) {
+				int length = rendition.getImageData().length;
+				return ImagesServiceFactory.makeImage(new byte[(length > 2) ? length / 2 : length]);
+			}
+		};
+		RenditionPipeline pipeline = new RenditionPipeline(scaler, RenditionPipeline.Strategy.DIRECT,
+				RenditionPipeline.Quality.SPEED, Arrays.asList(ImageEncoding.WEBP));
+
+		Map<PhotoSize, Image> renditions = new EnumMap<PhotoSize, Image>(PhotoSize.class);
+		renditions.put(PhotoSize.THUMB, ImagesServiceFactory.makeImage(new byte[10]));
+		renditions.put(PhotoSize.SMALL, ImagesServiceFactory.makeImage(new byte[2]));
+		Map<ImageEncoding, Map<PhotoSize, Image>> encodings = pipeline.createEncodings(renditions);
+
+		assertEquals(1, encodings.size());
+		assertEquals(1, encodings.get(ImageEncoding.WEBP).size());
+		assertEquals(5, encodings.get(ImageEncoding.WEBP).get(PhotoSize.THUMB).getImageData().length);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testJava2DWithoutPluginSkipsEncoding() throws Exception {
+		RenditionPipeline pipeline = new RenditionPipeline(new Java2DImageScaler(RenditionPipeline.Quality.SPEED),
+				RenditionPipeline.Strategy.DIRECT, RenditionPipeline.Quality.SPEED, Arrays.asList(ImageEncoding.WEBP));
+		Map<PhotoSize, Image> renditions = new EnumMap<PhotoSize, Image>(PhotoSize.class);
+		renditions.put(PhotoSize.THUMB, createSource());
+
+		if (!ImageIO.getImageWritersByFormatName("webp").hasNext()) {
+			assertTrue(pipeline.createEncodings(renditions).isEmpty());
+		}
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	protected Image createSource() throws IOException {
+		BufferedImage image = new BufferedImage(SOURCE_WIDTH, SOURCE_HEIGHT, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < SOURCE_HEIGHT; y++) {
+			for (int x = 0; x < SOURCE_WIDTH; x++) {
+				image.setRGB(x, y, (x * 255 / SOURCE_WIDTH) << 16 | (y * 255 / SOURCE_HEIGHT) << 8);
+			}
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", out);
+		return ImagesServiceFactory.makeImage(out.toByteArray());
+	}
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TagIndexTest {
+
+	private TagIndex tagIndex;
+
+	@Before
+	public void initTagIndex() {
+		tagIndex = new TagIndex();
+		tagIndex.updatePhoto(new PhotoId(3), asSet("un:anna", "tg:flower", "tg:red"));
+		tagIndex.updatePhoto(new PhotoId(1), asSet("un:bob", "tg:flower"));
+		tagIndex.updatePhoto(new PhotoId(2), asSet("un:anna", "tg:tree"));
+	}
+
+	/**
+	 *
+	 */
+	protected static Set<String> asSet(String... terms) {
+		return new HashSet<String>(Arrays.asList(terms));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPostingListsAreSorted() {
+		assertArrayEquals(new int[]{1, 3}, tagIndex.getPostingList("tg:flower").toArray());
+		assertArrayEquals(new int[]{2, 3}, tagIndex.getPostingList("un:anna").toArray());
+		assertArrayEquals(new int[0], tagIndex.getPostingList("tg:unknown").toArray());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testMatchingAllIntersects() {
+		assertArrayEquals(new int[]{3}, tagIndex.getPhotoIdsMatchingAll(Arrays.asList("un:anna", "tg:flower")).toArray());
+		assertArrayEquals(new int[]{1, 3}, tagIndex.getPhotoIdsMatchingAll(Collections.singletonList("tg:flower")).toArray());
+		assertArrayEquals(new int[0], tagIndex.getPhotoIdsMatchingAll(Arrays.asList("un:bob", "tg:tree")).toArray());
+		assertArrayEquals(new int[0], tagIndex.getPhotoIdsMatchingAll(Arrays.asList("tg:flower", "tg:unknown")).toArray());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testUpdateIsIncremental() {
+		assertFalse(tagIndex.updatePhoto(new PhotoId(1), asSet("un:bob", "tg:flower")));
+
+		assertTrue(tagIndex.updatePhoto(new PhotoId(1), asSet("un:bob", "tg:tree")));
+		assertArrayEquals(new int[]{3}, tagIndex.getPostingList("tg:flower").toArray());
+		assertArrayEquals(new int[]{1, 2}, tagIndex.getPostingList("tg:tree").toArray());
+		assertEquals(asSet("un:bob", "tg:tree"), tagIndex.getTerms(new PhotoId(1)));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testRemovePhotoDropsEmptyTerms() {
+		int numberOfTerms = tagIndex.getNumberOfTerms();
+		tagIndex.removePhoto(new PhotoId(1));
+
+		assertArrayEquals(new int[0], tagIndex.getPostingList("un:bob").toArray());
+		assertEquals(numberOfTerms - 1, tagIndex.getNumberOfTerms());
+		assertTrue(tagIndex.getTerms(new PhotoId(1)).isEmpty());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testReplaceTermsReturnsPreviousTerms() {
+		assertEquals(asSet("un:bob", "tg:flower"), tagIndex.replaceTerms(new PhotoId(1), asSet("un:bob")));
+		assertEquals(asSet("un:bob"), tagIndex.replaceTerms(new PhotoId(1), asSet("un:bob")));
+		assertTrue(tagIndex.replaceTerms(new PhotoId(4), asSet("tg:new")).isEmpty());
+		assertArrayEquals(new int[]{4}, tagIndex.getPostingList("tg:new").toArray());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testBulkUpdatePublishesNewPostingLists() {
+		Map<PhotoId, Set<String>> termsByPhoto = new HashMap<PhotoId, Set<String>>();
+		termsByPhoto.put(new PhotoId(1), asSet("un:bob"));
+		termsByPhoto.put(new PhotoId(4), asSet("un:anna", "tg:flower"));
+		termsByPhoto.put(new PhotoId(5), asSet("tg:flower"));
+		termsByPhoto.put(new PhotoId(2), Collections.<String>emptySet());
+		tagIndex.updatePhotos(termsByPhoto);
+
+		assertArrayEquals(new int[]{3, 4, 5}, tagIndex.getPostingList("tg:flower").toArray());
+		assertArrayEquals(new int[]{3, 4}, tagIndex.getPostingList("un:anna").toArray());
+		assertArrayEquals(new int[0], tagIndex.getPostingList("tg:tree").toArray());
+		assertEquals(asSet("un:bob"), tagIndex.getTerms(new PhotoId(1)));
+		assertTrue(tagIndex.getTerms(new PhotoId(2)).isEmpty());
+		assertFalse(tagIndex.updatePhoto(new PhotoId(4), asSet("un:anna", "tg:flower")));
+	}
+
+}
@@ -13,12 +13,20 @@ import org.wahlzeit.model.persistence.TestSuitePersistence;
         FlagReasonTest.class,
         GenderTest.class,
         GuestTest.class,
+        ImageContentManagerTest.class,
+        ImagePrefetcherTest.class,
+        ImageCacheTest.class,
         LocationTest.class,
+        PhotoCacheTest.class,
         PhotoFilterTest.class,
+        PhotoManagerTest.class,
         PowerManagerTest.class,
         PowerPhotoFactoryTest.class,
         PowerPhotoManagerTest.class,
         PowerPhotoTest.class,
+        RenditionExecutorTest.class,
+        RenditionPipelineTest.class,
+        TagIndexTest.class,
         TagsTest.class,
         UserStatusTest.class,
         ValueTest.class
@@ -128,4 +128,17 @@ public abstract class AbstractAdapterTest {
 		exists = imageStorage.doesImageExist("wrong file name", 1);
 		assert !exists;
 	}
+
+	@Test
+	public void testDeleteImage() throws IOException {
+		imageStorage.writeImage(smallTestImage, "deleted", ImageStorage.ORIGINAL_SIZE);
+		imageStorage.writeImage(smallTestImage, "deleted", 1);
+
+		imageStorage.deleteImage("deleted", ImageStorage.ORIGINAL_SIZE);
+		assert !imageStorage.doesImageExist("deleted", ImageStorage.ORIGINAL_SIZE);
+		assert imageStorage.doesImageExist("deleted", 1);
+
+		// deleting a missing image does nothing
+		imageStorage.deleteImage("deleted", ImageStorage.ORIGINAL_SIZE);
+	}
 }
@@ -0,0 +1,106 @@
+package org.wahlzeit.model.persistence;
+
+import com.google.appengine.api.images.ImagesServiceFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FileSystemAdapterTest extends AbstractAdapterTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Override
+	protected void storageDependentSetUp() {
+		try {
+			imageStorage = new FileSystemAdapter(temporaryFolder.newFolder("photos").toPath());
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testImagesAreStoredInShards() throws IOException {
+		FileSystemAdapter adapter = (FileSystemAdapter) imageStorage;
+		adapter.writeImage(smallTestImage, "x1abz", 2);
+
+		Path imagePath = adapter.getImagePath("x1abz", 2);
+		assertTrue(Files.isRegularFile(imagePath));
+		assertEquals(adapter.getRootDir(), imagePath.getParent().getParent().getParent());
+		assertEquals(1, imagePath.getParent().toFile().list().length);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testReadImageDataIsMapped() throws IOException {
+		byte[] imageData = new byte[]{1, 2, 3, 4};
+		imageStorage.writeImage(ImagesServiceFactory.makeImage(imageData), "x1abz", 1);
+
+		ByteBuffer result = imageStorage.readImageData("x1abz", 1);
+		assertTrue(result instanceof MappedByteBuffer);
+		assertEquals(ByteBuffer.wrap(imageData), result);
+		assertNull(imageStorage.readImageData("x1abz", 2));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testOverwriteReplacesImage() throws IOException {
+		imageStorage.writeImage(ImagesServiceFactory.makeImage(new byte[]{1}), "x1abz", 1);
+		imageStorage.writeImage(ImagesServiceFactory.makeImage(new byte[]{2, 2}), "x1abz", 1);
+
+		assertEquals(ByteBuffer.wrap(new byte[]{2, 2}), imageStorage.readImageData("x1abz", 1));
+		assertFalse(imageStorage.doesImageExist("x1abz", 3));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testOpenImageChannel() throws IOException {
+		imageStorage.writeImage(ImagesServiceFactory.makeImage(new byte[]{1, 2, 3}), "x1abz", 1);
+
+		FileChannel channel = imageStorage.openImageChannel("x1abz", 1);
+		try {
+			assertEquals(3, channel.size());
+		} finally {
+			channel.close();
+		}
+		assertNull(imageStorage.openImageChannel("x1abz", 2));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPositionalReads() throws IOException {
+		imageStorage.writeImage(ImagesServiceFactory.makeImage(new byte[]{1, 2, 3, 4, 5}), "x1abz", 1);
+
+		assertTrue(imageStorage.hasPositionalReads());
+		assertEquals(5, imageStorage.getImageDataLength("x1abz", 1));
+		ByteBuffer target = ByteBuffer.allocate(2);
+		assertEquals(2, imageStorage.readImageData("x1abz", 1, 2, target));
+		target.flip();
+		assertEquals(ByteBuffer.wrap(new byte[]{3, 4}), target);
+		assertEquals(-1, imageStorage.getImageDataLength("x1abz", 2));
+	}
+
+}
@@ -6,7 +6,8 @@ import org.junit.runners.Suite;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
         //AbstractAdapterTest.class,    // does not work in test suite
-        DatastoreAdapterTest.class
+        DatastoreAdapterTest.class,
+        FileSystemAdapterTest.class
 })
 
 public class TestSuitePersistence {
@@ -0,0 +1,109 @@
+package org.wahlzeit.services;
+
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.junit.rules.TestRule;
+import org.wahlzeit.model.Tag;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ObjectManagerTest {
+
+	@ClassRule
+	public static TestRule chain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider());
+
+	/**
+	 *
+	 */
+	@Test
+	public void testWriteObjectsInBatches() {
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				assertObjectsAreWrittenInBatches();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testDeleteObjectsWithMoreValuesThanAnInFilterTakes() {
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				ObjectManager objectManager = new ObjectManager() {
+				};
+
+				int numberOfTags = ObjectManager.MAX_IN_FILTER_VALUES * 2 + 1;
+				List<Tag> tags = new ArrayList<Tag>(numberOfTags);
+				Set<String> texts = new HashSet<String>();
+				for (int i = 0; i < numberOfTags; i++) {
+					tags.add(new Tag("tag" + i, "in"));
+					texts.add("tag" + i);
+				}
+				tags.add(new Tag("kept", "in"));
+				objectManager.writeObjects(tags);
+
+				objectManager.deleteObjects(Tag.class, Tag.PHOTO_ID, "in", Tag.TEXT, texts);
+				List<Tag> storedTags = new ArrayList<Tag>();
+				objectManager.readObjects(storedTags, Tag.class, Tag.PHOTO_ID, "in");
+				assertEquals(1, storedTags.size());
+				assertEquals("kept", storedTags.get(0).getText());
+				return null;
+			}
+		});
+	}
+
+	/**
+	 *
+	 */
+	protected void assertObjectsAreWrittenInBatches() {
+		final List<Persistent> dependents = new ArrayList<Persistent>();
+		ObjectManager objectManager = new ObjectManager() {
+			@Override
+			protected void updateDependents(Persistent object) {
+				dependents.add(object);
+			}
+		};
+
+		int numberOfTags = ObjectManager.WRITE_BATCH_SIZE * 2 + 1;
+		List<Tag> tags = new ArrayList<Tag>(numberOfTags);
+		for (int i = 0; i < numberOfTags; i++) {
+			tags.add(new Tag("tag" + i, "batch"));
+		}
+		Tag cleanTag = new Tag("clean", "batch");
+		cleanTag.resetWriteCount();
+		tags.add(cleanTag);
+
+		ObjectManager.PendingWrites pendingWrites = objectManager.writeObjectsAsync(tags);
+		assertEquals(numberOfTags, pendingWrites.getNumberOfObjects());
+		assertEquals(3, pendingWrites.results.size());
+		pendingWrites.await();
+
+		assertEquals(numberOfTags, dependents.size());
+		for (Tag tag : tags) {
+			assertFalse(tag.isDirty());
+		}
+
+		List<Tag> storedTags = new ArrayList<Tag>();
+		objectManager.readObjects(storedTags, Tag.class, Tag.PHOTO_ID, "batch");
+		assertEquals(numberOfTags, storedTags.size());
+	}
+
+}
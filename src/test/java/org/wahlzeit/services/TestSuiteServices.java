@@ -8,6 +8,9 @@ import org.wahlzeit.services.mailing.TestSuiteEmailService;
 @Suite.SuiteClasses({
         EmailAddressTest.class,
         LogBuilderTest.class,
+        ObjectManagerTest.class,
+        UploadSpoolTest.class,
+        WriteBehindQueueTest.class,
         TestSuiteEmailService.class
 })
 
@@ -0,0 +1,68 @@
+package org.wahlzeit.services;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.wahlzeit.model.PhotoUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UploadSpoolTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private Path spoolDir;
+	private UploadSpool spool;
+
+	@Before
+	public void initSpool() throws IOException {
+		spoolDir = temporaryFolder.newFolder("spool").toPath();
+		spool = new UploadSpool(spoolDir, 200 * 1024);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testSpoolAndDelete() throws IOException {
+		byte[] data = new byte[150 * 1024];
+		data[0] = 1;
+		data[data.length - 1] = 2;
+
+		SpooledUpload upload = spool.spool(new ByteArrayInputStream(data), "photo.jpg");
+		assertEquals("photo.jpg", upload.getFileName());
+		assertEquals(data.length, upload.getSize());
+		assertTrue(Files.isRegularFile(upload.getFile()));
+		assertArrayEquals(data, upload.readData());
+		assertEquals(PhotoUtil.computeImageHash(data), upload.getContentHash());
+
+		upload.delete();
+		assertFalse(Files.exists(upload.getFile()));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testTooLargeUploadIsAborted() throws IOException {
+		try {
+			spool.spool(new ByteArrayInputStream(new byte[300 * 1024]), "huge.jpg");
+			fail("expected UploadTooLargeException");
+		} catch (UploadSpool.UploadTooLargeException e) {
+			// expected
+		}
+		assertEquals(0, spoolDir.toFile().list().length);
+	}
+
+}
@@ -0,0 +1,165 @@
+package org.wahlzeit.services;
+
+import com.googlecode.objectify.Result;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WriteBehindQueueTest {
+
+	private List<Collection<? extends Persistent>> batches;
+	private List<Persistent> awaitedObjects;
+	private ObjectManager objectManager;
+
+	@Before
+	public void initObjectManager() {
+		batches = new ArrayList<Collection<? extends Persistent>>();
+		awaitedObjects = new ArrayList<Persistent>();
+		objectManager = new ObjectManager() {
+			@Override
+			protected PendingWrites writeObjectsAsync(Collection<? extends Persistent> objects) {
+				List<Persistent> dirtyObjects = new ArrayList<Persistent>();
+				for (Persistent object : objects) {
+					if (object.isDirty()) {
+						dirtyObjects.add(object);
+					}
+				}
+				batches.add(dirtyObjects);
+				return new PendingWrites(dirtyObjects, new ArrayList<Result<?>>());
+			}
+
+			@Override
+			protected void updateDependents(Persistent object) {
+				awaitedObjects.add(object);
+			}
+		};
+	}
+
+	/**
+	 *
+	 */
+	protected static DataObject createDataObject() {
+		DataObject result = new DataObject() {
+		};
+		result.touch();
+		return result;
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testRepeatedChangesAreCoalesced() {
+		WriteBehindQueue queue = new WriteBehindQueue(60000, 100);
+		DataObject object = createDataObject();
+		for (int i = 0; i < 50; i++) {
+			queue.enqueue(objectManager, object);
+		}
+		queue.enqueue(objectManager, createDataObject());
+
+		assertEquals(2, queue.size());
+		assertEquals(49, queue.getCoalescedCount());
+		assertEquals(0, batches.size());
+
+		assertEquals(2, queue.flush());
+		assertEquals(1, batches.size());
+		assertEquals(2, batches.get(0).size());
+		assertEquals(0, queue.size());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testFullQueueIsFlushedByCaller() {
+		WriteBehindQueue queue = new WriteBehindQueue(60000, 3);
+		queue.enqueue(objectManager, createDataObject());
+		queue.enqueue(objectManager, createDataObject());
+		assertEquals(0, batches.size());
+
+		queue.enqueue(objectManager, createDataObject());
+		assertEquals(1, batches.size());
+		assertEquals(3, batches.get(0).size());
+		assertEquals(0, queue.size());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testDueQueueIsFlushed() {
+		WriteBehindQueue queue = new WriteBehindQueue(0, 100);
+		queue.enqueue(objectManager, createDataObject());
+		assertEquals(0, batches.size());
+		assertTrue(queue.isFlushDue());
+
+		queue.flushIfDue();
+		assertEquals(1, batches.size());
+		assertEquals(1, awaitedObjects.size());
+		assertEquals(1, queue.getWriteCount());
+		assertFalse(queue.isFlushDue());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testObjectEnqueuedWhileBeingWrittenStaysDirty() {
+		final WriteBehindQueue queue = new WriteBehindQueue(60000, 100);
+		final DataObject object = createDataObject();
+		ObjectManager changingManager = new ObjectManager() {
+			@Override
+			protected PendingWrites writeObjectsAsync(Collection<? extends Persistent> objects) {
+				PendingWrites result = new PendingWrites(new ArrayList<Persistent>(objects), new ArrayList<Result<?>>());
+				// changed by another request while the batch is on its way to the datastore
+				object.touch();
+				queue.enqueue(this, object);
+				return result;
+			}
+		};
+
+		queue.enqueue(changingManager, object);
+		assertEquals(1, queue.flush());
+		assertEquals(1, queue.size());
+		assertTrue(object.isDirty());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testFailedBatchIsRetriedAfterAnotherWindow() {
+		final boolean[] isFailing = {true};
+		ObjectManager failingManager = new ObjectManager() {
+			@Override
+			protected PendingWrites writeObjectsAsync(Collection<? extends Persistent> objects) {
+				if (isFailing[0]) {
+					throw new IllegalStateException("datastore unavailable");
+				}
+				batches.add(new ArrayList<Persistent>(objects));
+				return new PendingWrites(new ArrayList<Persistent>(objects), new ArrayList<Result<?>>());
+			}
+		};
+		WriteBehindQueue queue = new WriteBehindQueue(60000, 100);
+
+		queue.enqueue(failingManager, createDataObject());
+		assertEquals(0, queue.flush());
+		assertEquals(1, queue.size());
+
+		// not due before the window has passed again
+		queue.flushIfDue();
+		assertEquals(1, queue.size());
+
+		isFailing[0] = false;
+		assertEquals(1, queue.flush());
+		assertEquals(0, queue.size());
+	}
+
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.servlets;
+
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.junit.rules.TestRule;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.wahlzeit.handlers.CacheableWebPageHandler;
+import org.wahlzeit.handlers.WebPartHandlerManager;
+import org.wahlzeit.model.PhotoSize;
+import org.wahlzeit.model.UserSession;
+import org.wahlzeit.services.DataObject;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+import org.wahlzeit.webparts.PageCache;
+import org.wahlzeit.webparts.WebPart;
+import org.wahlzeit.webparts.WebPartTemplate;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test cases for serving pages of anonymous guests from the PageCache in the MainServlet.
+ */
+public class MainServletTest {
+
+	private static final String LINK = "cachedPage";
+
+	@Rule
+	public TestRule chain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider());
+
+	private final MainServlet servlet = new MainServlet();
+	private final CountingPageHandler handler = new CountingPageHandler();
+	private Closeable ofySession;
+
+	/**
+	 *
+	 */
+	@Before
+	public void setUp() {
+		ofySession = ObjectifyService.begin();
+		PageCache.setInstance(new PageCache());
+		WebPartHandlerManager.getInstance().addWebPartHandler(LINK, handler);
+	}
+
+	/**
+	 *
+	 */
+	@After
+	public void tearDown() {
+		PageCache.setInstance(new PageCache());
+		ofySession.close();
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testSecondRequestOfGuestIsServedFromCache() throws Exception {
+		HttpSession httpSession = createHttpSession();
+
+		ByteArrayOutputStream firstPage = new ByteArrayOutputStream();
+		servlet.doGet(createRequest(null, httpSession), createResponse(firstPage));
+		assertEquals(1, handler.renderCount);
+		assertNotNull("first request should create a session", httpSession.getAttribute(UserSession.CLIENT_ID));
+
+		ByteArrayOutputStream secondPage = new ByteArrayOutputStream();
+		servlet.doGet(createRequest(httpSession, httpSession), createResponse(secondPage));
+		assertEquals(1, handler.renderCount);
+		assertEquals(1, PageCache.getInstance().getHitCount());
+		assertEquals(firstPage.toString("UTF-8"), secondPage.toString("UTF-8"));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPersonalizedGuestBypassesCache() throws Exception {
+		HttpSession httpSession = createHttpSession();
+		servlet.doGet(createRequest(null, httpSession), createResponse(new ByteArrayOutputStream()));
+
+		UserSession us = new UserSession("test", "", httpSession, "en");
+		us.getClient().setPhotoSize(PhotoSize.LARGE);
+
+		servlet.doGet(createRequest(httpSession, httpSession), createResponse(new ByteArrayOutputStream()));
+		assertEquals(2, handler.renderCount);
+		assertEquals(0, PageCache.getInstance().getHitCount());
+	}
+
+	/**
+	 * Returns a request for the cached page, which has the existing session or creates the new one when asked to.
+	 */
+	protected HttpServletRequest createRequest(HttpSession existingSession, HttpSession newSession) {
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		when(request.getRequestURI()).thenReturn("/" + LINK + ".html");
+		when(request.getRequestURL()).thenReturn(new StringBuffer("http://localhost:8080/" + LINK + ".html"));
+		when(request.getLocale()).thenReturn(Locale.ENGLISH);
+		when(request.getParameterMap()).thenReturn(new HashMap<String, String[]>());
+		when(request.getSession(false)).thenReturn(existingSession);
+		when(request.getSession()).thenReturn(newSession);
+		Map<String, Object> attributes = new HashMap<String, Object>();
+		when(request.getAttribute(anyString())).thenAnswer(new AttributeGetter(attributes));
+		doAnswer(new AttributeSetter(attributes)).when(request).setAttribute(anyString(), any());
+		return request;
+	}
+
+	/**
+	 * Returns a session storing its attributes.
+	 */
+	protected HttpSession createHttpSession() {
+		HttpSession httpSession = mock(HttpSession.class);
+		when(httpSession.getId()).thenReturn("guestSession");
+		Map<String, Object> attributes = new HashMap<String, Object>();
+		when(httpSession.getAttribute(anyString())).thenAnswer(new AttributeGetter(attributes));
+		doAnswer(new AttributeSetter(attributes)).when(httpSession).setAttribute(anyString(), any());
+		return httpSession;
+	}
+
+	/**
+	 *
+	 */
+	protected HttpServletResponse createResponse(final ByteArrayOutputStream out) throws Exception {
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+			@Override
+			public void write(int b) {
+				out.write(b);
+			}
+		});
+		return response;
+	}
+
+	/**
+	 *
+	 */
+	protected static class AttributeGetter implements Answer<Object> {
+
+		private final Map<String, Object> attributes;
+
+		protected AttributeGetter(Map<String, Object> myAttributes) {
+			attributes = myAttributes;
+		}
+
+		@Override
+		public Object answer(InvocationOnMock invocation) {
+			return attributes.get(invocation.<String>getArgument(0));
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected static class AttributeSetter implements Answer<Void> {
+
+		private final Map<String, Object> attributes;
+
+		protected AttributeSetter(Map<String, Object> myAttributes) {
+			attributes = myAttributes;
+		}
+
+		@Override
+		public Void answer(InvocationOnMock invocation) {
+			attributes.put(invocation.<String>getArgument(0), invocation.getArgument(1));
+			return null;
+		}
+	}
+
+	/**
+	 * A cacheable page that counts how often it is rendered.
+	 */
+	protected static class CountingPageHandler implements CacheableWebPageHandler {
+
+		protected int renderCount = 0;
+
+		public WebPart makeWebPart(UserSession us) {
+			renderCount++;
+			WebPartTemplate template = new WebPartTemplate("en/pages/" + LINK);
+			template.initialize("<p>" + LINK + "</p>");
+			return new WebPart(template);
+		}
+
+		public String handleGet(UserSession us, String link, Map<String, String[]> args) {
+			return link;
+		}
+
+		public String getPageCacheKey(String link, Map<String, String[]> args) {
+			return link;
+		}
+
+		public DataObject getPageCacheDependency(String link) {
+			return null;
+		}
+
+		public long getPageCacheTtlMillis() {
+			return 60 * 1000;
+		}
+	}
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.servlets;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Test cases for streaming images from files.
+ */
+public class StaticDataServletTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	/**
+	 *
+	 */
+	protected FileChannel openImageFile(byte[] data) throws IOException {
+		File file = temporaryFolder.newFile();
+		Files.write(file.toPath(), data);
+		return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testRangeOfFileIsTransferred() throws IOException {
+		FileChannel imageChannel = openImageFile(new byte[] {0, 1, 2, 3, 4, 5, 6, 7});
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			StaticDataServlet.transferImageData(imageChannel, 2, 4, out);
+		} finally {
+			imageChannel.close();
+		}
+		assertArrayEquals(new byte[] {2, 3, 4, 5}, out.toByteArray());
+	}
+
+	/**
+	 *
+	 */
+	@Test(expected = IOException.class)
+	public void testTransferFromTruncatedFileFails() throws IOException {
+		FileChannel imageChannel = openImageFile(new byte[] {0, 1, 2, 3});
+		try {
+			StaticDataServlet.transferImageData(imageChannel, 0, 8, new ByteArrayOutputStream());
+		} finally {
+			imageChannel.close();
+		}
+	}
+
+}
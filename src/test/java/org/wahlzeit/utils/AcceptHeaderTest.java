@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the AcceptHeader class.
+ */
+public class AcceptHeaderTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testExplicitMediaTypes() {
+		String header = "image/avif,image/webp,image/apng,image/*,*/*;q=0.8";
+		assertTrue(AcceptHeader.acceptsExplicitly(header, "image/webp"));
+		assertEquals(1.0, AcceptHeader.getExplicitQuality(header, "image/avif"), 0.0);
+		assertFalse(AcceptHeader.acceptsExplicitly(header, "image/jpeg"));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testQualityValues() {
+		assertEquals(0.5, AcceptHeader.getExplicitQuality("image/png, image/webp; q=0.5", "image/webp"), 0.0);
+		assertFalse(AcceptHeader.acceptsExplicitly("image/webp;q=0", "image/webp"));
+		assertFalse(AcceptHeader.acceptsExplicitly("*/*", "image/webp"));
+		assertFalse(AcceptHeader.acceptsExplicitly(null, "image/webp"));
+	}
+
+}
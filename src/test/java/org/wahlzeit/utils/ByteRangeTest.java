@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.utils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the ByteRange class.
+ */
+public class ByteRangeTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testParseSingleRanges() {
+		assertEquals(Arrays.asList(new ByteRange(0, 499)), ByteRange.parse("bytes=0-499", 1000));
+		assertEquals(Arrays.asList(new ByteRange(500, 999)), ByteRange.parse("bytes=500-", 1000));
+		assertEquals(Arrays.asList(new ByteRange(900, 999)), ByteRange.parse("bytes=-100", 1000));
+		assertEquals(Arrays.asList(new ByteRange(0, 999)), ByteRange.parse("bytes=-2000", 1000));
+		assertEquals(Arrays.asList(new ByteRange(990, 999)), ByteRange.parse("bytes=990-5000", 1000));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testParseMultipleRanges() {
+		List<ByteRange> ranges = ByteRange.parse("bytes=0-9, 20-29,-5", 100);
+		assertEquals(Arrays.asList(new ByteRange(0, 9), new ByteRange(20, 29), new ByteRange(95, 99)), ranges);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testOverlappingRangesAreMerged() {
+		StringBuilder repeatedRanges = new StringBuilder("bytes=0-");
+		for (int i = 1; i < ByteRange.MAX_RANGES; i++) {
+			repeatedRanges.append(",0-");
+		}
+		assertEquals(Arrays.asList(new ByteRange(0, 99)), ByteRange.parse(repeatedRanges.toString(), 100));
+
+		List<ByteRange> ranges = ByteRange.parse("bytes=50-59,0-9,10-19,55-70,-5", 100);
+		assertEquals(Arrays.asList(new ByteRange(0, 19), new ByteRange(50, 70), new ByteRange(95, 99)), ranges);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testParseIgnoredRanges() {
+		assertNull(ByteRange.parse(null, 100));
+		assertNull(ByteRange.parse("items=0-9", 100));
+		assertNull(ByteRange.parse("bytes=abc", 100));
+		assertNull(ByteRange.parse("bytes=9-0", 100));
+
+		StringBuilder manyRanges = new StringBuilder("bytes=0-0");
+		for (int i = 1; i <= ByteRange.MAX_RANGES; i++) {
+			manyRanges.append(",").append(i).append("-").append(i);
+		}
+		assertNull(ByteRange.parse(manyRanges.toString(), 100));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testParseUnsatisfiableRanges() {
+		assertTrue(ByteRange.parse("bytes=100-199", 100).isEmpty());
+		assertTrue(ByteRange.parse("bytes=-0", 100).isEmpty());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testAsContentRange() {
+		ByteRange range = new ByteRange(10, 19);
+		assertEquals(10, range.getLength());
+		assertEquals("bytes 10-19/100", range.asContentRange(100));
+	}
+
+}
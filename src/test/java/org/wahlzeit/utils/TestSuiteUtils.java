@@ -5,6 +5,8 @@ import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
+        AcceptHeaderTest.class,
+        ByteRangeTest.class,
         StringUtilTest.class,
         VersionTest.class
 })
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.webparts;
+
+import com.google.api.client.util.Charsets;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the DeferredGzipOutputStream class.
+ */
+public class DeferredGzipOutputStreamTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testSmallContentIsWrittenAsItIs() throws IOException {
+		ByteArrayOutputStream target = new ByteArrayOutputStream();
+		TestStream out = new TestStream(target, 1024);
+		out.write(asBytes("<p>small</p>"));
+		new Fragment(asBytes("<p>fragment</p>")).writeOn(out);
+		out.close();
+		out.close();
+
+		assertFalse(out.isCompressing());
+		assertFalse(out.hasStartedCompression);
+		assertEquals("<p>small</p><p>fragment</p>", new String(target.toByteArray(), Charsets.UTF_8));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testFragmentsAreSplicedIntoCompressedContent() throws IOException {
+		Fragment fragment = new Fragment(asBytes(repeat("<li>cached list item</li>", 40)));
+		String content = repeat("<p>head</p>", 100);
+
+		ByteArrayOutputStream target = new ByteArrayOutputStream();
+		TestStream out = new TestStream(target, 256);
+		out.write(asBytes(content));
+		fragment.writeOn(out);
+		out.write(asBytes("<p>between</p>"));
+		fragment.writeOn(out);
+		new Fragment(asBytes("<p>small fragment</p>")).writeOn(out);
+		out.write(asBytes("<p>tail</p>"));
+		out.close();
+		out.close();
+
+		assertTrue(out.hasStartedCompression);
+		String expected = content + new String(fragment.data, Charsets.UTF_8) + "<p>between</p>" +
+				new String(fragment.data, Charsets.UTF_8) + "<p>small fragment</p><p>tail</p>";
+		assertEquals(expected, new String(gunzip(target.toByteArray()), Charsets.UTF_8));
+		assertTrue(target.size() < expected.length() / 4);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testContentStartingWithFragmentIsCompressed() throws IOException {
+		Fragment fragment = new Fragment(asBytes(repeat("<td>cell</td>", 100)));
+
+		ByteArrayOutputStream target = new ByteArrayOutputStream();
+		TestStream out = new TestStream(target, 512);
+		fragment.writeOn(out);
+		fragment.writeOn(out);
+		out.close();
+
+		assertTrue(out.hasStartedCompression);
+		byte[] expected = asBytes(repeat("<td>cell</td>", 200));
+		assertArrayEquals(expected, gunzip(target.toByteArray()));
+	}
+
+	/**
+	 *
+	 */
+	protected static byte[] gunzip(byte[] data) throws IOException {
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		for (int count = in.read(buffer); count != -1; count = in.read(buffer)) {
+			result.write(buffer, 0, count);
+		}
+		return result.toByteArray();
+	}
+
+	/**
+	 *
+	 */
+	protected static byte[] asBytes(String value) {
+		return value.getBytes(Charsets.UTF_8);
+	}
+
+	/**
+	 *
+	 */
+	protected static String repeat(String value, int times) {
+		StringBuilder result = new StringBuilder();
+		for (int i = 0; i < times; i++) {
+			result.append(value);
+		}
+		return result.toString();
+	}
+
+	/**
+	 *
+	 */
+	protected static class TestStream extends DeferredGzipOutputStream {
+
+		protected boolean hasStartedCompression = false;
+
+		protected TestStream(ByteArrayOutputStream target, int minBytes) {
+			super(target, minBytes);
+		}
+
+		@Override
+		protected void startCompression() {
+			hasStartedCompression = true;
+		}
+	}
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.webparts;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Test cases for the FragmentCache.
+ */
+public class FragmentCacheTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testFragmentsAreKeyedByLanguageAndInputs() throws IOException {
+		FragmentCache cache = new FragmentCache(1024);
+		FragmentCache.FragmentKey key = new FragmentCache.FragmentKey("en", "infos/LinksInfo", "a");
+		assertNull(cache.get(key));
+
+		Fragment fragment = cache.put(key, new WritableString("<p>links</p>"));
+		assertSame(fragment, cache.get(new FragmentCache.FragmentKey("en", "infos/LinksInfo", "a")));
+		assertNull(cache.get(new FragmentCache.FragmentKey("de", "infos/LinksInfo", "a")));
+		assertNull(cache.get(new FragmentCache.FragmentKey("en", "infos/LinksInfo", "b")));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(3, cache.getMissCount());
+
+		WritableList list = new WritableList();
+		list.append(new WritableString("<div>")).append(fragment).append(new WritableString("</div>"));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		list.writeOn(out);
+		assertEquals("<div><p>links</p></div>", new String(out.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testLeastRecentlyUsedFragmentsAreEvicted() {
+		FragmentCache cache = new FragmentCache(10);
+		FragmentCache.FragmentKey first = new FragmentCache.FragmentKey("en", "first");
+		FragmentCache.FragmentKey second = new FragmentCache.FragmentKey("en", "second");
+		FragmentCache.FragmentKey third = new FragmentCache.FragmentKey("en", "third");
+
+		cache.put(first, new WritableString("1234"));
+		cache.put(second, new WritableString("5678"));
+		cache.get(first);
+		cache.put(third, new WritableString("90ab"));
+
+		assertNotNull(cache.get(first));
+		assertNull(cache.get(second));
+		assertNotNull(cache.get(third));
+		assertEquals(8, cache.getWeightedSize());
+		assertEquals(1, cache.getEvictionCount());
+
+		Fragment tooLarge = cache.put(second, new WritableString("too large for the cache"));
+		assertEquals(23, tooLarge.getSize());
+		assertNull(cache.get(second));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testInvalidation() {
+		FragmentCache cache = new FragmentCache(1024);
+		FragmentCache.FragmentKey en = new FragmentCache.FragmentKey("en", "infos/AboutInfo");
+		FragmentCache.FragmentKey de = new FragmentCache.FragmentKey("de", "infos/AboutInfo");
+		FragmentCache.FragmentKey other = new FragmentCache.FragmentKey("en", "infos/TermsInfo");
+		cache.put(en, new WritableString("about"));
+		cache.put(de, new WritableString("über"));
+		cache.put(other, new WritableString("terms"));
+
+		cache.invalidate(other);
+		assertNull(cache.get(other));
+		assertEquals(2, cache.size());
+
+		cache.invalidateTemplate("infos/AboutInfo");
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getWeightedSize());
+	}
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.webparts;
+
+import org.junit.Test;
+import org.wahlzeit.services.DataObject;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the PageCache.
+ */
+public class PageCacheTest {
+
+	private long now = 1000;
+
+	private final PageCache cache = new PageCache(16) {
+		@Override
+		protected long getCurrentTimeMillis() {
+			return now;
+		}
+	};
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPagesExpire() {
+		byte[] page = {1, 2, 3};
+		cache.put("about", page, 100, null, 0);
+		assertArrayEquals(page, cache.get("about", null));
+
+		now += 100;
+		assertNull(cache.get("about", null));
+		assertEquals(0, cache.size());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPagesAreDroppedWhenTheirDependencyChanges() {
+		TestObject photo = new TestObject();
+		cache.put("photo/x1", new byte[] {1}, 1000, photo, photo.getModificationCount());
+		assertArrayEquals(new byte[] {1}, cache.get("photo/x1", photo));
+
+		// a reloaded instance is not the one the page was rendered from
+		assertNull(cache.get("photo/x1", new TestObject()));
+
+		cache.put("photo/x1", new byte[] {1}, 1000, photo, photo.getModificationCount());
+		photo.touch();
+		assertNull(cache.get("photo/x1", photo));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testLeastRecentlyUsedPagesAreEvicted() {
+		cache.put("a", new byte[8], 1000, null, 0);
+		cache.put("b", new byte[8], 1000, null, 0);
+		cache.get("a", null);
+		cache.put("c", new byte[8], 1000, null, 0);
+
+		assertEquals(16, cache.getWeightedSize());
+		assertNull(cache.get("b", null));
+
+		cache.put("d", new byte[17], 1000, null, 0);
+		assertNull(cache.get("d", null));
+		assertEquals(2, cache.size());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testLargePagesAreKeptGzipped() throws IOException {
+		PageCache largeCache = new PageCache(64 * 1024);
+		byte[] page = new byte[4 * 1024];
+		for (int i = 0; i < page.length; i++) {
+			page[i] = (byte) ('a' + i % 7);
+		}
+		largeCache.put("about", page, 1000, null, 0);
+
+		byte[] gzippedPage = largeCache.getPage("about", null).getGzippedData();
+		assertTrue(gzippedPage.length < page.length);
+		assertArrayEquals(page, DeferredGzipOutputStreamTest.gunzip(gzippedPage));
+		assertEquals(page.length + gzippedPage.length, largeCache.getWeightedSize());
+
+		cache.put("small", new byte[] {1}, 1000, null, 0);
+		assertNull(cache.getPage("small", null).getGzippedData());
+	}
+
+	/**
+	 *
+	 */
+	protected static class TestObject extends DataObject {
+		// nothing to add
+	}
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.webparts;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.wahlzeit.handlers.PartUtil;
+import org.wahlzeit.services.ConfigDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the preloaded templates of the WebPartTemplateService.
+ */
+public class WebPartTemplateServiceTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private File rootDir;
+	private WebPartTemplateService service;
+
+	@Before
+	public void initService() {
+		rootDir = temporaryFolder.getRoot();
+		service = new WebPartTemplateService();
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testAllTemplatesArePreloaded() {
+		service.setTemplatesDir(new ConfigDir("src/main/webapp", "config" + File.separator + "templates"));
+
+		assertTrue(service.getNumberOfTemplates() > 0);
+		WebPartTemplate template = service.getTemplate("en", PartUtil.SHOW_PHOTO_PAGE_FILE);
+		assertNotNull(template);
+		assertEquals("en/" + PartUtil.SHOW_PHOTO_PAGE_FILE, template.getName());
+		assertNull(service.getTemplate("en", "pages/NoSuchPage"));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testDefaultTemplatesTakePrecedence() throws IOException {
+		writeTemplate(ConfigDir.CUSTOM_DIR_NAME, "en/infos/Both", "custom");
+		writeTemplate(ConfigDir.DEFAULT_DIR_NAME, "en/infos/Both", "default");
+		writeTemplate(ConfigDir.CUSTOM_DIR_NAME, "en/infos/Custom", "custom {$name}");
+		service.setTemplatesDir(new ConfigDir(rootDir.getPath(), "templates"));
+
+		assertEquals(2, service.getNumberOfTemplates());
+		assertEquals("default", service.getTemplate("en", "infos/Both").asString());
+		WebPartTemplate template = service.getTemplate("en", "infos/Custom");
+		assertEquals("custom ", template.asString());
+		assertEquals("name", template.getKeys()[0]);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testChangedTemplatesAreReloaded() throws Exception {
+		writeTemplate(ConfigDir.DEFAULT_DIR_NAME, "en/infos/Info", "old");
+		service.setTemplatesDir(new ConfigDir(rootDir.getPath(), "templates"));
+		service.startHotReload();
+
+		writeTemplate(ConfigDir.DEFAULT_DIR_NAME, "en/infos/Info", "new");
+		writeTemplate(ConfigDir.DEFAULT_DIR_NAME, "de/infos/Info", "neu");
+		long deadline = System.currentTimeMillis() + 20000;
+		while (service.getNumberOfTemplates() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+
+		assertEquals("new", service.getTemplate("en", "infos/Info").asString());
+		assertEquals("neu", service.getTemplate("de", "infos/Info").asString());
+	}
+
+	/**
+	 *
+	 */
+	protected void writeTemplate(String dirName, String shortName, String source) throws IOException {
+		Path file = rootDir.toPath().resolve("templates").resolve(dirName).resolve(shortName + ".html");
+		Files.createDirectories(file.getParent());
+		Files.write(file, source.getBytes(StandardCharsets.UTF_8));
+	}
+
+}
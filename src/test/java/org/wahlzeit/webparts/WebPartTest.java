@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.webparts;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Test cases for compiled templates and WebParts.
+ */
+public class WebPartTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testTemplateIsCompiledIntoSlots() {
+		WebPartTemplate template = new WebPartTemplate("en/infos/Test");
+		template.initialize("<p>{$title}</p><a href=\"{$link}\">{$title}</a>");
+
+		assertArrayEquals(new String[] {"title", "link", "title"}, template.getKeys());
+		assertEquals(2, template.getNumberOfSlots());
+		assertEquals(0, template.getSlotIndex("title"));
+		assertEquals(1, template.getSlotIndex("link"));
+		assertEquals(-1, template.getSlotIndex("other"));
+		assertEquals(4, template.getSegments().length);
+		assertEquals("<p></p><a href=\"\"></a>", template.asString());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testValuesAreWrittenAsUtf8() throws IOException {
+		WebPartTemplate template = new WebPartTemplate("de/infos/Test");
+		template.initialize("<h1>Grüße {$name}</h1>{$part}<i>{$name}</i>{$unset}");
+
+		WebPart part = new WebPart(template);
+		part.addString("name", "Jürgen");
+		part.addWritable("part", new WritableString("<br/>"));
+		part.addString("notInTemplate", "kept");
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		part.writeOn(out);
+		assertEquals("<h1>Grüße Jürgen</h1><br/><i>Jürgen</i>", new String(out.toByteArray(), StandardCharsets.UTF_8));
+		assertEquals("Jürgen", part.getValue("name"));
+		assertEquals("kept", part.getValue("notInTemplate"));
+		assertNull(part.getValue("unset"));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testUnterminatedPlaceholderIsText() throws IOException {
+		WebPartTemplate template = new WebPartTemplate("en/infos/Test");
+		template.initialize("a {$b} c {$d");
+
+		WebPart part = new WebPart(template);
+		part.addString("b", "B");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		part.writeOn(out);
+		assertEquals("a B c {$d", new String(out.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+}